@@ -24,6 +24,7 @@ import de.progme.thor.client.cache.AsyncPubSubCache;
 import de.progme.thor.client.cache.Cacheable;
 import de.progme.thor.client.cache.PubSubCache;
 import de.progme.thor.shared.config.ClusterServer;
+import de.progme.thor.shared.net.Frame;
 import de.progme.thor.shared.net.OpCode;
 import de.progme.thor.shared.nio.NioSocketClient;
 import org.json.JSONObject;
@@ -83,15 +84,13 @@ public class PubSubCacheImpl extends NioSocketClient implements PubSubCache {
 
     @SuppressWarnings("unchecked")
     @Override
-    public void received(JSONObject jsonObject) {
+    public void received(Frame frame) {
 
-        Integer op = ((Integer) jsonObject.remove("op"));
+        JSONObject jsonObject = frame.json();
 
-        OpCode opCode = OpCode.of(op);
-
-        switch (opCode) {
+        switch (frame.opCode()) {
             case OP_CACHE_GET:
-                int id = jsonObject.getInt("id");
+                int id = frame.id();
                 Object value = (jsonObject.has("value")) ? jsonObject.get("value") : null;
 
                 try {
@@ -105,7 +104,7 @@ public class PubSubCacheImpl extends NioSocketClient implements PubSubCache {
                 }
                 break;
             case OP_CACHE_HAS:
-                int hasId = jsonObject.getInt("id");
+                int hasId = frame.id();
 
                 try {
                     // Remove the consumer and accept it if it is not null
@@ -147,13 +146,11 @@ public class PubSubCacheImpl extends NioSocketClient implements PubSubCache {
             throw new IllegalArgumentException("value cannot be null or empty");
         }
 
-        JSONObject jsonObject = new JSONObject()
-                .put("op", OpCode.OP_CACHE_ADD.getCode())
-                .put("key", key)
-                .put("value", value)
-                .put("expire", expire);
-
-        write(jsonObject);
+        write(new Frame(OpCode.OP_CACHE_ADD)
+                .key(key)
+                .json(new JSONObject()
+                        .put("value", value)
+                        .put("expire", expire)));
     }
 
     @Override
@@ -189,12 +186,10 @@ public class PubSubCacheImpl extends NioSocketClient implements PubSubCache {
             throw new IllegalArgumentException("key cannot be null or empty");
         }
 
-        JSONObject jsonObject = new JSONObject()
-                .put("op", OpCode.OP_CACHE_SET_EXPIRE.getCode())
-                .put("key", key)
-                .put("expire", (secondsToLive > 0) ? secondsToLive : -1);
-
-        write(jsonObject);
+        write(new Frame(OpCode.OP_CACHE_SET_EXPIRE)
+                .key(key)
+                .json(new JSONObject()
+                        .put("expire", (secondsToLive > 0) ? secondsToLive : -1)));
     }
 
     @Override
@@ -212,12 +207,9 @@ public class PubSubCacheImpl extends NioSocketClient implements PubSubCache {
 
         callbacks.put(id, consumer);
 
-        JSONObject jsonObject = new JSONObject()
-                .put("op", OpCode.OP_CACHE_GET_EXPIRE.getCode())
-                .put("key", key)
-                .put("id", id);
-
-        write(jsonObject);
+        write(new Frame(OpCode.OP_CACHE_GET_EXPIRE)
+                .key(key)
+                .id(id));
     }
 
     @Override
@@ -236,12 +228,9 @@ public class PubSubCacheImpl extends NioSocketClient implements PubSubCache {
         // TODO: 14.06.2016 Maybe improve
         callbacks.put(id, consumer);
 
-        JSONObject jsonObject = new JSONObject()
-                .put("op", OpCode.OP_CACHE_GET.getCode())
-                .put("key", key)
-                .put("id", id);
-
-        write(jsonObject);
+        write(new Frame(OpCode.OP_CACHE_GET)
+                .key(key)
+                .id(id));
     }
 
     @Override
@@ -270,12 +259,9 @@ public class PubSubCacheImpl extends NioSocketClient implements PubSubCache {
                 }
             });
 
-            JSONObject jsonObject = new JSONObject()
-                    .put("op", OpCode.OP_CACHE_HAS.getCode())
-                    .put("key", key)
-                    .put("id", id);
-
-            write(jsonObject);
+            write(new Frame(OpCode.OP_CACHE_HAS)
+                    .key(key)
+                    .id(id));
 
             countDownLatch.await();
 
@@ -311,12 +297,9 @@ public class PubSubCacheImpl extends NioSocketClient implements PubSubCache {
             }
         });
 
-        JSONObject jsonObject = new JSONObject()
-                .put("op", OpCode.OP_CACHE_GET.getCode())
-                .put("key", key)
-                .put("id", id);
-
-        write(jsonObject);
+        write(new Frame(OpCode.OP_CACHE_GET)
+                .key(key)
+                .id(id));
     }
 
     @Override
@@ -326,11 +309,8 @@ public class PubSubCacheImpl extends NioSocketClient implements PubSubCache {
             throw new IllegalArgumentException("key cannot be null or empty");
         }
 
-        JSONObject jsonObject = new JSONObject()
-                .put("op", OpCode.OP_CACHE_REMOVE.getCode())
-                .put("key", key);
-
-        write(jsonObject);
+        write(new Frame(OpCode.OP_CACHE_REMOVE)
+                .key(key));
     }
 
     @Override
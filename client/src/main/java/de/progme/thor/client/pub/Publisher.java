@@ -23,6 +23,8 @@ import de.progme.thor.shared.config.ClusterServer;
 import org.json.JSONObject;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Marvin Erkes on 25.03.2017.
@@ -132,6 +134,83 @@ public interface Publisher {
      */
     void publishAll(String channel, String subscriberName, Object... objects);
 
+    /**
+     * Sends the given JSONObject to the inbox of the subscriber name, independent of any channel.
+     * The server keeps the message while no subscriber with the name receives its inbox.
+     *
+     * @param subscriberName The name of the subscriber.
+     * @param jsonObject     The json as JSONObject.
+     */
+    void publishToInbox(String subscriberName, JSONObject jsonObject);
+
+    /**
+     * Sends the given object as json string to the inbox of the subscriber name, independent of any channel.
+     * The object will be serialized with gson to a json string.
+     *
+     * @param subscriberName The name of the subscriber.
+     * @param object         The object which can be serialized with gson.
+     */
+    void publishToInbox(String subscriberName, Object object);
+
+    /**
+     * Publishes the given JSONObject to the given channel once the delay has passed.
+     * The server holds the message until then, so the publisher does not need to stay connected.
+     *
+     * @param channel    The channel.
+     * @param jsonObject The json as JSONObject.
+     * @param delay      The delay.
+     * @param unit       The unit of the delay.
+     */
+    void publish(String channel, JSONObject jsonObject, long delay, TimeUnit unit);
+
+    /**
+     * Publishes the given JSONObject to the given channel at the given time.
+     * The server holds the message until then, so the publisher does not need to stay connected.
+     *
+     * @param channel    The channel.
+     * @param jsonObject The json as JSONObject.
+     * @param timestamp  The time in milliseconds since the epoch, as seen by the clock of the server.
+     */
+    void publishAt(String channel, JSONObject jsonObject, long timestamp);
+
+    /**
+     * Publishes the given JSONObject to the given channel and subscriber at the given time.
+     * The server holds the message until then, so the publisher does not need to stay connected.
+     *
+     * @param channel        The channel.
+     * @param subscriberName The name of the subscriber to publish to.
+     * @param jsonObject     The json as JSONObject.
+     * @param timestamp      The time in milliseconds since the epoch, as seen by the clock of the server.
+     */
+    void publishAt(String channel, String subscriberName, JSONObject jsonObject, long timestamp);
+
+    /**
+     * Sends the given JSONObject as request to one responder of the given channel and returns its reply.
+     * The future fails with a TimeoutException if no reply arrives within the timeout
+     * and right away with an IllegalStateException if the channel has no responder.
+     *
+     * @param channel       The channel.
+     * @param jsonObject    The request as JSONObject.
+     * @param timeoutMillis The time in milliseconds to wait for the reply.
+     * @return The future of the reply.
+     */
+    CompletableFuture<JSONObject> request(String channel, JSONObject jsonObject, long timeoutMillis);
+
+    /**
+     * Enables the automatic batching of publishes.
+     * Publishes are collected and sent together in one frame once the batch is full or the linger time has passed.
+     * This needs a server which supports batch frames.
+     *
+     * @param maxBatchSize The maximum number of publishes in one batch, 1 or less disables the batching.
+     * @param lingerMillis The maximum time in milliseconds a publish waits for more publishes.
+     */
+    void batch(int maxBatchSize, long lingerMillis);
+
+    /**
+     * Sends all publishes which are waiting for their batch immediately.
+     */
+    void flush();
+
     /**
      * Returns if the publisher is connected.
      *
@@ -25,7 +25,9 @@ import de.progme.thor.shared.config.ClusterServer;
 import org.json.JSONObject;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Marvin Erkes on 07.05.2017.
@@ -108,12 +110,61 @@ public class AsyncPublisherImpl implements AsyncPublisher {
         executorService.execute(() -> publisher.publish(channel, subscriberName, object));
     }
 
+    @Override
+    public void publishToInbox(String subscriberName, JSONObject jsonObject) {
+
+        executorService.execute(() -> publisher.publishToInbox(subscriberName, jsonObject));
+    }
+
+    @Override
+    public void publishToInbox(String subscriberName, Object object) {
+
+        executorService.execute(() -> publisher.publishToInbox(subscriberName, object));
+    }
+
+    @Override
+    public void publish(String channel, JSONObject jsonObject, long delay, TimeUnit unit) {
+
+        executorService.execute(() -> publisher.publish(channel, jsonObject, delay, unit));
+    }
+
+    @Override
+    public void publishAt(String channel, JSONObject jsonObject, long timestamp) {
+
+        executorService.execute(() -> publisher.publishAt(channel, jsonObject, timestamp));
+    }
+
+    @Override
+    public void publishAt(String channel, String subscriberName, JSONObject jsonObject, long timestamp) {
+
+        executorService.execute(() -> publisher.publishAt(channel, subscriberName, jsonObject, timestamp));
+    }
+
     @Override
     public void publishAll(String channel, String subscriberName, Object... objects) {
 
         executorService.execute(() -> publisher.publishAll(channel, subscriberName, objects));
     }
 
+    @Override
+    public CompletableFuture<JSONObject> request(String channel, JSONObject jsonObject, long timeoutMillis) {
+
+        // Requests never block, so they are sent right away
+        return publisher.request(channel, jsonObject, timeoutMillis);
+    }
+
+    @Override
+    public void batch(int maxBatchSize, long lingerMillis) {
+
+        executorService.execute(() -> publisher.batch(maxBatchSize, lingerMillis));
+    }
+
+    @Override
+    public void flush() {
+
+        executorService.execute(publisher::flush);
+    }
+
     @Override
     public boolean connected() {
 
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.client.pub.impl;
+
+import de.progme.thor.shared.net.ChunkUtil;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.JsonFrameCodec;
+import de.progme.thor.shared.net.OpCode;
+import de.progme.thor.shared.nio.NioSocketClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects publishes and sends them together in one {@link OpCode#OP_BATCH} frame.
+ *
+ * A batch is sent once it has reached the max batch size or {@link #MAX_BATCH_BYTES},
+ * or once the linger time since the first publish of the batch has passed.
+ */
+public class PublishBatcher {
+
+    /**
+     * The maximum bytes of the bodies in one batch, which keeps batches far below the max frame size.
+     */
+    public static final int MAX_BATCH_BYTES = ChunkUtil.CHUNK_SIZE;
+
+    private NioSocketClient client;
+
+    private int maxBatchSize;
+
+    private long lingerMillis;
+
+    private ScheduledExecutorService scheduler;
+
+    private List<Frame> frames = new ArrayList<>();
+
+    private int bytes;
+
+    private ScheduledFuture<?> lingerTask;
+
+    /**
+     * Creates a new batcher.
+     *
+     * @param client The client to write the batches to.
+     * @param maxBatchSize The maximum number of publishes in one batch.
+     * @param lingerMillis The maximum time a publish waits for more publishes.
+     * @param scheduler The scheduler for the linger time or null if batches are only sent on {@link #flush()}.
+     */
+    public PublishBatcher(NioSocketClient client, int maxBatchSize, long lingerMillis, ScheduledExecutorService scheduler) {
+
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+
+        this.client = client;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerMillis = lingerMillis;
+        this.scheduler = scheduler;
+    }
+
+    public synchronized void add(Frame frame) {
+
+        // Rough size of the frame including its header
+        int size = frame.body().length + ((frame.channel() != null) ? frame.channel().length() : 0) + 16;
+
+        if (bytes + size > MAX_BATCH_BYTES) {
+            flush();
+        }
+
+        frames.add(frame);
+        bytes += size;
+
+        if (frames.size() >= maxBatchSize) {
+            flush();
+        } else if (lingerTask == null && scheduler != null) {
+            lingerTask = scheduler.schedule(this::flush, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void flush() {
+
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+
+        if (frames.isEmpty()) {
+            return;
+        }
+
+        if (frames.size() == 1) {
+            client.write(frames.get(0));
+        } else {
+            client.write(new Frame(OpCode.OP_BATCH).body(JsonFrameCodec.encodeBatch(frames)));
+        }
+
+        frames = new ArrayList<>();
+        bytes = 0;
+    }
+}
@@ -23,27 +23,43 @@ import com.google.gson.Gson;
 import de.progme.thor.client.pub.AsyncPublisher;
 import de.progme.thor.client.pub.Publisher;
 import de.progme.thor.shared.config.ClusterServer;
+import de.progme.thor.shared.net.ChunkUtil;
+import de.progme.thor.shared.net.Frame;
 import de.progme.thor.shared.net.OpCode;
 import de.progme.thor.shared.nio.NioSocketClient;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Marvin Erkes on 25.03.2017.
  */
 public class PublisherImpl extends NioSocketClient implements Publisher {
 
+    private static final AtomicInteger REQUEST_COUNTER = new AtomicInteger(0);
+
     private Gson gson = new Gson();
 
-    private ExecutorService executorService;
+    private ScheduledExecutorService executorService;
 
     private AsyncPublisher asyncPublisher;
 
+    private volatile PublishBatcher batcher;
+
+    private Map<Integer, CompletableFuture<JSONObject>> requests = new ConcurrentHashMap<>();
+
     public PublisherImpl(String host, int port) {
 
         this(Collections.singletonList(new ClusterServer(host, port)));
@@ -53,7 +69,7 @@ public class PublisherImpl extends NioSocketClient implements Publisher {
 
         super(clusterServers);
 
-        this.executorService = Executors.newSingleThreadExecutor(r -> {
+        this.executorService = Executors.newSingleThreadScheduledExecutor(r -> {
             Thread thread = Executors.defaultThreadFactory().newThread(r);
             thread.setName("AsyncPublisher Thread");
 
@@ -75,16 +91,42 @@ public class PublisherImpl extends NioSocketClient implements Publisher {
     }
 
     @Override
-    public void received(JSONObject jsonObject) {
+    public void received(Frame frame) {
 
-        // Not needed
+        if (frame.opCode() != OpCode.OP_REPLY) {
+            return;
+        }
+
+        CompletableFuture<JSONObject> future = requests.remove(frame.id());
+
+        if (future == null) {
+            // The request already timed out
+            return;
+        }
+
+        if (frame.channel() != null) {
+            // The server answers requests of channels without responders with the channel
+            future.completeExceptionally(new IllegalStateException("no responder for channel " + frame.channel()));
+        } else {
+            future.complete(frame.json());
+        }
     }
 
     @Override
     public void disconnect(boolean force) {
 
+        flush();
+
         close(force);
 
+        for (Integer id : requests.keySet()) {
+            CompletableFuture<JSONObject> future = requests.remove(id);
+
+            if (future != null) {
+                future.completeExceptionally(new IllegalStateException("publisher disconnected"));
+            }
+        }
+
         if (executorService != null) {
             executorService.shutdown();
         }
@@ -105,14 +147,17 @@ public class PublisherImpl extends NioSocketClient implements Publisher {
     @Override
     public void publishAll(String channel, JSONObject... jsonObjects) {
 
-        for (JSONObject jsonObject : jsonObjects) {
-            publish(channel, jsonObject);
-        }
+        publishAll(channel, null, jsonObjects);
     }
 
     @Override
     public void publish(String channel, String subscriberName, JSONObject jsonObject) {
 
+        send(frame(OpCode.OP_BROADCAST, channel, subscriberName, jsonObject));
+    }
+
+    private Frame frame(OpCode opCode, String channel, String subscriberName, JSONObject jsonObject) {
+
         if (channel == null || channel.isEmpty()) {
             throw new IllegalArgumentException("channel cannot be null or empty");
         }
@@ -121,22 +166,61 @@ public class PublisherImpl extends NioSocketClient implements Publisher {
             throw new IllegalArgumentException("jsonObject cannot be null or empty");
         }
 
-        // Set the op code, channel
-        jsonObject.put("op", OpCode.OP_BROADCAST.getCode());
-        jsonObject.put("ch", channel);
-        // Set the subscriber name if it is not null
-        if (subscriberName != null) {
-            jsonObject.put("su", subscriberName);
-        }
+        // The subscriber name is only set if it is not null
+        return new Frame(opCode)
+                .channel(channel)
+                .subscriber(subscriberName)
+                .json(jsonObject);
+    }
+
+    private void send(Frame frame) {
+
+        send(frame, batcher);
+    }
 
-        write(jsonObject);
+    private void send(Frame frame, PublishBatcher batcher) {
+
+        // Only payloads which do not fit into a frame are sent in chunks, the server never has to buffer them
+        int maxFrameSize = maxFrameSize();
+        if (ChunkUtil.needsChunking(frame, maxFrameSize)) {
+            if (batcher != null) {
+                // Keep the order of the publishes
+                batcher.flush();
+            }
+
+            for (Frame chunk : ChunkUtil.split(frame, ChunkUtil.chunkSize(maxFrameSize))) {
+                write(chunk);
+            }
+        } else if (batcher != null) {
+            batcher.add(frame);
+        } else {
+            write(frame);
+        }
     }
 
     @Override
     public void publishAll(String channel, String subscriberName, JSONObject... jsonObjects) {
 
+        List<Frame> frames = new ArrayList<>(jsonObjects.length);
         for (JSONObject jsonObject : jsonObjects) {
-            publish(channel, subscriberName, jsonObject);
+            frames.add(frame(OpCode.OP_BROADCAST, channel, subscriberName, jsonObject));
+        }
+
+        PublishBatcher batcher = this.batcher;
+
+        if (batcher != null) {
+            for (Frame frame : frames) {
+                send(frame, batcher);
+            }
+        } else {
+            // Send them in as few batch frames as possible even without automatic batching
+            PublishBatcher allBatcher = new PublishBatcher(this, Integer.MAX_VALUE, 0, null);
+
+            for (Frame frame : frames) {
+                send(frame, allBatcher);
+            }
+
+            allBatcher.flush();
         }
     }
 
@@ -154,7 +238,7 @@ public class PublisherImpl extends NioSocketClient implements Publisher {
         }
 
         try {
-            // Publish it as JSONObject that we can add the op code and channel
+            // Parse it to make sure only valid json is published
             publish(channel, subscriberName, new JSONObject(json));
         } catch (JSONException e) {
             e.printStackTrace();
@@ -170,9 +254,7 @@ public class PublisherImpl extends NioSocketClient implements Publisher {
     @Override
     public void publishAll(String channel, Object... objects) {
 
-        for (Object object : objects) {
-            publish(channel, null, object);
-        }
+        publishAll(channel, null, objects);
     }
 
     @Override
@@ -189,8 +271,146 @@ public class PublisherImpl extends NioSocketClient implements Publisher {
     @Override
     public void publishAll(String channel, String subscriberName, Object... objects) {
 
+        List<JSONObject> jsonObjects = new ArrayList<>(objects.length);
         for (Object object : objects) {
-            publish(channel, subscriberName, object);
+            if (object == null) {
+                throw new IllegalArgumentException("object cannot be null");
+            }
+
+            try {
+                jsonObjects.add(new JSONObject(gson.toJson(object)));
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+        publishAll(channel, subscriberName, jsonObjects.toArray(new JSONObject[jsonObjects.size()]));
+    }
+
+    @Override
+    public void publishToInbox(String subscriberName, JSONObject jsonObject) {
+
+        if (subscriberName == null || subscriberName.isEmpty()) {
+            throw new IllegalArgumentException("subscriberName cannot be null or empty");
+        }
+
+        if (jsonObject == null || jsonObject.length() == 0) {
+            throw new IllegalArgumentException("jsonObject cannot be null or empty");
+        }
+
+        Frame frame = new Frame(OpCode.OP_INBOX)
+                .subscriber(subscriberName)
+                .json(jsonObject);
+
+        // Direct messages are not chunked, the server only routes chunks of channels
+        if (ChunkUtil.needsChunking(frame, maxFrameSize())) {
+            throw new IllegalArgumentException("jsonObject is too large for an inbox");
+        }
+
+        send(frame);
+    }
+
+    @Override
+    public void publishToInbox(String subscriberName, Object object) {
+
+        if (object == null) {
+            throw new IllegalArgumentException("object cannot be null");
+        }
+
+        publishToInbox(subscriberName, new JSONObject(gson.toJson(object)));
+    }
+
+    @Override
+    public void publish(String channel, JSONObject jsonObject, long delay, TimeUnit unit) {
+
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay cannot be negative");
+        }
+
+        if (unit == null) {
+            throw new IllegalArgumentException("unit cannot be null");
+        }
+
+        publishAt(channel, jsonObject, System.currentTimeMillis() + unit.toMillis(delay));
+    }
+
+    @Override
+    public void publishAt(String channel, JSONObject jsonObject, long timestamp) {
+
+        publishAt(channel, null, jsonObject, timestamp);
+    }
+
+    @Override
+    public void publishAt(String channel, String subscriberName, JSONObject jsonObject, long timestamp) {
+
+        if (timestamp < 0) {
+            throw new IllegalArgumentException("timestamp cannot be negative");
+        }
+
+        Frame frame = frame(OpCode.OP_SCHEDULE, channel, subscriberName, jsonObject).deliverAt(timestamp);
+
+        // Scheduled messages are not chunked, the server only routes chunks of channels
+        if (ChunkUtil.needsChunking(frame, maxFrameSize())) {
+            throw new IllegalArgumentException("jsonObject is too large for a scheduled message");
+        }
+
+        send(frame);
+    }
+
+    @Override
+    public CompletableFuture<JSONObject> request(String channel, JSONObject jsonObject, long timeoutMillis) {
+
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("timeoutMillis must be greater than 0");
+        }
+
+        Frame frame = frame(OpCode.OP_REQUEST, channel, null, jsonObject);
+
+        // Requests are not chunked, the server only routes chunks of channels
+        if (ChunkUtil.needsChunking(frame, maxFrameSize())) {
+            throw new IllegalArgumentException("jsonObject is too large for a request");
+        }
+
+        // Ids stay positive, -1 means no id
+        int id = REQUEST_COUNTER.getAndIncrement() & Integer.MAX_VALUE;
+        CompletableFuture<JSONObject> future = new CompletableFuture<>();
+
+        requests.put(id, future);
+
+        ScheduledFuture<?> timeout = executorService.schedule(() -> {
+
+            if (requests.remove(id, future)) {
+                future.completeExceptionally(new TimeoutException("no reply within " + timeoutMillis + " ms"));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        future.whenComplete((reply, throwable) -> timeout.cancel(false));
+
+        // Requests skip the batching, they wait for their reply anyway
+        write(frame.id(id));
+
+        return future;
+    }
+
+    @Override
+    public void batch(int maxBatchSize, long lingerMillis) {
+
+        if (lingerMillis < 0) {
+            throw new IllegalArgumentException("lingerMillis cannot be negative");
+        }
+
+        flush();
+
+        this.batcher = (maxBatchSize > 1) ? new PublishBatcher(this, maxBatchSize, lingerMillis, executorService) : null;
+    }
+
+    @Override
+    public void flush() {
+
+        PublishBatcher batcher = this.batcher;
+
+        if (batcher != null) {
+            batcher.flush();
         }
     }
 
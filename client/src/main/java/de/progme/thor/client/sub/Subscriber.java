@@ -20,8 +20,11 @@
 package de.progme.thor.client.sub;
 
 import de.progme.thor.client.sub.impl.handler.ChannelHandler;
+import de.progme.thor.client.sub.impl.handler.RequestHandler;
 import de.progme.thor.shared.config.ClusterServer;
+import de.progme.thor.shared.net.SlowConsumerPolicy;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -56,8 +59,12 @@ public interface Subscriber {
      * Subscribes a channel and sets the handler for it.
      * <p>
      * If the channel is already subscribed, the channel handler will be overwritten.
+     * <p>
+     * The channel can also be a pattern of dot separated segments, where "*" matches exactly one segment
+     * and "#" as last segment matches zero or more segments, like "metrics.*.cpu" or "metrics.#".
+     * If multiple subscriptions match a channel, an exact one is preferred, otherwise the first matching pattern.
      *
-     * @param channel The channel to subscribe to.
+     * @param channel The channel or channel pattern to subscribe to.
      * @param handler The handler which is responsible for the messages received in that channel.
      */
     void subscribe(String channel, Class<? extends ChannelHandler> handler);
@@ -67,6 +74,11 @@ public interface Subscriber {
      * The class must have a Channel annotation with the channel the class is responsible for.
      * <p>
      * If the channel is already subscribed, the channel handler will be overwritten.
+     * <p>
+     * With a Group annotation the handler joins a consumer group, so every message of the channel
+     * is only delivered to one member of the group.
+     * With a Fields annotation the server only sends the listed top level members of the messages.
+     * With an AtLeastOnce annotation the server sends the messages again until they are acknowledged.
      *
      * @param handler The handler which is responsible for the messages received in that channel.
      */
@@ -89,6 +101,60 @@ public interface Subscriber {
      */
     void unsubscribe(String channel);
 
+    /**
+     * Unsubscribe many channels with a single frame.
+     *
+     * @param channels The channels to unsubscribe.
+     */
+    void unsubscribe(Collection<String> channels);
+
+    /**
+     * Answers the requests of the channel with the handler, see {@link de.progme.thor.client.pub.Publisher#request(String, org.json.JSONObject, long)}.
+     * Every request goes to only one of the responders of a channel, independent of its subscribers.
+     * <p>
+     * If the channel already has a request handler, it will be overwritten. Unsubscribing the channel also stops answering its requests.
+     * @param channel The concrete channel.
+     * @param handler The handler which answers the requests of that channel.
+     */
+    void respond(String channel, Class<? extends RequestHandler> handler);
+
+    /**
+     * Sets the handler for the inbox of this subscriber, which gets the messages sent to its name with
+     * {@link de.progme.thor.client.pub.Publisher#publishToInbox(String, org.json.JSONObject)}.
+     * The server keeps these messages while this subscriber is offline and sends them once it is connected again.
+     * The handler gets the name of the subscriber as channel.
+     *
+     * @param handler The handler which is responsible for the messages in the inbox.
+     */
+    void inbox(Class<? extends ChannelHandler> handler);
+
+    /**
+     * Sets what the server does with messages for this subscriber if it can not keep up with them.
+     * The policy is kept across reconnects, without one the default policy of the server is used.
+     *
+     * @param policy The slow consumer policy.
+     */
+    void slowConsumerPolicy(SlowConsumerPolicy policy);
+
+    /**
+     * Returns the offset of the last message received in a durable channel.
+     * After a reconnect the subscriber resumes the channel from the message after it.
+     *
+     * @param channel The concrete channel.
+     * @return The offset or -1 if no message with an offset has been received.
+     */
+    long offset(String channel);
+
+    /**
+     * Sets the offset from which a durable channel is replayed on the next subscription of the channel,
+     * so it has to be called before the channel is subscribed. Messages which were already removed
+     * from the log of the server are skipped.
+     *
+     * @param channel The concrete channel.
+     * @param offset The offset of the first message to receive, 0 for all retained messages or -1 for only new ones.
+     */
+    void seek(String channel, long offset);
+
     /**
      * Returns if the subscriber is connected.
      *
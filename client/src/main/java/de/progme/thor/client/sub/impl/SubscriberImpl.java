@@ -25,18 +25,30 @@ import de.progme.thor.client.sub.impl.handler.ChannelHandler;
 import de.progme.thor.client.sub.impl.handler.ClassType;
 import de.progme.thor.client.sub.impl.handler.HandlerInfo;
 import de.progme.thor.client.sub.impl.handler.MultiHandlerInfo;
+import de.progme.thor.client.sub.impl.handler.RequestHandler;
+import de.progme.thor.client.sub.impl.handler.RequestHandlerInfo;
+import de.progme.thor.client.sub.impl.handler.annotation.AtLeastOnce;
 import de.progme.thor.client.sub.impl.handler.annotation.Channel;
+import de.progme.thor.client.sub.impl.handler.annotation.Fields;
+import de.progme.thor.client.sub.impl.handler.annotation.Group;
 import de.progme.thor.client.sub.impl.handler.annotation.Key;
 import de.progme.thor.client.sub.impl.handler.annotation.Value;
 import de.progme.thor.client.util.NameGeneratorUtil;
 import de.progme.thor.shared.config.ClusterServer;
+import de.progme.thor.shared.net.ChannelPattern;
+import de.progme.thor.shared.net.Frame;
 import de.progme.thor.shared.net.OpCode;
+import de.progme.thor.shared.net.SlowConsumerPolicy;
 import de.progme.thor.shared.nio.NioSocketClient;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -46,12 +58,32 @@ public class SubscriberImpl extends NioSocketClient implements Subscriber {
 
     private static final AtomicInteger ID_COUNTER = new AtomicInteger(0);
 
-    private Map<String, HandlerInfo> handlers = new HashMap<>();
+    private static final int MAX_CACHED_CHANNELS = 16384;
 
-    private Map<String, MultiHandlerInfo> multiHandlers = new HashMap<>();
+    private static final int ACK_BATCH_SIZE = 32;
+
+    private static final long ACK_LINGER_MILLIS = 50;
+
+    private static final int MAX_BULK_REGISTRATIONS = 1000;
+
+    private Map<String, HandlerInfo> handlers = new LinkedHashMap<>();
+
+    private Map<String, MultiHandlerInfo> multiHandlers = new LinkedHashMap<>();
 
     private Gson gson = new Gson();
 
+    private SlowConsumerPolicy slowConsumerPolicy;
+
+    private Map<String, String> patternCache = new ConcurrentHashMap<>();
+
+    private Map<String, Long> offsets = new ConcurrentHashMap<>();
+
+    private Map<String, AckState> acks = new ConcurrentHashMap<>();
+
+    private volatile HandlerInfo inboxHandler;
+
+    private Map<String, RequestHandlerInfo> responders = new ConcurrentHashMap<>();
+
     public SubscriberImpl(String host, int port) {
 
         this(host, port, NameGeneratorUtil.generateName("subscriber", ID_COUNTER.getAndIncrement()));
@@ -76,51 +108,271 @@ public class SubscriberImpl extends NioSocketClient implements Subscriber {
     public void clientConnected() {
 
         // Register with our name
-        write(new JSONObject()
-                .put("op", OpCode.OP_SUBSCRIBER_SET_NAME.getCode())
-                .put("su", name));
+        write(nameFrame());
+    }
+
+    private Frame nameFrame() {
+
+        Frame frame = new Frame(OpCode.OP_SUBSCRIBER_SET_NAME)
+                .subscriber(name);
+
+        if (slowConsumerPolicy != null) {
+            frame.json().put("policy", slowConsumerPolicy.name());
+        }
+
+        if (inboxHandler != null) {
+            frame.json().put("inbox", true);
+        }
+
+        return frame;
+    }
+
+    private Frame registerFrame(String channel, Class<?> handler) {
+
+        return registerFrame(channel, handler, null);
+    }
+
+    private Frame registerFrame(String channel, Class<?> handler, List<MultiHandlerInfo.Entry> entries) {
+
+        return new Frame(OpCode.OP_REGISTER_CHANNEL)
+                .channel(channel)
+                .json(registration(channel, handler, entries));
+    }
+
+    /**
+     * Builds the options of a channel registration from the annotations of the handler.
+     *
+     * @return The options, an empty object if the channel has none.
+     */
+    private JSONObject registration(String channel, Class<?> handler, List<MultiHandlerInfo.Entry> entries) {
+
+        JSONObject body = new JSONObject();
+
+        // The server only sends the messages which match at least one key value method
+        if (entries != null && !entries.isEmpty() && !ChannelPattern.isPattern(channel)) {
+            JSONObject filters = new JSONObject();
+            for (MultiHandlerInfo.Entry entry : entries) {
+                filters.append(entry.key().value(), entry.value().value());
+            }
+
+            body.put("filters", filters);
+        }
+
+        // The server only sends the members the handler reads, the keys of the key value methods are always needed
+        Fields fields = handler.getAnnotation(Fields.class);
+        if (fields != null) {
+            Set<String> fieldNames = new LinkedHashSet<>(Arrays.asList(fields.value()));
+            if (entries != null) {
+                for (MultiHandlerInfo.Entry entry : entries) {
+                    fieldNames.add(entry.key().value());
+                }
+            }
+
+            body.put("fields", fieldNames);
+        }
+
+        // Handlers in a consumer group share the messages of the channel with the other group members
+        Group group = handler.getAnnotation(Group.class);
+        if (group != null) {
+            body.put("group", group.value())
+                    .put("balance", group.balance().name());
+        }
+
+        // The server sends the messages again until they are acknowledged
+        if (handler.isAnnotationPresent(AtLeastOnce.class) && !ChannelPattern.isPattern(channel)) {
+            body.put("ack", true);
+            acks.putIfAbsent(channel, new AckState());
+        } else {
+            acks.remove(channel);
+        }
+
+        // Resume a durable channel after the last received message
+        Long offset = offsets.get(channel);
+        if (offset != null) {
+            body.put("offset", offset + 1);
+        }
+
+        return body;
     }
 
     @Override
     public void clientReconnected() {
 
-        if (handlers != null) {
-            // Resubscribe the normal handlers
-            for (Map.Entry<String, HandlerInfo> handlerInfoEntry : handlers.entrySet()) {
-                subscribe(handlerInfoEntry.getValue().messageHandler().getClass());
+        // The sequence numbers start again with the new connection
+        acks.clear();
+
+        // Resubscribe all channels with the existing handler instances in as few frames as possible
+        List<Object> registrations = new ArrayList<>(handlers.size() + multiHandlers.size() + responders.size());
+
+        for (Map.Entry<String, HandlerInfo> handlerInfoEntry : handlers.entrySet()) {
+            registrations.add(bulkRegistration(handlerInfoEntry.getKey(), handlerInfoEntry.getValue().messageHandler().getClass(), null));
+        }
+
+        for (Map.Entry<String, MultiHandlerInfo> handlerInfoEntry : multiHandlers.entrySet()) {
+            MultiHandlerInfo multiHandlerInfo = handlerInfoEntry.getValue();
+
+            registrations.add(bulkRegistration(handlerInfoEntry.getKey(), multiHandlerInfo.object().getClass(), multiHandlerInfo.entries()));
+        }
+
+        for (String channel : responders.keySet()) {
+            registrations.add(new JSONObject().put("ch", channel).put("respond", true));
+        }
+
+        for (int i = 0; i < registrations.size(); i += MAX_BULK_REGISTRATIONS) {
+            List<Object> part = registrations.subList(i, Math.min(i + MAX_BULK_REGISTRATIONS, registrations.size()));
+
+            write(new Frame(OpCode.OP_REGISTER_CHANNELS).json(new JSONObject().put("m", new JSONArray(part))), false);
+        }
+    }
+
+    /**
+     * Returns the entry of a bulk registration, channels without options are only sent as name.
+     */
+    private Object bulkRegistration(String channel, Class<?> handler, List<MultiHandlerInfo.Entry> entries) {
+
+        JSONObject registration = registration(channel, handler, entries);
+
+        return (registration.length() == 0) ? channel : registration.put("ch", channel);
+    }
+
+    @Override
+    public void received(Frame frame) {
+
+        if (frame.opCode() == OpCode.OP_REQUEST) {
+            respond(frame);
+            return;
+        }
+
+        if (frame.opCode() == OpCode.OP_INBOX) {
+            HandlerInfo handlerInfo = inboxHandler;
+
+            if (handlerInfo != null) {
+                handle(handlerInfo, name, frame);
             }
+            return;
         }
 
-        if (multiHandlers != null) {
-            // Resubscribe the multi handlers
-            for (Map.Entry<String, MultiHandlerInfo> handlerInfoEntry : multiHandlers.entrySet()) {
-                subscribeMulti(handlerInfoEntry.getValue().object().getClass());
+        String channel = frame.channel();
+
+        if (channel == null || channel.isEmpty()) {
+            return;
+        }
+
+        String subscription = subscription(channel);
+
+        if (subscription == null) {
+            return;
+        }
+
+        if (frame.hasOffset()) {
+            offsets.merge(channel, frame.offset(), Math::max);
+        }
+
+        AckState ackState = frame.hasSequence() ? acks.get(channel) : null;
+
+        if (ackState != null) {
+            // A message which is sent again because the ack got lost was already handled
+            if (frame.sequence() <= ackState.handled) {
+                acknowledge(channel, ackState, frame.sequence());
+                return;
             }
+
+            try {
+                handle(subscription, channel, frame);
+            } finally {
+                ackState.handled = frame.sequence();
+                acknowledge(channel, ackState, frame.sequence());
+            }
+            return;
         }
+
+        handle(subscription, channel, frame);
     }
 
     @SuppressWarnings("unchecked")
-    @Override
-    public void received(JSONObject jsonObject) {
+    private void respond(Frame frame) {
 
-        String channel = ((String) jsonObject.remove("ch"));
+        RequestHandlerInfo requestHandlerInfo = (frame.channel() != null) ? responders.get(frame.channel()) : null;
 
-        if (channel == null || channel.isEmpty()) {
+        if (requestHandlerInfo == null) {
+            return;
+        }
+
+        Object request = (requestHandlerInfo.classType() == ClassType.JSON)
+                ? frame.json()
+                : gson.fromJson(new String(frame.body(), StandardCharsets.UTF_8), requestHandlerInfo.clazz());
+
+        Object reply;
+
+        try {
+            reply = requestHandlerInfo.requestHandler().onRequest(frame.channel(), request);
+        } catch (Exception e) {
+            // The requester runs into its timeout
+            e.printStackTrace();
             return;
         }
 
-        HandlerInfo handlerInfo = handlers.get(channel);
+        Frame replyFrame = new Frame(OpCode.OP_REPLY)
+                .id(frame.id())
+                .replyTo(frame.replyTo());
+
+        if (reply instanceof JSONObject) {
+            replyFrame.json((JSONObject) reply);
+        } else if (reply != null) {
+            replyFrame.body(gson.toJson(reply).getBytes(StandardCharsets.UTF_8));
+        }
+
+        write(replyFrame);
+    }
+
+    /**
+     * Acknowledges the messages in batches, after {@link #ACK_BATCH_SIZE} messages or {@link #ACK_LINGER_MILLIS} at the latest.
+     * Only called from the event loop.
+     */
+    private void acknowledge(String channel, AckState ackState, long sequence) {
+
+        ackState.pending++;
+
+        if (ackState.pending >= ACK_BATCH_SIZE) {
+            sendAck(channel, ackState);
+        } else if (!ackState.scheduled) {
+            ackState.scheduled = true;
+
+            eventLoop().schedule(() -> {
+
+                ackState.scheduled = false;
+
+                // The state of a previous connection is not acknowledged any more
+                if (ackState.pending > 0 && acks.get(channel) == ackState) {
+                    sendAck(channel, ackState);
+                }
+            }, ACK_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sendAck(String channel, AckState ackState) {
+
+        ackState.pending = 0;
+
+        // Acks are cumulative, so a lost ack is covered by the next one
+        write(new Frame(OpCode.OP_ACK)
+                .channel(channel)
+                .sequence(ackState.handled), false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handle(String subscription, String channel, Frame frame) {
+
+        HandlerInfo handlerInfo = handlers.get(subscription);
 
         if (handlerInfo != null) {
-            if (handlerInfo.classType() == ClassType.JSON) {
-                handlerInfo.messageHandler().onMessage(channel, jsonObject);
-            } else {
-                handlerInfo.messageHandler().onMessage(channel, gson.fromJson(jsonObject.toString(), handlerInfo.clazz()));
-            }
+            handle(handlerInfo, channel, frame);
         } else {
-            MultiHandlerInfo multiHandlerInfo = multiHandlers.get(channel);
+            MultiHandlerInfo multiHandlerInfo = multiHandlers.get(subscription);
 
             if (multiHandlerInfo != null) {
+                JSONObject jsonObject = frame.json();
+
                 //noinspection Convert2streamapi
                 for (MultiHandlerInfo.Entry entry : multiHandlerInfo.entries()) {
                     if (!jsonObject.isNull(entry.key().value())) {
@@ -150,6 +402,64 @@ public class SubscriberImpl extends NioSocketClient implements Subscriber {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private void handle(HandlerInfo handlerInfo, String channel, Frame frame) {
+
+        if (handlerInfo.classType() == ClassType.JSON) {
+            handlerInfo.messageHandler().onMessage(channel, frame.json());
+        } else {
+            // Deserialize the raw body without building a JSONObject first
+            handlerInfo.messageHandler().onMessage(channel, gson.fromJson(new String(frame.body(), StandardCharsets.UTF_8), handlerInfo.clazz()));
+        }
+    }
+
+    /**
+     * Finds the subscription which is responsible for the channel.
+     * An exact subscription is preferred, otherwise the first matching pattern is used.
+     */
+    private String subscription(String channel) {
+
+        if (handlers.containsKey(channel) || multiHandlers.containsKey(channel)) {
+            return channel;
+        }
+
+        String subscription = patternCache.get(channel);
+
+        if (subscription == null) {
+            subscription = "";
+
+            for (String pattern : handlers.keySet()) {
+                if (ChannelPattern.isPattern(pattern) && ChannelPattern.matches(pattern, channel)) {
+                    subscription = pattern;
+                    break;
+                }
+            }
+
+            if (subscription.isEmpty()) {
+                for (String pattern : multiHandlers.keySet()) {
+                    if (ChannelPattern.isPattern(pattern) && ChannelPattern.matches(pattern, channel)) {
+                        subscription = pattern;
+                        break;
+                    }
+                }
+            }
+
+            if (patternCache.size() >= MAX_CACHED_CHANNELS) {
+                patternCache.clear();
+            }
+            patternCache.put(channel, subscription);
+        }
+
+        return subscription.isEmpty() ? null : subscription;
+    }
+
+    private static void checkChannel(String channel) {
+
+        if (ChannelPattern.isPattern(channel) && !ChannelPattern.isValid(channel)) {
+            throw new IllegalArgumentException("channel pattern " + channel + " is invalid, '#' is only allowed as last segment");
+        }
+    }
+
     private String getChannelFromAnnotation(Class<?> clazz) {
 
         if (!clazz.isAnnotationPresent(Channel.class)) {
@@ -187,15 +497,14 @@ public class SubscriberImpl extends NioSocketClient implements Subscriber {
     @Override
     public void subscribe(String channel, Class<? extends ChannelHandler> handler) {
 
+        checkChannel(channel);
+
         try {
             //noinspection unchecked
             handlers.put(channel, new HandlerInfo(handler.newInstance()));
+            patternCache.clear();
 
-            JSONObject jsonObject = new JSONObject()
-                    .put("op", OpCode.OP_REGISTER_CHANNEL.getCode())
-                    .put("ch", channel);
-
-            write(jsonObject, false);
+            write(registerFrame(channel, handler), false);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -217,6 +526,8 @@ public class SubscriberImpl extends NioSocketClient implements Subscriber {
         // Get channel and check the class for annotation etc.
         String channel = getChannelFromAnnotation(handler);
 
+        checkChannel(channel);
+
         try {
             List<MultiHandlerInfo.Entry> entries = new ArrayList<>();
 
@@ -230,12 +541,9 @@ public class SubscriberImpl extends NioSocketClient implements Subscriber {
             }
 
             multiHandlers.put(channel, new MultiHandlerInfo(entries, object));
+            patternCache.clear();
 
-            JSONObject jsonObject = new JSONObject()
-                    .put("op", OpCode.OP_REGISTER_CHANNEL.getCode())
-                    .put("ch", channel);
-
-            write(jsonObject, false);
+            write(registerFrame(channel, handler, entries), false);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -245,15 +553,109 @@ public class SubscriberImpl extends NioSocketClient implements Subscriber {
     public void unsubscribe(String channel) {
 
         // Only send unsubscribe if the channel is subscribed
-        if (handlers.containsKey(channel) || multiHandlers.containsKey(channel)) {
+        if (handlers.containsKey(channel) || multiHandlers.containsKey(channel) || responders.containsKey(channel)) {
             handlers.remove(channel);
             multiHandlers.remove(channel);
+            responders.remove(channel);
+            patternCache.clear();
+
+            write(new Frame(OpCode.OP_UNREGISTER_CHANNEL).channel(channel));
+        }
+    }
+
+    @Override
+    public void unsubscribe(Collection<String> channels) {
+
+        List<String> subscribed = new ArrayList<>(channels.size());
+
+        for (String channel : channels) {
+            if (handlers.remove(channel) != null | multiHandlers.remove(channel) != null | responders.remove(channel) != null) {
+                subscribed.add(channel);
+            }
+        }
+
+        if (subscribed.isEmpty()) {
+            return;
+        }
+
+        patternCache.clear();
 
-            JSONObject jsonObject = new JSONObject()
-                    .put("op", OpCode.OP_UNREGISTER_CHANNEL.getCode())
-                    .put("ch", channel);
+        for (int i = 0; i < subscribed.size(); i += MAX_BULK_REGISTRATIONS) {
+            List<String> part = subscribed.subList(i, Math.min(i + MAX_BULK_REGISTRATIONS, subscribed.size()));
 
-            write(jsonObject);
+            write(new Frame(OpCode.OP_UNREGISTER_CHANNELS).json(new JSONObject().put("m", new JSONArray(part))));
+        }
+    }
+
+    @Override
+    public void respond(String channel, Class<? extends RequestHandler> handler) {
+
+        if (channel == null || channel.isEmpty()) {
+            throw new IllegalArgumentException("channel cannot be null or empty");
+        }
+
+        if (ChannelPattern.isPattern(channel)) {
+            throw new IllegalArgumentException("requests can only be answered for a concrete channel");
+        }
+
+        if (handler == null) {
+            throw new IllegalArgumentException("handler cannot be null");
+        }
+
+        try {
+            //noinspection unchecked
+            responders.put(channel, new RequestHandlerInfo(handler.newInstance()));
+
+            write(new Frame(OpCode.OP_REGISTER_CHANNEL)
+                    .channel(channel)
+                    .json(new JSONObject().put("respond", true)), false);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void inbox(Class<? extends ChannelHandler> handler) {
+
+        if (handler == null) {
+            throw new IllegalArgumentException("handler cannot be null");
+        }
+
+        try {
+            //noinspection unchecked
+            inboxHandler = new HandlerInfo(handler.newInstance());
+
+            write(nameFrame());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void slowConsumerPolicy(SlowConsumerPolicy policy) {
+
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+
+        this.slowConsumerPolicy = policy;
+
+        write(nameFrame());
+    }
+
+    @Override
+    public long offset(String channel) {
+
+        return offsets.getOrDefault(channel, -1L);
+    }
+
+    @Override
+    public void seek(String channel, long offset) {
+
+        if (offset < 0) {
+            offsets.remove(channel);
+        } else {
+            offsets.put(channel, offset - 1);
         }
     }
 
@@ -274,4 +676,16 @@ public class SubscriberImpl extends NioSocketClient implements Subscriber {
 
         return Collections.unmodifiableList(super.clusterServers());
     }
+
+    /**
+     * The acknowledgement state of an acknowledged subscription, only used from the event loop.
+     */
+    private static class AckState {
+
+        private long handled = -1;
+
+        private int pending;
+
+        private boolean scheduled;
+    }
 }
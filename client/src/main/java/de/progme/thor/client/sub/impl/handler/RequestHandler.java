@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.client.sub.impl.handler;
+
+/**
+ * Answers the requests of a channel, the returned object is sent back to the requester as reply.
+ * A JSONObject is sent as it is, any other object is serialized with gson.
+ */
+public abstract class RequestHandler<T> {
+
+    public abstract Object onRequest(String channel, T request);
+}
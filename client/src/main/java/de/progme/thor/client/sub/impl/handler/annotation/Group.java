@@ -17,25 +17,24 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-package de.progme.thor.shared.pipeline.handler;
+package de.progme.thor.client.sub.impl.handler.annotation;
 
-import io.netty.buffer.ByteBufUtil;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToMessageEncoder;
-import io.netty.util.CharsetUtil;
-import org.json.JSONObject;
+import de.progme.thor.shared.net.GroupBalance;
 
-import java.nio.CharBuffer;
-import java.util.List;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
 
 /**
- * Created by Marvin Erkes on 07.10.2017.
+ * Subscribes the channel of the handler as member of a consumer group.
+ * Every message of the channel is only delivered to one member of the group.
  */
-public class JSONObjectEncoder extends MessageToMessageEncoder<JSONObject> {
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Group {
 
-    @Override
-    protected void encode(ChannelHandlerContext ctx, JSONObject jsonObject, List<Object> out) throws Exception {
+    String value();
 
-        out.add(ByteBufUtil.encodeString(ctx.alloc(), CharBuffer.wrap(jsonObject.toString()), CharsetUtil.UTF_8));
-    }
+    GroupBalance balance() default GroupBalance.ROUND_ROBIN;
 }
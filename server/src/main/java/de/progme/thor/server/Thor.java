@@ -96,6 +96,7 @@ public class Thor {
         commandManager.addCommand(new GetCommand("get", new String[]{}, "Gets a value from a key"));
         commandManager.addCommand(new DeleteCommand("delete", new String[]{"remove", "del", "rm"}, "Gets a value from a key"));
         commandManager.addCommand(new SnapshotCommand("snapshot", new String[]{}, "Takes a memory snapshot"));
+        commandManager.addCommand(new ConnectionsCommand("connections", new String[]{"conns"}, "Lists all connections with their queue metrics"));
 
         // Autocomplete commands
         consoleReader.addCompleter(new StringsCompleter(commandManager.getCommands().stream().map(Command::getName).collect(Collectors.toList())));
@@ -165,6 +166,11 @@ public class Thor {
 
     public static Logger getLogger() {
 
+        // The server can also run without the console, like when it is embedded or tested
+        if (instance == null || instance.logger == null) {
+            return Logger.getLogger("Thor");
+        }
+
         return instance.logger;
     }
 
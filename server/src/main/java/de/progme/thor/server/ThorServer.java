@@ -19,17 +19,43 @@
 
 package de.progme.thor.server;
 
+import de.progme.thor.server.cache.CacheEntry;
 import de.progme.thor.server.cache.ThorCache;
+import de.progme.thor.server.channel.ChannelConflation;
+import de.progme.thor.server.channel.ChannelHistory;
+import de.progme.thor.server.channel.ChannelIdRegistry;
+import de.progme.thor.server.channel.ChannelPriorities;
+import de.progme.thor.server.channel.ChannelSession;
+import de.progme.thor.server.channel.ConsumerGroup;
+import de.progme.thor.server.channel.FilterIndex;
+import de.progme.thor.server.channel.SubscriptionTrie;
 import de.progme.thor.server.config.Config;
+import de.progme.thor.server.log.ChannelLog;
+import de.progme.thor.server.log.MessageLog;
 import de.progme.thor.server.network.Connection;
+import de.progme.thor.server.network.FanOut;
+import de.progme.thor.server.network.Inbox;
+import de.progme.thor.server.network.InboundLimit;
+import de.progme.thor.server.network.WriteQueue;
 import de.progme.thor.server.network.initialize.ServerChannelInitializer;
 import de.progme.thor.server.network.initialize.ClusterPublisherChannelInitializer;
+import de.progme.thor.server.schedule.MessageScheduler;
 import de.progme.thor.shared.config.ClusterServer;
+import de.progme.thor.shared.net.ChannelPattern;
+import de.progme.thor.shared.net.ChunkUtil;
+import de.progme.thor.shared.net.EncodedFrame;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.GroupBalance;
+import de.progme.thor.shared.net.JsonFrameCodec;
 import de.progme.thor.shared.net.OpCode;
+import de.progme.thor.shared.net.Protocol;
+import de.progme.thor.shared.net.SlowConsumerPolicy;
 import de.progme.thor.shared.pipeline.PipelineUtils;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
+import io.netty.handler.codec.CorruptedFrameException;
 import org.json.JSONObject;
 
 import java.net.InetSocketAddress;
@@ -38,9 +64,9 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * Created by Marvin Erkes on 25.03.2017.
@@ -49,20 +75,54 @@ public class ThorServer {
 
     private static final Logger LOGGER = Thor.getLogger();
 
+    private static final int MAX_CACHED_FAN_OUTS = 16384;
+
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private Config config;
+
     private String host;
 
     private int port;
 
     private int backlog;
 
-    private Map<String, List<Connection>> channelSessions = new ConcurrentHashMap<>();
+    private Map<String, ChannelSession<Connection>> channelSessions = new ConcurrentHashMap<>();
+
+    private Map<String, ChannelHistory> channelHistories = new ConcurrentHashMap<>();
+
+    private SubscriptionTrie<Connection> patternSessions = new SubscriptionTrie<>();
+
+    private Map<String, CachedFanOut> fanOuts = new ConcurrentHashMap<>();
+
+    private ChannelIdRegistry channelIds = new ChannelIdRegistry();
+
+    private ChannelPriorities channelPriorities;
+
+    private ChannelConflation channelConflation;
+
+    private Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+    private Map<Long, Connection> connectionsById = new ConcurrentHashMap<>();
+
+    private Map<String, ConsumerGroup<Connection>> responders = new ConcurrentHashMap<>();
+
+    private Map<String, Connection> detachedSessions = new ConcurrentHashMap<>();
+
+    private Map<String, Inbox> inboxes = new ConcurrentHashMap<>();
+
+    private AtomicLong inboxBytes = new AtomicLong();
 
     private int workerThreads;
 
-    private List<ClusterPublisher> clusterPublisher = new ArrayList<>();
+    private List<ClusterPublisher> clusterPublisher = new CopyOnWriteArrayList<>();
 
     private ThorCache cache;
 
+    private MessageLog messageLog;
+
+    private MessageScheduler scheduler;
+
     private EventLoopGroup bossGroup;
 
     private EventLoopGroup workerGroup;
@@ -71,20 +131,40 @@ public class ThorServer {
 
     public ThorServer(String host, int port, int backlog, boolean debug, int workerThreads, List<ClusterServer> cluster, int cleanupInterval, int snapshotInterval) {
 
-        this.host = host;
-        this.port = port;
-        this.backlog = backlog;
-        this.workerThreads = workerThreads;
-        this.cache = new ThorCache(cleanupInterval, snapshotInterval);
+        this(new Config(host, port, backlog, debug, workerThreads, cluster, cleanupInterval, snapshotInterval));
+    }
+
+    public ThorServer(Config config) {
 
-        LOGGER.setLevel((debug) ? Level.FINE : Level.INFO);
+        this.config = config;
+        this.host = config.host();
+        this.port = config.port();
+        this.backlog = config.backlog();
+        this.workerThreads = config.workerThreads();
+        this.channelPriorities = new ChannelPriorities(config.priorityChannels());
+        this.channelConflation = new ChannelConflation(config.conflationKeys());
+        this.cache = new ThorCache(config.cleanupInterval(), config.snapshotInterval());
+        this.messageLog = new MessageLog(config);
+        this.scheduler = new MessageScheduler(this, config);
+
+        LOGGER.setLevel((config.debug()) ? Level.FINE : Level.INFO);
 
         start();
 
+        connectCluster(config.cluster());
+    }
+
+    /**
+     * Connects to the cluster servers in the background and keeps trying until all of them are connected.
+     *
+     * @param cluster The cluster servers, they are removed once they are connected.
+     */
+    private void connectCluster(List<ClusterServer> cluster) {
+
         // Check if there are cluster servers to avoid unnecessary logic execution
         if (cluster.size() > 0) {
             new Thread(() -> {
-                while (cluster.size() > 0) {
+                while (cluster.size() > 0 && serverChannel.isOpen()) {
                     LOGGER.info("Trying to connecting to all cluster servers");
 
                     Iterator<ClusterServer> clusterServerIterator = cluster.iterator();
@@ -98,17 +178,19 @@ public class ThorServer {
                         }
 
                         try {
-                            ClusterPublisher cb = new ClusterPublisher(clusterServer.host(), clusterServer.port());
+                            ClusterPublisher cb = new ClusterPublisher(this, clusterServer.host(), clusterServer.port(), config);
 
                             if (cb.connect()) {
                                 clusterPublisher.add(cb);
 
                                 clusterServerIterator.remove();
 
-                                cb.write(new JSONObject()
-                                        .put("op", OpCode.OP_CLUSTER_INFO_SET.getCode())
-                                        .put("host", host)
-                                        .put("port", port));
+                                cb.write(new Frame(OpCode.OP_CLUSTER_INFO_SET)
+                                        .json(new JSONObject()
+                                                .put("host", host)
+                                                .put("port", port)));
+
+                                syncCache(cb);
 
                                 LOGGER.log(Level.INFO, "Connected to cluster server {0}:{1}", new Object[]{clusterServer.host(), String.valueOf(clusterServer.port())});
                             } else {
@@ -119,7 +201,7 @@ public class ThorServer {
                         }
                     }
 
-                    if (cluster.size() == 0) {
+                    if (cluster.size() == 0 || !serverChannel.isOpen()) {
                         break;
                     }
 
@@ -130,14 +212,52 @@ public class ThorServer {
                     }
                 }
 
-                LOGGER.info("Cluster servers are connected successfully!");
+                if (cluster.size() == 0) {
+                    LOGGER.info("Cluster servers are connected successfully!");
+                }
             }).start();
         }
     }
 
-    public ThorServer(Config config) {
+    /**
+     * Sends all cache entries to a cluster server, so it has the changes it missed while it was not connected.
+     *
+     * @param cb The cluster server.
+     */
+    private void syncCache(ClusterPublisher cb) {
+
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, CacheEntry> entry : cache.entries().entrySet()) {
+            long expireBy = entry.getValue().expireBy();
+
+            if (expireBy != -1 && expireBy <= now) {
+                continue;
+            }
+
+            cb.write(new Frame(OpCode.OP_CACHE_ADD)
+                    .key(entry.getKey())
+                    .json(new JSONObject()
+                            .put("value", entry.getValue().value())
+                            .put("expire", (expireBy != -1) ? (int) Math.max(1, (expireBy - now) / 1000) : -1)));
+        }
+    }
+
+    /**
+     * Called once the link to a cluster server is gone, like after it did not keep up with the messages.
+     * The server is connected again and gets the cache once it is back.
+     *
+     * @param cb The lost cluster server.
+     */
+    private void clusterLinkLost(ClusterPublisher cb) {
+
+        if (!clusterPublisher.remove(cb) || !serverChannel.isOpen()) {
+            return;
+        }
+
+        LOGGER.log(Level.WARNING, "Lost connection to cluster server {0}:{1}, reconnecting", new Object[]{cb.host, String.valueOf(cb.port)});
 
-        this(config.host(), config.port(), config.backlog(), config.debug(), config.workerThreads(), config.cluster(), config.cleanupInterval(), config.snapshotInterval());
+        connectCluster(new ArrayList<>(Collections.singletonList(new ClusterServer(cb.host, cb.port))));
     }
 
     private void start() {
@@ -164,14 +284,44 @@ public class ThorServer {
             e.printStackTrace();
         }
 
+        workerGroup.scheduleAtFixedRate(this::sweep, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
         LOGGER.log(Level.INFO, "Thor server started on {0}:{1}", new Object[]{host, String.valueOf(port)});
     }
 
+    /**
+     * Drops the state which channels and inboxes without traffic leave behind.
+     */
+    private void sweep() {
+
+        long idleMillis = config.channelHistoryIdleMillis();
+
+        for (String channel : channelHistories.keySet()) {
+            // Histories of exact channels are bounded by the config, the ones of pattern channels shrink to their last message
+            if (!config.channelHistory().containsKey(channel)) {
+                channelHistories.computeIfPresent(channel, (c, history) -> history.evictIfIdle(idleMillis) ? null : history);
+            }
+        }
+
+        // Buffered direct messages otherwise only expire when the next one arrives or their subscriber is back
+        for (String name : inboxes.keySet()) {
+            inboxes.computeIfPresent(name, (n, inbox) -> {
+
+                inbox.expire();
+
+                return inbox.isEmpty() ? null : inbox;
+            });
+        }
+    }
+
     public void stop() {
 
         LOGGER.info("Server will stop");
 
-        serverChannel.close();
+        // Closed before the cluster links, so they are not connected again
+        serverChannel.close().awaitUninterruptibly();
+
+        clusterPublisher.forEach(ClusterPublisher::close);
 
         bossGroup.shutdownGracefully();
         workerGroup.shutdownGracefully();
@@ -179,33 +329,298 @@ public class ThorServer {
         // Close the cache
         cache.close();
 
+        messageLog.close();
+
+        scheduler.close();
+
+        channelHistories.values().forEach(ChannelHistory::clear);
+
         LOGGER.info("Server stopped!");
     }
 
-    public void subscribeChannel(String channel, Connection connection) {
+    public boolean subscribeChannel(String channel, Connection connection) {
+
+        return subscribeChannel(channel, connection, null, null);
+    }
+
+    /**
+     * Subscribes the channel, optionally as member of a consumer group
+     * which gets every message of the channel delivered to only one of its members.
+     *
+     * @param channel The channel or channel pattern.
+     * @param connection The connection.
+     * @param group The consumer group or null.
+     * @param balance How the group selects its members or null for round robin.
+     * @return True if the channel was subscribed.
+     */
+    public boolean subscribeChannel(String channel, Connection connection, String group, GroupBalance balance) {
+
+        return subscribeChannel(channel, connection, group, balance, -1, null);
+    }
+
+    /**
+     * Subscribes the channel and replays the logged messages from the given offset on if the channel is durable.
+     *
+     * @param channel The channel or channel pattern.
+     * @param connection The connection.
+     * @param group The consumer group or null.
+     * @param balance How the group selects its members or null for round robin.
+     * @param offset The offset to resume from or -1 to only get new messages.
+     * @param filter The string values of top level members the connection wants messages for or null for all messages.
+     * @return True if the channel was subscribed.
+     */
+    public boolean subscribeChannel(String channel, Connection connection, String group, GroupBalance balance, long offset, Map<String, Set<String>> filter) {
+
+        return subscribeChannel(channel, connection, group, balance, offset, filter, false);
+    }
+
+    /**
+     * Subscribes the channel and replays the logged messages from the given offset on if the channel is durable.
+     * The messages of an acknowledged subscription carry a sequence number and are sent again until the subscriber acknowledged them.
+     *
+     * @param channel The channel or channel pattern.
+     * @param connection The connection.
+     * @param group The consumer group or null.
+     * @param balance How the group selects its members or null for round robin.
+     * @param offset The offset to resume from or -1 to only get new messages.
+     * @param filter The string values of top level members the connection wants messages for or null for all messages.
+     * @param ack If the subscriber acknowledges the messages, only supported for channels without wildcards.
+     * @return True if the channel was subscribed.
+     */
+    public boolean subscribeChannel(String channel, Connection connection, String group, GroupBalance balance, long offset, Map<String, Set<String>> filter, boolean ack) {
+
+        ChannelLog log = (offset >= 0 && !ChannelPattern.isPattern(channel)) ? messageLog.log(channel) : null;
+
+        if (log != null) {
+            // No message can be logged between the replay and the subscription
+            synchronized (log) {
+                log.read(offset, encoded -> connection.send(encoded, channel));
+
+                LOGGER.log(Level.FINE, "[{0}] Replayed channel {1} from offset {2}", new Object[]{connection.remoteAddress().toString(), channel, String.valueOf(offset)});
+
+                return subscribe(channel, connection, group, balance, filter, ack);
+            }
+        }
+
+        ChannelHistory history = !ChannelPattern.isPattern(channel) ? channelHistory(channel) : null;
+
+        if (history != null) {
+            // New subscribers get the last messages right after they subscribed, but no message twice
+            synchronized (history) {
+                if (!subscribe(channel, connection, group, balance, filter, ack)) {
+                    return false;
+                }
+
+                history.read(encoded -> connection.send(encoded, channel));
+
+                return true;
+            }
+        }
+
+        return subscribe(channel, connection, group, balance, filter, ack);
+    }
+
+    /**
+     * Returns the history of the channel and creates it on first use.
+     *
+     * @param channel The concrete channel.
+     * @return The history or null if no history is configured for the channel.
+     */
+    private ChannelHistory channelHistory(String channel) {
+
+        Map<String, Integer> configured = config.channelHistory();
+
+        if (configured.isEmpty() || channel == null) {
+            return null;
+        }
+
+        ChannelHistory history = channelHistories.get(channel);
+
+        if (history == null) {
+            // An exact channel is preferred over a pattern
+            Integer capacity = configured.get(channel);
+
+            if (capacity == null) {
+                for (Map.Entry<String, Integer> entry : configured.entrySet()) {
+                    if (ChannelPattern.isPattern(entry.getKey()) && ChannelPattern.matches(entry.getKey(), channel)) {
+                        capacity = entry.getValue();
+                        break;
+                    }
+                }
+            }
+
+            if (capacity != null && capacity > 0) {
+                int size = capacity;
+
+                history = channelHistories.computeIfAbsent(channel, c -> new ChannelHistory(size));
+            }
+        }
+
+        return history;
+    }
+
+    private boolean subscribe(String channel, Connection connection, String group, GroupBalance balance, Map<String, Set<String>> filter, boolean ack) {
 
-        if (channelSessions.containsKey(channel)) {
-            channelSessions.get(channel).add(connection);
+        if (ChannelPattern.isPattern(channel)) {
+            if (!ChannelPattern.isValid(channel)) {
+                LOGGER.log(Level.WARNING, "[{0}] Invalid channel pattern: {1}", new Object[]{connection.remoteAddress().toString(), channel});
+                return false;
+            }
+
+            if (group != null) {
+                LOGGER.log(Level.WARNING, "[{0}] Channel patterns cannot be subscribed in a group: {1}", new Object[]{connection.remoteAddress().toString(), channel});
+                return false;
+            }
+
+            patternSessions.add(channel, connection);
         } else {
-            channelSessions.put(channel, new CopyOnWriteArrayList<>(Collections.singletonList(connection)));
+            join(channel, connection, group, balance, filter, ack);
+        }
+
+        if (group != null) {
+            LOGGER.log(Level.FINE, "[{0}] Channel subscribed in group {2}: {1}", new Object[]{connection.remoteAddress().toString(), channel, group});
+        } else {
+            LOGGER.log(Level.FINE, "[{0}] Channel subscribed: {1}", new Object[]{connection.remoteAddress().toString(), channel});
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds the connection to the session of the channel, the session is created if the channel has none.
+     */
+    private void join(String channel, Connection connection, String group, GroupBalance balance, Map<String, Set<String>> filter, boolean ack) {
+
+        // Adding to the session is atomic with reclaiming it, so a subscriber never ends up in a removed session
+        channelSessions.compute(channel, (c, session) -> {
+
+            if (session == null) {
+                session = new ChannelSession<>(c);
+            }
+
+            if (ack) {
+                // Mark it first so the subscriber gets no message without a sequence number
+                session.acknowledge(connection);
+            }
+
+            session.add(connection, connection.name(), group, balance, filter);
+
+            return session;
+        });
+    }
+
+    /**
+     * Subscribes many channels without options at once, like all channels of a reconnecting subscriber.
+     * Channels with a history and channel patterns are subscribed one by one.
+     *
+     * @param channels The channels or channel patterns.
+     * @param connection The connection.
+     * @return The channels which were subscribed.
+     */
+    public List<String> subscribeChannels(Collection<String> channels, Connection connection) {
+
+        List<String> subscribed = new ArrayList<>(channels.size());
+
+        for (String channel : channels) {
+            if (ChannelPattern.isPattern(channel) || channelHistory(channel) != null) {
+                if (subscribeChannel(channel, connection)) {
+                    subscribed.add(channel);
+                }
+                continue;
+            }
+
+            join(channel, connection, null, null, null, false);
+            subscribed.add(channel);
         }
 
-        LOGGER.log(Level.FINE, "[{0}] Channel subscribed: {1}", new Object[]{connection.remoteAddress().toString(), channel});
+        LOGGER.log(Level.FINE, "[{0}] Channels subscribed: {1}", new Object[]{connection.remoteAddress().toString(), subscribed.size()});
+
+        return subscribed;
     }
 
     public void unsubscribeChannel(String channel, Connection connection) {
 
-        if (channelSessions.containsKey(channel)) {
-            channelSessions.get(channel).remove(connection);
+        if (ChannelPattern.isPattern(channel)) {
+            if (patternSessions.remove(channel, connection)) {
+                LOGGER.log(Level.FINE, "[{0}] Channel pattern unsubscribed: {1}", new Object[]{connection.remoteAddress().toString(), channel});
+            }
+        } else {
+            if (leave(channel, connection)) {
+                LOGGER.log(Level.FINE, "[{0}] Channel unsubscribed: {1}", new Object[]{connection.remoteAddress().toString(), channel});
+            }
+        }
+    }
+
+    /**
+     * Removes the connection from the session of the channel and reclaims the session if it was the last subscriber.
+     *
+     * @param channel The channel.
+     * @param connection The connection.
+     * @return True if the connection was a subscriber of the channel.
+     */
+    private boolean leave(String channel, Connection connection) {
 
-            LOGGER.log(Level.FINE, "[{0}] Channel unsubscribed: {1}", new Object[]{connection.remoteAddress().toString(), channel});
+        boolean[] removed = new boolean[1];
+
+        channelSessions.computeIfPresent(channel, (c, session) -> {
+
+            removed[0] = session.remove(connection, connection.name(), connection.group(c));
+
+            return session.isEmpty() ? null : session;
+        });
+
+        if (removed[0] && !channelSessions.containsKey(channel)) {
+            fanOuts.remove(channel);
+
+            LOGGER.log(Level.FINE, "Channel reclaimed: {0}", channel);
         }
+
+        return removed[0];
+    }
+
+    /**
+     * Updates the subscriber name index of all channels the connection has subscribed.
+     *
+     * @param connection The connection.
+     * @param oldName The previous name or null.
+     * @param newName The new name.
+     */
+    public void renameClient(Connection connection, String oldName, String newName) {
+
+        for (String channel : connection.channels()) {
+            ChannelSession<Connection> session = channelSessions.get(channel);
+
+            if (session != null) {
+                session.rename(connection, oldName, newName);
+            }
+        }
+    }
+
+    public void addClient(Connection connection) {
+
+        connections.add(connection);
+        connectionsById.put(connection.id(), connection);
     }
 
     public void removeClient(Connection connection) {
 
+        connections.remove(connection);
+        connectionsById.remove(connection.id());
+
+        for (String channel : connection.responding()) {
+            stopResponding(channel, connection);
+        }
+
+        if (connection.inbox()) {
+            inboxOffline(connection, connection.name());
+        }
+
         for (String s : connection.channels()) {
-            channelSessions.get(s).remove(connection);
+            if (ChannelPattern.isPattern(s)) {
+                patternSessions.remove(s, connection);
+            } else {
+                leave(s, connection);
+            }
         }
 
         if (!connection.channels().isEmpty()) {
@@ -213,55 +628,523 @@ public class ThorServer {
         }
     }
 
-    public void broadcast(Connection con, String channel, JSONObject data) {
+    /**
+     * Keeps the connection with its subscriptions for its client to resume the session.
+     *
+     * @param session The session token.
+     * @param connection The connection whose channel is closed.
+     */
+    public void detachSession(String session, Connection connection) {
+
+        detachedSessions.put(session, connection);
+    }
+
+    /**
+     * Takes the detached connection of the session, so only one client can resume it.
+     *
+     * @param session The session token.
+     * @return The connection or null if the session is unknown or has ended.
+     */
+    public Connection resumeSession(String session) {
+
+        return detachedSessions.remove(session);
+    }
+
+    /**
+     * Ends the session if it is still detached.
+     *
+     * @param session The session token.
+     * @param connection The detached connection.
+     * @return If the session was detached and has ended now.
+     */
+    public boolean endSession(String session, Connection connection) {
+
+        return detachedSessions.remove(session, connection);
+    }
+
+    public int detachedSessionCount() {
+
+        return detachedSessions.size();
+    }
+
+    /**
+     * Sends a direct message to the inbox of the subscriber name. It is buffered while no connection with the name receives its inbox.
+     * Inboxes are local to this server, direct messages are not sent to the cluster.
+     *
+     * @param subscriberName The subscriber name.
+     * @param frame The message.
+     */
+    public void sendToInbox(String subscriberName, Frame frame) {
 
-        if (channelSessions.containsKey(channel)) {
-            channelSessions.get(channel).stream().forEach(connection -> connection.send(data));
+        // The receiver knows its own name
+        Frame message = new Frame(OpCode.OP_INBOX).body(frame.body());
+
+        inboxes.compute(subscriberName, (name, inbox) -> {
+
+            if (inbox == null) {
+                if (inboxes.size() >= config.inboxMaxCount()) {
+                    LOGGER.log(Level.FINE, "Dropped direct message to {0}, the server holds {1} inboxes", new Object[]{name, String.valueOf(inboxes.size())});
+                    return null;
+                }
+
+                inbox = inbox(name);
+            }
+
+            inbox.deliver(message);
+
+            return inbox;
+        });
+    }
+
+    /**
+     * Lets the connection receive the inbox of its name, starting with the buffered messages.
+     * Must be called from the event loop of the connection.
+     *
+     * @param connection The connection.
+     */
+    public void inboxOnline(Connection connection) {
+
+        inboxes.compute(connection.name(), (name, inbox) -> {
+
+            if (inbox == null) {
+                inbox = inbox(name);
+            }
+
+            inbox.online(connection);
+
+            return inbox;
+        });
+    }
+
+    private Inbox inbox(String name) {
+
+        return new Inbox(name, config.inboxMaxBytes(), config.inboxTimeToLiveMillis(), inboxBytes, config.inboxMaxTotalBytes());
+    }
+
+    /**
+     * Stops sending the inbox of the name to the connection, the inbox is removed once it is empty.
+     *
+     * @param connection The connection.
+     * @param name The name the connection received the inbox for.
+     */
+    public void inboxOffline(Connection connection, String name) {
+
+        if (name == null) {
+            return;
         }
 
-        // Broadcast it to the cluster if possible
-        clusterPubSubBroadcast(con, channel, data);
+        inboxes.computeIfPresent(name, (n, inbox) -> {
+
+            inbox.offline(connection);
+
+            return inbox.isEmpty() ? null : inbox;
+        });
+    }
+
+    public Collection<Inbox> inboxes() {
+
+        return Collections.unmodifiableCollection(inboxes.values());
+    }
+
+    /**
+     * Lets the connection answer the requests of the channel.
+     * Responders are kept apart from the subscribers of the channel, every request goes to one of them.
+     *
+     * @param channel The concrete channel.
+     * @param connection The responder.
+     * @param balance The balance of the responders, only used for the first responder.
+     *                The responder of a request only depends on the requesting connection, see {@link #request(Connection, Frame)}.
+     */
+    public void respond(String channel, Connection connection, GroupBalance balance) {
+
+        responders.compute(channel, (name, group) -> {
+
+            if (group == null) {
+                group = new ConsumerGroup<>(name, balance);
+            }
+
+            group.add(connection);
+
+            return group;
+        });
+    }
+
+    public void stopResponding(String channel, Connection connection) {
+
+        responders.computeIfPresent(channel, (name, group) -> {
+
+            group.remove(connection);
+
+            return group.isEmpty() ? null : group;
+        });
+    }
+
+    /**
+     * Sends the request to one responder of its channel together with the id of the requesting connection.
+     * All requests of a connection go to the same responder as long as the responders do not change.
+     * A request for a channel without responders is answered right away with a reply which carries the channel.
+     * Requests and replies are local to this server, they are not sent to the cluster.
+     *
+     * @param requester The connection the request came from.
+     * @param frame The request.
+     */
+    public void request(Connection requester, Frame frame) {
+
+        ConsumerGroup<Connection> group = responders.get(frame.channel());
+        // The requests of one connection stay with one responder, so they are answered in the order they were sent
+        Connection responder = (group != null) ? group.select(Long.hashCode(requester.id())) : null;
+
+        if (responder == null) {
+            requester.send(new Frame(OpCode.OP_REPLY)
+                    .channel(frame.channel())
+                    .id(frame.id()));
+            return;
+        }
+
+        // Registered before the request goes out, the reply can not overtake it then
+        responder.requested(requester.id(), frame.id());
+
+        responder.send(new Frame(OpCode.OP_REQUEST)
+                .channel(frame.channel())
+                .id(frame.id())
+                .replyTo(requester.id())
+                .body(frame.body()));
+    }
+
+    /**
+     * Routes the reply straight to the connection of the request, without looking at any channel.
+     * Replies to requests which the responder did not get or already answered are dropped.
+     *
+     * @param responder The connection the reply came from.
+     * @param frame The reply with the id of the requesting connection.
+     */
+    public void reply(Connection responder, Frame frame) {
+
+        if (!responder.replied(frame.replyTo(), frame.id())) {
+            LOGGER.log(Level.FINE, "[{0}] Dropped reply {1} to a request it did not get", new Object[]{responder.remoteAddress().toString(), String.valueOf(frame.id())});
+            return;
+        }
+
+        Connection requester = connectionsById.get(frame.replyTo());
+
+        if (requester != null) {
+            requester.send(new Frame(OpCode.OP_REPLY)
+                    .id(frame.id())
+                    .body(frame.body()));
+        }
     }
 
-    public void broadcastTo(Connection con, String channel, JSONObject data, String subscriberName) {
+    /**
+     * Holds the message until its delivery time and broadcasts it then like any other message.
+     * Scheduled messages are local to this server, they are sent to the cluster once they are due.
+     *
+     * @param frame The {@link OpCode#OP_SCHEDULE} frame with channel and delivery time.
+     * @return False if the message was dropped because the server holds too many scheduled messages.
+     */
+    public boolean schedule(Frame frame) {
+
+        return scheduler.schedule(frame);
+    }
 
-        JSONObject clusterData = new JSONObject(data);
+    public void broadcast(Connection con, String channel, Frame frame) {
 
-        if (channelSessions.containsKey(channel)) {
-            // Remove the subscriber name to save bandwidth and remove the unneeded key
-            data.remove("su");
+        ChannelLog log = messageLog.log(channel);
+        ChannelSession<Connection> session = channelSessions.get(channel);
+        boolean sequenced = session != null && session.hasAcknowledged();
 
-            // Get the correct data to send
-            //String broadcastData = data.toString();
+        if (log != null) {
+            // The subscribers get the messages of a durable channel in the order of their offsets
+            synchronized (log) {
+                frame.offset(log.nextOffset());
+                // Every ack window of a subscriber puts its own sequence number into the message
+                frame.sequence(sequenced ? 0 : -1);
 
-            // Find the subscribers with that name and route it to these
-            for (Connection filteredConnection : channelSessions.get(channel).stream().filter(connection -> connection.name().equals(subscriberName)).collect(Collectors.toList())) {
-                filteredConnection.send(data);
+                broadcast(con, channel, frame, log, true);
+            }
+            return;
+        }
+
+        // Offsets only belong to the log of this server
+        frame.offset(-1);
+
+        // Every ack window of a subscriber puts its own sequence number into the message
+        frame.sequence(sequenced ? 0 : -1);
+
+        broadcast(con, channel, frame, null, false);
+    }
+
+    private void broadcast(Connection con, String channel, Frame frame, ChannelLog log, boolean ordered) {
+
+        // Encode the frame only once for all subscribers, the log and the cluster
+        // Connections which know the id of the channel get the message with it
+        EncodedFrame encodedFrame = new EncodedFrame(frame, PooledByteBufAllocator.DEFAULT)
+                .channelId(channelIds.id(channel))
+                .conflationKey(conflationKey(channel, frame));
+        InboundLimit inboundLimit = (con != null) ? con.inboundLimit() : null;
+
+        try {
+            if (log != null) {
+                log.append(encodedFrame);
+            }
+
+            ChannelHistory history = channelHistory(channel);
+
+            if (history != null) {
+                // A subscriber gets the message either from the history or from the delivery
+                synchronized (history) {
+                    history.add(encodedFrame);
+
+                    deliver(channel, encodedFrame, inboundLimit, ordered);
+                }
+            } else {
+                deliver(channel, encodedFrame, inboundLimit, ordered);
+            }
+
+            // Broadcast it to the cluster if possible
+            clusterBroadcast(con, encodedFrame);
+        } finally {
+            encodedFrame.release();
+        }
+    }
+
+    private void deliver(String channel, EncodedFrame encodedFrame, InboundLimit inboundLimit, boolean ordered) {
+
+        fanOut(channel).send(encodedFrame, inboundLimit, ordered);
+
+        ChannelSession<Connection> session = channelSessions.get(channel);
+
+        if (session == null) {
+            return;
+        }
+
+        // Subscribers with a filter only get the messages they would handle
+        FilterIndex<Connection> filters = session.filters();
+        if (!filters.keys().isEmpty()) {
+            Frame frame = encodedFrame.frame();
+            FanOut filtered;
+
+            if (frame.opCode() == OpCode.OP_CHUNK) {
+                // The members of a chunked message are only known after the subscriber reassembled it
+                filtered = filteredFanOut(channel, filters.all());
+            } else {
+                try {
+                    // The fan out of the subscribers of a single value is reused until they change
+                    filtered = filters.match(JsonFrameCodec.strings(frame.body(), filters.keys()), patternSessions.version(), matched -> filteredFanOut(channel, matched));
+                } catch (CorruptedFrameException e) {
+                    // Let the subscribers decide what to do with a body which is no JSON object
+                    filtered = filteredFanOut(channel, filters.all());
+                }
+            }
+
+            if (filtered != null) {
+                filtered.send(encodedFrame, inboundLimit, ordered);
+            }
+        }
+
+        Collection<ConsumerGroup<Connection>> groups = session.groups();
+        if (groups.isEmpty()) {
+            return;
+        }
+
+        // All chunks of one transfer go to the same member, no other member could reassemble the message
+        String transferId = (encodedFrame.frame().opCode() == OpCode.OP_CHUNK) ? ChunkUtil.transferId(encodedFrame.frame()) : null;
+
+        // Every consumer group gets the message once
+        for (ConsumerGroup<Connection> group : groups) {
+            Connection member = (transferId != null) ? group.select(transferId.hashCode()) : group.select(Connection::writable, Connection::outstandingBytes);
+
+            if (member != null) {
+                member.send(encodedFrame, inboundLimit);
+            }
+        }
+    }
+
+    /**
+     * Builds the fan out to the subscribers with a filter which matched a message.
+     *
+     * @param channel The concrete channel.
+     * @param matched The matching subscribers.
+     * @return The fan out without the connections which also subscribed a matching pattern, they already got the message.
+     */
+    private FanOut filteredFanOut(String channel, Collection<Connection> matched) {
+
+        List<Connection> patternSubscribers = patternSessions.match(channel);
+
+        if (!patternSubscribers.isEmpty()) {
+            matched = new ArrayList<>(matched);
+            matched.removeAll(patternSubscribers);
+        }
+
+        return FanOut.of(matched);
+    }
+
+    /**
+     * Reads the conflation key of a message once, so the subscribers do not have to look into the body.
+     *
+     * @param channel The concrete channel.
+     * @param frame The message.
+     * @return The value of the configured key member or null if the message is not conflated by key.
+     */
+    private String conflationKey(String channel, Frame frame) {
+
+        String member = channelConflation.keyMember(channel);
+
+        // The parts of a chunked message are never conflated
+        if (member == null || frame.opCode() == OpCode.OP_CHUNK) {
+            return null;
+        }
+
+        try {
+            return JsonFrameCodec.value(frame.body(), member);
+        } catch (CorruptedFrameException e) {
+            return null;
+        }
+    }
+
+    public void broadcastTo(Connection con, String channel, Frame frame, String subscriberName) {
+
+        Collection<Connection> subscribers = subscribers(channel, subscriberName);
+
+        if (!subscribers.isEmpty()) {
+            // Leave out the subscriber name to save bandwidth, the cluster still needs it
+            EncodedFrame data = new EncodedFrame(new Frame(frame.opCode())
+                    .channel(channel)
+                    .body(frame.body()), PooledByteBufAllocator.DEFAULT)
+                    .channelId(channelIds.id(channel))
+                    .conflationKey(conflationKey(channel, frame));
+
+            try {
+                for (Connection connection : subscribers) {
+                    connection.send(data, (con != null) ? con.inboundLimit() : null);
+                }
+            } finally {
+                data.release();
             }
         }
 
         // Broadcast it to the cluster if possible
-        clusterPubSubBroadcast(con, channel, clusterData);
+        clusterBroadcast(con, frame);
+    }
+
+    /**
+     * Returns the subscribers of the channel grouped by their event loop.
+     * The grouping is cached per channel until the subscribers of the channel or the patterns change.
+     *
+     * @param channel The concrete channel.
+     * @return The fan out of the channel.
+     */
+    private FanOut fanOut(String channel) {
+
+        // Read the versions before the subscribers, so a concurrent change always invalidates the result
+        ChannelSession<Connection> session = channelSessions.get(channel);
+        long sessionVersion = (session != null) ? session.version() : -1;
+        long patternVersion = patternSessions.version();
+
+        CachedFanOut cached = fanOuts.get(channel);
+
+        if (cached == null || cached.session != session || cached.sessionVersion != sessionVersion || cached.patternVersion != patternVersion) {
+            cached = new CachedFanOut(FanOut.of(subscribers(channel)), session, sessionVersion, patternVersion);
+
+            if (fanOuts.size() >= MAX_CACHED_FAN_OUTS) {
+                fanOuts.clear();
+            }
+            fanOuts.put(channel, cached);
+        }
+
+        return cached.fanOut;
+    }
+
+    /**
+     * Returns all connections which subscribed the channel itself or a pattern which matches it.
+     *
+     * @param channel The concrete channel.
+     * @return The subscribed connections, every connection only once.
+     */
+    private Collection<Connection> subscribers(String channel) {
+
+        ChannelSession<Connection> session = channelSessions.get(channel);
+
+        return merge((session != null) ? session.subscribers() : Collections.emptyList(), patternSessions.match(channel), null);
+    }
+
+    /**
+     * Returns all connections with the given subscriber name which subscribed the channel itself
+     * or a pattern which matches it. Exact subscriptions are looked up in the name index of the channel.
+     *
+     * @param channel The concrete channel.
+     * @param subscriberName The subscriber name.
+     * @return The subscribed connections with that name, every connection only once.
+     */
+    private Collection<Connection> subscribers(String channel, String subscriberName) {
+
+        ChannelSession<Connection> session = channelSessions.get(channel);
+
+        return merge((session != null) ? session.subscribers(subscriberName) : Collections.emptyList(), patternSessions.match(channel), subscriberName);
+    }
+
+    private static Collection<Connection> merge(List<Connection> exact, List<Connection> matched, String subscriberName) {
+
+        if (matched.isEmpty()) {
+            return exact;
+        }
+
+        // Connections which subscribed the channel and a matching pattern only get it once
+        Set<Connection> subscribers = new LinkedHashSet<>(exact);
+        for (Connection connection : matched) {
+            if (subscriberName == null || subscriberName.equals(connection.name())) {
+                subscribers.add(connection);
+            }
+        }
+
+        return subscribers;
     }
 
-    private void clusterPubSubBroadcast(Connection connection, String channel, JSONObject data) {
+    public void clusterBroadcast(Connection connection, Frame frame) {
 
         if (clusterPublisher.size() > 0) {
-            JSONObject clusterMessage = new JSONObject(data)
-                    .put("op", OpCode.OP_BROADCAST.getCode())
-                    .put("ch", channel);
+            EncodedFrame encodedFrame = new EncodedFrame(frame, PooledByteBufAllocator.DEFAULT);
 
-            clusterBroadcast(connection, clusterMessage);
+            try {
+                clusterBroadcast(connection, encodedFrame);
+            } finally {
+                encodedFrame.release();
+            }
         }
     }
 
-    public void clusterBroadcast(Connection connection, JSONObject data) {
+    public void clusterBroadcast(Connection connection, EncodedFrame encodedFrame) {
 
         // Publish it to all clusters but exclude the server which has sent it
         // if it comes from another Thor server but also publish it
         // if a normal publisher client has sent it
         clusterPublisher.stream().filter(cl -> ((connection == null || connection.host() == null) || (connection.host() != null && connection.port() != cl.port && !connection.host().equals(cl.host))))
-                .forEach(cl -> cl.write(data));
+                .forEach(cl -> cl.write(encodedFrame, (connection != null) ? connection.inboundLimit() : null));
+    }
+
+    /**
+     * Creates a snapshot of the cache and one of the scheduled messages.
+     */
+    public void snapshot() {
+
+        cache.snapshot();
+        scheduler.snapshot();
+    }
+
+    /**
+     * Loads a snapshot of either the scheduled messages or the cache.
+     *
+     * @param path The path of the snapshot file.
+     */
+    public void loadSnapshot(String path) {
+
+        if (!scheduler.loadSnapshot(path)) {
+            cache.loadSnapshot(path);
+        }
+    }
+
+    public MessageScheduler scheduler() {
+
+        return scheduler;
     }
 
     public ThorCache cache() {
@@ -269,7 +1152,64 @@ public class ThorServer {
         return cache;
     }
 
-    public static class ClusterPublisher extends SimpleChannelInboundHandler<JSONObject> {
+    public Config config() {
+
+        return config;
+    }
+
+    public ChannelPriorities channelPriorities() {
+
+        return channelPriorities;
+    }
+
+    /**
+     * Returns the port the server is bound to, which differs from the configured one if that is 0.
+     */
+    public int port() {
+
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    public ChannelIdRegistry channelIds() {
+
+        return channelIds;
+    }
+
+    /**
+     * Returns the number of channels which have at least one subscriber, channel patterns are not counted.
+     */
+    public int channelCount() {
+
+        return channelSessions.size();
+    }
+
+    public Set<Connection> connections() {
+
+        return Collections.unmodifiableSet(connections);
+    }
+
+    private static class CachedFanOut {
+
+        private FanOut fanOut;
+
+        private ChannelSession<Connection> session;
+
+        private long sessionVersion;
+
+        private long patternVersion;
+
+        private CachedFanOut(FanOut fanOut, ChannelSession<Connection> session, long sessionVersion, long patternVersion) {
+
+            this.fanOut = fanOut;
+            this.session = session;
+            this.sessionVersion = sessionVersion;
+            this.patternVersion = patternVersion;
+        }
+    }
+
+    public static class ClusterPublisher extends SimpleChannelInboundHandler<Frame> {
+
+        private ThorServer server;
 
         private String host;
 
@@ -277,24 +1217,36 @@ public class ThorServer {
 
         private boolean connected;
 
+        private EventLoopGroup group;
+
         private Channel channel;
 
-        public ClusterPublisher(String host, int port) {
+        private WriteQueue writeQueue;
+
+        private Config config;
 
+        public ClusterPublisher(ThorServer server, String host, int port, Config config) {
+
+            this.server = server;
             this.host = host;
             this.port = port;
+            this.config = config;
         }
 
         private boolean connect() {
 
+            group = PipelineUtils.newEventLoopGroup(1);
+
             ChannelFuture channelFuture = new Bootstrap()
-                    .group(PipelineUtils.newEventLoopGroup(1))
+                    .group(group)
                     .channel(PipelineUtils.getChannel())
-                    .handler(new ClusterPublisherChannelInitializer(this))
+                    .handler(new ClusterPublisherChannelInitializer(this, config.maxFrameSize()))
                     .option(ChannelOption.TCP_NODELAY, true)
                     .connect(host, port);
 
             channel = channelFuture.channel();
+            // Channel messages are subject to the cluster policy, too many control messages end the link
+            writeQueue = new WriteQueue(channel, config, config.clusterSlowConsumerPolicy(), null, config.clusterMaxBytes());
 
             CountDownLatch countDownLatch = new CountDownLatch(1);
 
@@ -314,16 +1266,50 @@ public class ThorServer {
                 e.printStackTrace();
             }
 
+            if (!connected) {
+                group.shutdownGracefully();
+            }
+
             return connected;
         }
 
-        public void write(JSONObject jsonObject) {
+        private void close() {
+
+            channel.close();
+            group.shutdownGracefully();
+        }
+
+        public void write(Frame frame) {
+
+            writeQueue.write(frame);
+        }
+
+        public void write(EncodedFrame encodedFrame, InboundLimit inboundLimit) {
+
+            writeQueue.write(encodedFrame.retainedBuffer(Protocol.of(channel)), encodedFrame.frame().channel(), inboundLimit);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+
+            writeQueue.writabilityChanged();
+
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+
+            writeQueue.close();
+            group.shutdownGracefully();
+
+            server.clusterLinkLost(this);
 
-            channel.writeAndFlush(jsonObject);
+            super.channelInactive(ctx);
         }
 
         @Override
-        protected void channelRead0(ChannelHandlerContext channelHandlerContext, JSONObject jsonObject) throws Exception {
+        protected void channelRead0(ChannelHandlerContext channelHandlerContext, Frame frame) throws Exception {
 
         }
     }
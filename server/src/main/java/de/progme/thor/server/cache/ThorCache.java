@@ -25,6 +25,7 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -154,6 +155,14 @@ public class ThorCache {
         }
     }
 
+    /**
+     * Returns a read only view of the entries, expired entries might still be part of it.
+     */
+    public Map<String, CacheEntry> entries() {
+
+        return Collections.unmodifiableMap(cache);
+    }
+
     public void close() {
 
         if(executorService != null) {
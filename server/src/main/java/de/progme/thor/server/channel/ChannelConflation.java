@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.channel;
+
+import de.progme.thor.shared.net.ChannelPattern;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The channels which carry state updates, so only the latest message per key has to reach a slow subscriber.
+ * They are configured with a channel name or channel pattern and the member which holds the key,
+ * the result is cached per channel.
+ */
+public class ChannelConflation {
+
+    private static final int MAX_CACHED_CHANNELS = 16384;
+
+    private static final String NONE = "";
+
+    private Map<String, String> keys;
+
+    private Map<String, String> cache = new ConcurrentHashMap<>();
+
+    public ChannelConflation(Map<String, String> keys) {
+
+        if (keys == null) {
+            throw new IllegalArgumentException("keys cannot be null");
+        }
+
+        this.keys = keys;
+    }
+
+    /**
+     * Returns the member whose value is the conflation key of the messages of the channel.
+     * A channel name takes precedence over the patterns it matches.
+     *
+     * @param channel The concrete channel.
+     * @return The member name or null if the channel is not conflated.
+     */
+    public String keyMember(String channel) {
+
+        if (keys.isEmpty() || channel == null) {
+            return null;
+        }
+
+        String member = cache.get(channel);
+
+        if (member == null) {
+            member = keys.get(channel);
+
+            if (member == null) {
+                member = NONE;
+
+                for (Map.Entry<String, String> entry : keys.entrySet()) {
+                    if (ChannelPattern.isPattern(entry.getKey()) && ChannelPattern.matches(entry.getKey(), channel)) {
+                        member = entry.getValue();
+                        break;
+                    }
+                }
+            }
+
+            if (cache.size() >= MAX_CACHED_CHANNELS) {
+                cache.clear();
+            }
+            cache.put(channel, member);
+        }
+
+        return member.isEmpty() ? null : member;
+    }
+}
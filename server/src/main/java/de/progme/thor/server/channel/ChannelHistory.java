@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.channel;
+
+import de.progme.thor.shared.net.EncodedFrame;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.Protocol;
+import de.progme.thor.shared.pipeline.handler.FrameEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.function.Consumer;
+
+/**
+ * The last messages of a channel in a preallocated ring buffer, so new subscribers get the current state
+ * of the channel right after they subscribed. A size of one retains only the last message.
+ *
+ * The messages are kept binary encoded without their log offset and sequence number, which only belong to the live delivery.
+ * All methods are synchronized on the history, so the caller can hold the lock to keep the replay and the subscription
+ * of a new subscriber apart from new messages. An idle history shrinks to its last message, which stays retained,
+ * and only an empty history is evicted. A history which was evicted ignores new messages.
+ */
+public class ChannelHistory {
+
+    private int capacity;
+
+    private ByteBuf[] ring;
+
+    private int next;
+
+    private int size;
+
+    private long lastAdded = System.currentTimeMillis();
+
+    private boolean evicted;
+
+    public ChannelHistory(int capacity) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        this.capacity = capacity;
+        this.ring = new ByteBuf[capacity];
+    }
+
+    /**
+     * Adds the message and drops the oldest one if the history is full.
+     *
+     * @param encodedFrame The message.
+     */
+    public synchronized void add(EncodedFrame encodedFrame) {
+
+        if (evicted) {
+            return;
+        }
+
+        if (ring.length < capacity) {
+            resize(capacity);
+        }
+
+        ByteBuf previous = ring[next];
+        if (previous != null) {
+            previous.release();
+        }
+
+        ring[next] = untagged(encodedFrame);
+        next = (next + 1) % ring.length;
+        lastAdded = System.currentTimeMillis();
+
+        if (size < ring.length) {
+            size++;
+        }
+    }
+
+    /**
+     * Returns a copy of the binary encoded message the history owns, so it outlives the pooled buffer of the encoded frame.
+     */
+    private static ByteBuf untagged(EncodedFrame encodedFrame) {
+
+        Frame frame = encodedFrame.frame();
+
+        if (!frame.hasOffset() && !frame.hasSequence()) {
+            ByteBuf encoded = encodedFrame.retainedBuffer(Protocol.BINARY);
+
+            try {
+                return encoded.copy();
+            } finally {
+                encoded.release();
+            }
+        }
+
+        Frame untagged = new Frame(frame.opCode())
+                .channel(frame.channel())
+                .subscriber(frame.subscriber())
+                .body(frame.body());
+
+        ByteBuf byteBuf = Unpooled.buffer(frame.body().length + 64);
+        FrameEncoder.encode(untagged, Protocol.BINARY, byteBuf);
+
+        return byteBuf;
+    }
+
+    /**
+     * Drops all but the last message if no message was added for the given time, the ring grows again with the next message.
+     * An empty history is evicted and ignores new messages.
+     *
+     * @param idleMillis The time without new messages after which the history shrinks.
+     * @return True if the history was evicted.
+     */
+    public synchronized boolean evictIfIdle(long idleMillis) {
+
+        if (System.currentTimeMillis() - lastAdded < idleMillis) {
+            return false;
+        }
+
+        if (size == 0) {
+            evicted = true;
+            return true;
+        }
+
+        // The last message is the retained state of the channel
+        if (ring.length > 1) {
+            int last = (next - 1 + ring.length) % ring.length;
+
+            for (int i = 0; i < ring.length; i++) {
+                if (i != last && ring[i] != null) {
+                    ring[i].release();
+                    ring[i] = null;
+                }
+            }
+
+            next = (last + 1) % ring.length;
+            size = 1;
+
+            resize(1);
+        }
+
+        return false;
+    }
+
+    /**
+     * Moves the messages from the oldest to the newest into a ring of the given length.
+     */
+    private void resize(int length) {
+
+        ByteBuf[] resized = new ByteBuf[length];
+        int first = (next - size + ring.length) % ring.length;
+
+        for (int i = 0; i < size; i++) {
+            resized[i] = ring[(first + i) % ring.length];
+        }
+
+        ring = resized;
+        next = size % length;
+    }
+
+    /**
+     * Hands all messages from the oldest to the newest to the consumer.
+     *
+     * @param consumer Gets retained duplicates of the binary encoded frames including their length field.
+     */
+    public synchronized void read(Consumer<ByteBuf> consumer) {
+
+        int first = (next - size + ring.length) % ring.length;
+
+        for (int i = 0; i < size; i++) {
+            consumer.accept(ring[(first + i) % ring.length].retainedDuplicate());
+        }
+    }
+
+    public synchronized void clear() {
+
+        for (int i = 0; i < ring.length; i++) {
+            if (ring[i] != null) {
+                ring[i].release();
+                ring[i] = null;
+            }
+        }
+
+        next = 0;
+        size = 0;
+    }
+
+    public int capacity() {
+
+        return capacity;
+    }
+
+    public synchronized int size() {
+
+        return size;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.progme.thor.server.channel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out the numeric channel ids of the server.
+ *
+ * Every connection which got the id of a channel holds a reference to it. The id of a channel is removed
+ * once the last of these connections released it, so ids of dynamic channel names do not pile up.
+ * Ids are not reused while they are handed out. Looking up ids is lock free.
+ */
+public class ChannelIdRegistry {
+
+    private Map<String, Entry> ids = new ConcurrentHashMap<>();
+
+    private Map<Integer, String> channels = new ConcurrentHashMap<>();
+
+    private int nextId;
+
+    /**
+     * Returns the id of the channel and adds a reference to it, a new id is created if the channel has none.
+     *
+     * @param channel The channel.
+     * @return The channel id.
+     */
+    public synchronized int acquire(String channel) {
+
+        Entry entry = ids.get(channel);
+
+        if (entry == null) {
+            // Skip the ids which are still handed out after the counter wrapped around
+            while (channels.containsKey(nextId)) {
+                nextId = (nextId + 1) & Integer.MAX_VALUE;
+            }
+
+            entry = new Entry(nextId);
+            nextId = (nextId + 1) & Integer.MAX_VALUE;
+
+            ids.put(channel, entry);
+            channels.put(entry.id, channel);
+        }
+
+        entry.references++;
+
+        return entry.id;
+    }
+
+    /**
+     * Removes a reference to the id of the channel and removes the id if it was the last one.
+     *
+     * @param channel The channel.
+     */
+    public synchronized void release(String channel) {
+
+        Entry entry = ids.get(channel);
+
+        if (entry != null && --entry.references <= 0) {
+            ids.remove(channel);
+            channels.remove(entry.id);
+        }
+    }
+
+    /**
+     * Returns the id of the channel without adding a reference.
+     *
+     * @param channel The channel.
+     * @return The id or -1 if the channel has no id.
+     */
+    public int id(String channel) {
+
+        Entry entry = ids.get(channel);
+
+        return (entry != null) ? entry.id : -1;
+    }
+
+    public String channel(int id) {
+
+        return channels.get(id);
+    }
+
+    public int size() {
+
+        return ids.size();
+    }
+
+    private static class Entry {
+
+        private final int id;
+
+        private int references;
+
+        private Entry(int id) {
+
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.channel;
+
+import de.progme.thor.shared.net.ChannelPattern;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The channels whose messages are sent to a subscriber before the messages of all other channels.
+ * They are configured with channel names or channel patterns, the result is cached per channel.
+ */
+public class ChannelPriorities {
+
+    private static final int MAX_CACHED_CHANNELS = 16384;
+
+    private List<String> channels;
+
+    private Map<String, Boolean> cache = new ConcurrentHashMap<>();
+
+    public ChannelPriorities(List<String> channels) {
+
+        if (channels == null) {
+            throw new IllegalArgumentException("channels cannot be null");
+        }
+
+        this.channels = channels;
+    }
+
+    /**
+     * Returns if the messages of the channel are sent with priority.
+     *
+     * @param channel The concrete channel.
+     * @return True if the channel or a matching pattern is configured as priority channel.
+     */
+    public boolean isPriority(String channel) {
+
+        if (channels.isEmpty() || channel == null) {
+            return false;
+        }
+
+        Boolean priority = cache.get(channel);
+
+        if (priority == null) {
+            priority = false;
+
+            for (String configured : channels) {
+                if (configured.equals(channel) || (ChannelPattern.isPattern(configured) && ChannelPattern.matches(configured, channel))) {
+                    priority = true;
+                    break;
+                }
+            }
+
+            if (cache.size() >= MAX_CACHED_CHANNELS) {
+                cache.clear();
+            }
+            cache.put(channel, priority);
+        }
+
+        return priority;
+    }
+}
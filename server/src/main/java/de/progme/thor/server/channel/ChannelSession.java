@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.channel;
+
+import de.progme.thor.shared.net.GroupBalance;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The subscribers of one channel together with an index of them by subscriber name,
+ * so a message for a named subscriber is routed without looking at all subscribers.
+ * Members of a consumer group are kept in their {@link ConsumerGroup} and subscribers which filter the messages
+ * in the {@link FilterIndex} instead of the subscriber list.
+ *
+ * Changes are synchronized and O(1), reading the subscribers is lock free.
+ * See {@link SubscriberSet} for how the subscribers are stored.
+ *
+ * @param <T> The type of the subscribers.
+ */
+public class ChannelSession<T> {
+
+    private String channel;
+
+    private SubscriberSet<T> subscribers = new SubscriberSet<>();
+
+    private Map<String, SubscriberSet<T>> named = new ConcurrentHashMap<>();
+
+    private Map<String, ConsumerGroup<T>> groups = new ConcurrentHashMap<>();
+
+    private FilterIndex<T> filters = new FilterIndex<>();
+
+    private Set<T> acknowledged = ConcurrentHashMap.newKeySet();
+
+    private volatile long version;
+
+    public ChannelSession(String channel) {
+
+        this.channel = channel;
+    }
+
+    public void add(T subscriber, String name) {
+
+        add(subscriber, name, null, null);
+    }
+
+    /**
+     * Adds the subscriber, either to the subscribers or as member of a consumer group.
+     *
+     * @param subscriber The subscriber.
+     * @param name The subscriber name or null.
+     * @param group The consumer group or null.
+     * @param balance How the group selects its members, only used if the group is created.
+     */
+    public void add(T subscriber, String name, String group, GroupBalance balance) {
+
+        add(subscriber, name, group, balance, null);
+    }
+
+    /**
+     * Adds the subscriber, either to the subscribers, as member of a consumer group or with a filter.
+     *
+     * @param subscriber The subscriber.
+     * @param name The subscriber name or null.
+     * @param group The consumer group or null.
+     * @param balance How the group selects its members, only used if the group is created.
+     * @param filter The accepted string values by member name or null, not used for group members.
+     */
+    public synchronized void add(T subscriber, String name, String group, GroupBalance balance, Map<String, Set<String>> filter) {
+
+        // A subscriber which subscribed again only keeps its new membership
+        leaveGroups(subscriber, group);
+
+        if (group == null && filter != null && !filter.isEmpty()) {
+            // A subscriber which subscribed again with a filter only gets the matching messages
+            if (subscribers.remove(subscriber)) {
+                version++;
+            }
+
+            filters.add(subscriber, filter);
+        } else if (group == null) {
+            filters.remove(subscriber);
+
+            if (subscribers.add(subscriber)) {
+                version++;
+            }
+        } else {
+            if (subscribers.remove(subscriber)) {
+                version++;
+            }
+            filters.remove(subscriber);
+
+            groups.computeIfAbsent(group, g -> new ConsumerGroup<>(g, balance != null ? balance : GroupBalance.ROUND_ROBIN)).add(subscriber);
+        }
+
+        if (name != null) {
+            named.computeIfAbsent(name, n -> new SubscriberSet<>()).add(subscriber);
+        }
+    }
+
+    public boolean remove(T subscriber, String name) {
+
+        return remove(subscriber, name, null);
+    }
+
+    public synchronized boolean remove(T subscriber, String name, String group) {
+
+        if (group == null) {
+            if (subscribers.remove(subscriber)) {
+                version++;
+            } else if (!filters.remove(subscriber)) {
+                return false;
+            }
+        } else {
+            ConsumerGroup<T> consumerGroup = groups.get(group);
+
+            if (consumerGroup == null || !consumerGroup.remove(subscriber)) {
+                return false;
+            }
+
+            if (consumerGroup.isEmpty()) {
+                groups.remove(group);
+            }
+        }
+
+        if (name != null) {
+            removeNamed(subscriber, name);
+        }
+
+        acknowledged.remove(subscriber);
+
+        return true;
+    }
+
+    /**
+     * Moves the subscriber to its new name in the index.
+     *
+     * @param subscriber The subscriber.
+     * @param oldName The previous name or null.
+     * @param newName The new name or null.
+     */
+    public synchronized void rename(T subscriber, String oldName, String newName) {
+
+        if (!contains(subscriber)) {
+            return;
+        }
+
+        if (oldName != null) {
+            removeNamed(subscriber, oldName);
+        }
+
+        if (newName != null) {
+            named.computeIfAbsent(newName, n -> new SubscriberSet<>()).add(subscriber);
+        }
+    }
+
+    /**
+     * Marks the subscriber as acknowledged subscriber, so the messages of the channel get sequence numbers.
+     *
+     * @param subscriber The subscriber.
+     */
+    public void acknowledge(T subscriber) {
+
+        acknowledged.add(subscriber);
+    }
+
+    public boolean hasAcknowledged() {
+
+        return !acknowledged.isEmpty();
+    }
+
+    private boolean contains(T subscriber) {
+
+        if (subscribers.contains(subscriber) || filters.contains(subscriber)) {
+            return true;
+        }
+
+        for (ConsumerGroup<T> group : groups.values()) {
+            if (group.contains(subscriber)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes the subscriber from all consumer groups but the given one.
+     */
+    private void leaveGroups(T subscriber, String keep) {
+
+        groups.entrySet().removeIf(entry -> {
+
+            if (entry.getKey().equals(keep)) {
+                return false;
+            }
+
+            ConsumerGroup<T> consumerGroup = entry.getValue();
+            consumerGroup.remove(subscriber);
+
+            return consumerGroup.isEmpty();
+        });
+    }
+
+    private void removeNamed(T subscriber, String name) {
+
+        SubscriberSet<T> set = named.get(name);
+
+        if (set != null) {
+            set.remove(subscriber);
+
+            if (set.isEmpty()) {
+                named.remove(name);
+            }
+        }
+    }
+
+    public String channel() {
+
+        return channel;
+    }
+
+    /**
+     * Returns the subscribers which are neither in a consumer group nor filter the messages.
+     *
+     * @return An immutable snapshot of the subscribers.
+     */
+    public List<T> subscribers() {
+
+        return subscribers.snapshot();
+    }
+
+    /**
+     * Returns the subscribers with the given name.
+     *
+     * @param name The subscriber name.
+     * @return The subscribers, an empty list if there are none.
+     */
+    public List<T> subscribers(String name) {
+
+        SubscriberSet<T> set = named.get(name);
+
+        return (set != null) ? set.snapshot() : Collections.emptyList();
+    }
+
+    public FilterIndex<T> filters() {
+
+        return filters;
+    }
+
+    public Collection<ConsumerGroup<T>> groups() {
+
+        return groups.values();
+    }
+
+    /**
+     * Returns the version of the subscriber list which changes with every added or removed subscriber,
+     * so data derived from the subscribers can be cached.
+     */
+    public long version() {
+
+        return version;
+    }
+
+    public boolean isEmpty() {
+
+        return subscribers.isEmpty() && groups.isEmpty() && filters.isEmpty();
+    }
+}
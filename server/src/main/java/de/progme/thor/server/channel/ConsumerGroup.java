@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.channel;
+
+import de.progme.thor.shared.net.GroupBalance;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * The members of a consumer group of one channel, every message of the channel is delivered to only one of them.
+ *
+ * Changes are synchronized, selecting a member is lock free.
+ *
+ * @param <T> The type of the members.
+ */
+public class ConsumerGroup<T> {
+
+    private String name;
+
+    private GroupBalance balance;
+
+    private SubscriberSet<T> members = new SubscriberSet<>();
+
+    private AtomicInteger next = new AtomicInteger();
+
+    public ConsumerGroup(String name, GroupBalance balance) {
+
+        this.name = name;
+        this.balance = balance;
+    }
+
+    public boolean add(T member) {
+
+        return members.add(member);
+    }
+
+    public boolean remove(T member) {
+
+        return members.remove(member);
+    }
+
+    /**
+     * Selects the member for the next message.
+     *
+     * @param writable Checks if a member can currently be written to.
+     * @param outstanding Returns the bytes still waiting to be sent to a member.
+     * @return The selected member or null if the group is empty.
+     */
+    public T select(Predicate<T> writable, ToLongFunction<T> outstanding) {
+
+        List<T> members = this.members.snapshot();
+        int size = members.size();
+
+        if (size == 0) {
+            return null;
+        }
+
+        // Members are looked at from a rotating start, so ties are spread evenly
+        int start = Math.floorMod(next.getAndIncrement(), size);
+
+        if (balance == GroupBalance.ROUND_ROBIN) {
+            for (int i = 0; i < size; i++) {
+                T member = members.get((start + i) % size);
+
+                if (writable.test(member)) {
+                    return member;
+                }
+            }
+
+            return members.get(start);
+        }
+
+        T best = null;
+        boolean bestWritable = false;
+        long bestOutstanding = Long.MAX_VALUE;
+
+        for (int i = 0; i < size; i++) {
+            T member = members.get((start + i) % size);
+
+            boolean memberWritable = writable.test(member);
+            long memberOutstanding = outstanding.applyAsLong(member);
+
+            if (best == null || (memberWritable && !bestWritable) || (memberWritable == bestWritable && memberOutstanding < bestOutstanding)) {
+                best = member;
+                bestWritable = memberWritable;
+                bestOutstanding = memberOutstanding;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Selects the member for a message which has to go to the same member as all other messages with the same hash,
+     * like the chunks of one transfer. Writability is not looked at, so the member only changes with the members.
+     *
+     * @param hash The hash of the messages which belong together.
+     * @return The selected member or null if the group is empty.
+     */
+    public T select(int hash) {
+
+        List<T> members = this.members.snapshot();
+
+        return members.isEmpty() ? null : members.get(Math.floorMod(hash, members.size()));
+    }
+
+    public String name() {
+
+        return name;
+    }
+
+    public GroupBalance balance() {
+
+        return balance;
+    }
+
+    public boolean contains(T member) {
+
+        return members.contains(member);
+    }
+
+    public List<T> members() {
+
+        return members.snapshot();
+    }
+
+    public boolean isEmpty() {
+
+        return members.isEmpty();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.channel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The subscribers of a channel which only want messages where a top level member has one of some string values.
+ *
+ * The subscribers are indexed by member name and value, so subscribers with equal filters share one entry
+ * and a message is matched with one lookup per filtered member name, independent of the number of subscribers.
+ * Changes are synchronized, matching is lock free.
+ *
+ * @param <T> The type of the subscribers.
+ */
+public class FilterIndex<T> {
+
+    private Map<String, Map<String, SubscriberSet<T>>> index = new ConcurrentHashMap<>();
+
+    private Map<T, Map<String, Set<String>>> filters = new HashMap<>();
+
+    /**
+     * Adds the subscriber, it matches a message if any of the members has one of its values.
+     *
+     * @param subscriber The subscriber.
+     * @param filter The accepted string values by member name.
+     */
+    public synchronized void add(T subscriber, Map<String, Set<String>> filter) {
+
+        remove(subscriber);
+
+        filters.put(subscriber, filter);
+
+        for (Map.Entry<String, Set<String>> entry : filter.entrySet()) {
+            Map<String, SubscriberSet<T>> values = index.computeIfAbsent(entry.getKey(), k -> new ConcurrentHashMap<>());
+
+            for (String value : entry.getValue()) {
+                values.computeIfAbsent(value, v -> new SubscriberSet<>()).add(subscriber);
+            }
+        }
+    }
+
+    public synchronized boolean remove(T subscriber) {
+
+        Map<String, Set<String>> filter = filters.remove(subscriber);
+
+        if (filter == null) {
+            return false;
+        }
+
+        for (Map.Entry<String, Set<String>> entry : filter.entrySet()) {
+            Map<String, SubscriberSet<T>> values = index.get(entry.getKey());
+
+            if (values == null) {
+                continue;
+            }
+
+            for (String value : entry.getValue()) {
+                SubscriberSet<T> subscribers = values.get(value);
+
+                if (subscribers != null) {
+                    subscribers.remove(subscriber);
+
+                    if (subscribers.isEmpty()) {
+                        values.remove(value);
+                    }
+                }
+            }
+
+            if (values.isEmpty()) {
+                index.remove(entry.getKey());
+            }
+        }
+
+        return true;
+    }
+
+    public synchronized boolean contains(T subscriber) {
+
+        return filters.containsKey(subscriber);
+    }
+
+    /**
+     * Returns all subscribers with a filter, for messages which cannot be matched.
+     */
+    public synchronized Collection<T> all() {
+
+        return new ArrayList<>(filters.keySet());
+    }
+
+    /**
+     * Returns the member names any subscriber filters on.
+     */
+    public Set<String> keys() {
+
+        return index.keySet();
+    }
+
+    /**
+     * Returns the subscribers which match the members of a message.
+     *
+     * @param members The string members of the message by name.
+     * @return The matching subscribers, every subscriber only once.
+     */
+    public Collection<T> match(Map<String, String> members) {
+
+        Collection<T> matched = Collections.emptyList();
+        boolean shared = true;
+
+        for (Map.Entry<String, String> member : members.entrySet()) {
+            Map<String, SubscriberSet<T>> values = index.get(member.getKey());
+            SubscriberSet<T> set = (values != null) ? values.get(member.getValue()) : null;
+            List<T> subscribers = (set != null) ? set.snapshot() : Collections.emptyList();
+
+            if (subscribers.isEmpty()) {
+                continue;
+            }
+
+            // Most messages only match one indexed value, its list is used as it is
+            if (matched.isEmpty()) {
+                matched = subscribers;
+            } else {
+                if (shared) {
+                    matched = new LinkedHashSet<>(matched);
+                    shared = false;
+                }
+
+                matched.addAll(subscribers);
+            }
+        }
+
+        return matched;
+    }
+
+    /**
+     * Hands the subscribers which match the members of a message to the function and returns its result.
+     * If the message matches the subscribers of a single value, the result is cached until these subscribers
+     * or the version change, so it is not computed for every message.
+     *
+     * @param members The string members of the message by name.
+     * @param version The version of other data the result depends on.
+     * @param function Computes the result from the matching subscribers, every subscriber only once.
+     * @param <R> The type of the result.
+     * @return The result or null if no subscriber matched.
+     */
+    public <R> R match(Map<String, String> members, long version, Function<Collection<T>, R> function) {
+
+        SubscriberSet<T> single = null;
+
+        for (Map.Entry<String, String> member : members.entrySet()) {
+            Map<String, SubscriberSet<T>> values = index.get(member.getKey());
+            SubscriberSet<T> set = (values != null) ? values.get(member.getValue()) : null;
+
+            if (set == null || set.isEmpty()) {
+                continue;
+            }
+
+            if (single != null) {
+                // Several values matched, their subscribers are merged for this message only
+                Collection<T> matched = match(members);
+
+                return matched.isEmpty() ? null : function.apply(matched);
+            }
+
+            single = set;
+        }
+
+        return (single != null) ? single.derive(version, function::apply) : null;
+    }
+
+    public synchronized boolean isEmpty() {
+
+        return filters.isEmpty();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.progme.thor.server.channel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A set of subscribers which is cheap to change and cheap to iterate.
+ *
+ * The subscribers are kept in an array together with an index of their positions, so adding a subscriber
+ * and removing one, by moving the last subscriber into its slot, is O(1) amortized.
+ * Readers get an immutable snapshot which is copied from the array at most once per change epoch:
+ * many changes in a row, like during a reconnect storm, cost a single copy when the next message is delivered,
+ * while a stable set is iterated without any copy or lock.
+ *
+ * Changes are synchronized, reading a snapshot is lock free as long as the set did not change.
+ *
+ * @param <T> The type of the subscribers.
+ */
+public class SubscriberSet<T> {
+
+    private Object[] elements = new Object[4];
+
+    private int size;
+
+    private Map<T, Integer> positions = new HashMap<>();
+
+    private volatile List<T> snapshot = Collections.emptyList();
+
+    private volatile Derived<T> derived;
+
+    /**
+     * Adds the subscriber if it is not in the set yet.
+     *
+     * @param subscriber The subscriber.
+     * @return True if the subscriber was added.
+     */
+    public synchronized boolean add(T subscriber) {
+
+        if (positions.containsKey(subscriber)) {
+            return false;
+        }
+
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size * 2);
+        }
+
+        elements[size] = subscriber;
+        positions.put(subscriber, size++);
+
+        snapshot = null;
+
+        return true;
+    }
+
+    /**
+     * Removes the subscriber, the last subscriber takes its position.
+     *
+     * @param subscriber The subscriber.
+     * @return True if the subscriber was removed.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized boolean remove(T subscriber) {
+
+        Integer position = positions.remove(subscriber);
+
+        if (position == null) {
+            return false;
+        }
+
+        int last = --size;
+
+        if (position != last) {
+            T moved = (T) elements[last];
+
+            elements[position] = moved;
+            positions.put(moved, position);
+        }
+
+        elements[last] = null;
+
+        // Give the memory back after a storm of removals
+        if (elements.length > 16 && size < elements.length / 4) {
+            elements = Arrays.copyOf(elements, elements.length / 2);
+        }
+
+        snapshot = null;
+
+        return true;
+    }
+
+    public synchronized boolean contains(T subscriber) {
+
+        return positions.containsKey(subscriber);
+    }
+
+    /**
+     * Returns an immutable snapshot of the subscribers in no particular order.
+     * The snapshot is shared by all readers until the set changes.
+     *
+     * @return The subscribers.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> snapshot() {
+
+        List<T> current = snapshot;
+
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+
+                if (current == null) {
+                    current = (size == 0) ? Collections.emptyList() : Collections.unmodifiableList(Arrays.asList((T[]) Arrays.copyOf(elements, size)));
+                    snapshot = current;
+                }
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * Returns a value derived from the snapshot, which is computed again only once the set or the version changed.
+     * A set caches one derived value, so it is meant for a single kind of value per set.
+     *
+     * @param version The version of other data the value depends on.
+     * @param function Derives the value from the snapshot.
+     * @param <R> The type of the value.
+     * @return The derived value.
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R derive(long version, Function<List<T>, R> function) {
+
+        List<T> current = snapshot();
+        Derived<T> cached = derived;
+
+        if (cached != null && cached.snapshot == current && cached.version == version) {
+            return (R) cached.value;
+        }
+
+        R value = function.apply(current);
+        derived = new Derived<>(current, version, value);
+
+        return value;
+    }
+
+    public synchronized int size() {
+
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+
+        return size == 0;
+    }
+
+    private static class Derived<T> {
+
+        private List<T> snapshot;
+
+        private long version;
+
+        private Object value;
+
+        private Derived(List<T> snapshot, long version, Object value) {
+
+            this.snapshot = snapshot;
+            this.version = version;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.channel;
+
+import de.progme.thor.shared.net.ChannelPattern;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the pattern subscriptions in a trie of channel segments.
+ *
+ * Matching a channel only follows the exact, "*" and "#" children of each node, so the cost depends on the
+ * depth of the channel and not on the number of patterns. The result is cached per concrete channel
+ * until the next pattern subscription changes.
+ *
+ * @param <T> The type of the subscribers.
+ */
+public class SubscriptionTrie<T> {
+
+    private static final int MAX_CACHED_CHANNELS = 16384;
+
+    private Node<T> root = new Node<>();
+
+    private Map<String, List<T>> cache = new ConcurrentHashMap<>();
+
+    private volatile int size;
+
+    private volatile long version;
+
+    public synchronized boolean add(String pattern, T subscriber) {
+
+        Node<T> node = root;
+        for (String segment : ChannelPattern.segments(pattern)) {
+            node = node.child(segment, true);
+        }
+
+        if (!node.subscribers.add(subscriber)) {
+            return false;
+        }
+
+        size++;
+        version++;
+        cache.clear();
+
+        return true;
+    }
+
+    public synchronized boolean remove(String pattern, T subscriber) {
+
+        String[] segments = ChannelPattern.segments(pattern);
+
+        List<Node<T>> path = new ArrayList<>(segments.length + 1);
+        path.add(root);
+
+        Node<T> node = root;
+        for (String segment : segments) {
+            node = node.child(segment, false);
+
+            if (node == null) {
+                return false;
+            }
+
+            path.add(node);
+        }
+
+        if (!node.subscribers.remove(subscriber)) {
+            return false;
+        }
+
+        // Prune the nodes which are not needed anymore
+        for (int i = segments.length; i > 0 && path.get(i).isEmpty(); i--) {
+            path.get(i - 1).removeChild(segments[i - 1]);
+        }
+
+        size--;
+        version++;
+        cache.clear();
+
+        return true;
+    }
+
+    /**
+     * Returns all subscribers with a pattern which matches the channel, every subscriber only once.
+     *
+     * @param channel The concrete channel.
+     * @return The unmodifiable list of matching subscribers.
+     */
+    public List<T> match(String channel) {
+
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+
+        List<T> matches = cache.get(channel);
+        if (matches != null) {
+            return matches;
+        }
+
+        // Computed under the lock, so a concurrent change can not leave a stale result in the cache
+        synchronized (this) {
+            matches = cache.get(channel);
+
+            if (matches == null) {
+                Set<T> result = new LinkedHashSet<>();
+                collect(root, ChannelPattern.segments(channel), 0, result);
+
+                matches = result.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(result));
+
+                if (cache.size() >= MAX_CACHED_CHANNELS) {
+                    cache.clear();
+                }
+                cache.put(channel, matches);
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Returns the version of the patterns which changes with every added or removed subscription,
+     * so data derived from the matches can be cached.
+     */
+    public long version() {
+
+        return version;
+    }
+
+    public int size() {
+
+        return size;
+    }
+
+    private void collect(Node<T> node, String[] segments, int index, Set<T> result) {
+
+        // The multi wildcard also matches zero segments
+        if (node.multi != null) {
+            result.addAll(node.multi.subscribers);
+        }
+
+        if (index == segments.length) {
+            result.addAll(node.subscribers);
+            return;
+        }
+
+        if (node.children != null) {
+            Node<T> child = node.children.get(segments[index]);
+            if (child != null) {
+                collect(child, segments, index + 1, result);
+            }
+        }
+
+        if (node.single != null) {
+            collect(node.single, segments, index + 1, result);
+        }
+    }
+
+    private static class Node<T> {
+
+        private Map<String, Node<T>> children;
+
+        private Node<T> single;
+
+        private Node<T> multi;
+
+        private Set<T> subscribers = new LinkedHashSet<>();
+
+        private Node<T> child(String segment, boolean create) {
+
+            if (segment.equals(ChannelPattern.SINGLE_WILDCARD)) {
+                if (single == null && create) {
+                    single = new Node<>();
+                }
+                return single;
+            }
+
+            if (segment.equals(ChannelPattern.MULTI_WILDCARD)) {
+                if (multi == null && create) {
+                    multi = new Node<>();
+                }
+                return multi;
+            }
+
+            if (children == null) {
+                if (!create) {
+                    return null;
+                }
+                children = new HashMap<>();
+            }
+
+            return create ? children.computeIfAbsent(segment, s -> new Node<>()) : children.get(segment);
+        }
+
+        private void removeChild(String segment) {
+
+            if (segment.equals(ChannelPattern.SINGLE_WILDCARD)) {
+                single = null;
+            } else if (segment.equals(ChannelPattern.MULTI_WILDCARD)) {
+                multi = null;
+            } else if (children != null) {
+                children.remove(segment);
+            }
+        }
+
+        private boolean isEmpty() {
+
+            return subscribers.isEmpty() && single == null && multi == null && (children == null || children.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.command.impl;
+
+import de.progme.thor.server.Thor;
+import de.progme.thor.server.command.Command;
+import de.progme.thor.server.network.Connection;
+import de.progme.thor.server.network.WriteQueue;
+
+/**
+ * Lists all connections with their outbound queue metrics.
+ */
+public class ConnectionsCommand extends Command {
+
+    public ConnectionsCommand(String name, String[] aliases, String description) {
+
+        super(name, aliases, description);
+    }
+
+    @Override
+    public boolean execute(String[] args) {
+
+        Thor.getLogger().info("Connections: " + Thor.getServer().connections().size() + ", detached sessions: " + Thor.getServer().detachedSessionCount());
+        Thor.getLogger().info("Channels: " + Thor.getServer().channelCount() + ", channel ids: " + Thor.getServer().channelIds().size() + ", inboxes: " + Thor.getServer().inboxes().size());
+        Thor.getLogger().info("Scheduled messages: " + Thor.getServer().scheduler().pendingMessages());
+
+        for (Connection connection : Thor.getServer().connections()) {
+            WriteQueue writeQueue = connection.writeQueue();
+
+            Thor.getLogger().info(String.format("%s (%s, %s): queued=%d messages/%d bytes, pending=%d bytes, inbound=%d bytes, dropped=%d, expired=%d, policy=%s",
+                    connection.remoteAddress(),
+                    (connection.name() != null) ? connection.name() : "-",
+                    connection.protocol(),
+                    writeQueue.queuedMessages(),
+                    writeQueue.queuedBytes(),
+                    writeQueue.pendingBytes(),
+                    connection.inboundLimit().bytes(),
+                    writeQueue.droppedMessages(),
+                    writeQueue.expiredMessages(),
+                    writeQueue.policy()));
+        }
+
+        return true;
+    }
+}
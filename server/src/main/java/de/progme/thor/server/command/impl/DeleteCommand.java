@@ -21,8 +21,8 @@ package de.progme.thor.server.command.impl;
 
 import de.progme.thor.server.Thor;
 import de.progme.thor.server.command.Command;
+import de.progme.thor.shared.net.Frame;
 import de.progme.thor.shared.net.OpCode;
-import org.json.JSONObject;
 
 /**
  * Created by Marvin Erkes on 24.06.2017.
@@ -47,9 +47,8 @@ public class DeleteCommand extends Command {
         Thor.getServer().cache().remove(key);
 
         // Manually broadcast it to the cluster
-        Thor.getServer().clusterBroadcast(null, new JSONObject()
-                .put("op", OpCode.OP_CACHE_REMOVE.getCode())
-                .put("key", key));
+        Thor.getServer().clusterBroadcast(null, new Frame(OpCode.OP_CACHE_REMOVE)
+                .key(key));
 
         return true;
     }
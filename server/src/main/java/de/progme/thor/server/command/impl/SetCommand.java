@@ -21,6 +21,7 @@ package de.progme.thor.server.command.impl;
 
 import de.progme.thor.server.Thor;
 import de.progme.thor.server.command.Command;
+import de.progme.thor.shared.net.Frame;
 import de.progme.thor.shared.net.OpCode;
 import org.json.JSONObject;
 
@@ -61,11 +62,11 @@ public class SetCommand extends Command {
 
         Thor.getServer().cache().put(args[0], value);
 
-        Thor.getServer().clusterBroadcast(null, new JSONObject()
-                .put("op", OpCode.OP_CACHE_ADD.getCode())
-                .put("key", args[0])
-                .put("value", value)
-                .put("expire", expire));
+        Thor.getServer().clusterBroadcast(null, new Frame(OpCode.OP_CACHE_ADD)
+                .key(args[0])
+                .json(new JSONObject()
+                        .put("value", value)
+                        .put("expire", expire)));
 
         return true;
     }
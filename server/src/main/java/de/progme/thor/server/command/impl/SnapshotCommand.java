@@ -41,9 +41,9 @@ public class SnapshotCommand extends Command {
         }
 
         if (args[0].equalsIgnoreCase("create")) {
-            Thor.getServer().cache().snapshot();
+            Thor.getServer().snapshot();
         } else if (args[0].equalsIgnoreCase("load")) {
-            Thor.getServer().cache().loadSnapshot(args[1]);
+            Thor.getServer().loadSnapshot(args[1]);
         }
 
         return true;
@@ -20,8 +20,12 @@
 package de.progme.thor.server.config;
 
 import de.progme.thor.shared.config.ClusterServer;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.SlowConsumerPolicy;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by Marvin Erkes on 25.03.2017.
@@ -44,6 +48,72 @@ public class Config {
 
     private int snapshotInterval = -1;
 
+    private int flushMaxMessages = 128;
+
+    private int flushMaxBytes = 64 * 1024;
+
+    private int writeBufferLowWaterMark = 32 * 1024;
+
+    private int writeBufferHighWaterMark = 64 * 1024;
+
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+
+    private int slowConsumerMaxBytes = 16 * 1024 * 1024;
+
+    private int slowConsumerMaxMillis = 30000;
+
+    private SlowConsumerPolicy clusterSlowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+
+    private int clusterMaxBytes = 64 * 1024 * 1024;
+
+    private int messageTimeToLive = -1;
+
+    private int maxFrameSize = Frame.DEFAULT_MAX_SIZE;
+
+    private int maxInboundBytes = 4 * 1024 * 1024;
+
+    private int ackWindow = 256;
+
+    private int ackTimeoutMillis = 5000;
+
+    private int sessionGraceMillis = 0;
+
+    private int sessionBufferBytes = 4 * 1024 * 1024;
+
+    private int inboxMaxBytes = 1024 * 1024;
+
+    private long inboxTimeToLiveMillis = 60 * 60 * 1000;
+
+    private int inboxMaxCount = 10000;
+
+    private long inboxMaxTotalBytes = 256 * 1024 * 1024;
+
+    private int scheduleTickMillis = 10;
+
+    private int scheduleMaxBytes = 256 * 1024 * 1024;
+
+    private Map<String, Integer> channelHistory = Collections.emptyMap();
+
+    private long channelHistoryIdleMillis = 10 * 60 * 1000;
+
+    private List<String> durableChannels = Collections.emptyList();
+
+    private List<String> priorityChannels = Collections.emptyList();
+
+    private Map<String, String> conflationKeys = Collections.emptyMap();
+
+    private String channelLogDirectory = "channel-logs";
+
+    private int channelLogSegmentBytes = 64 * 1024 * 1024;
+
+    private long channelLogRetentionBytes = 1024 * 1024 * 1024;
+
+    private long channelLogRetentionMillis = 7 * 24 * 60 * 60 * 1000L;
+
+    private Config() {
+        // Used by gson to keep the default values of missing fields
+    }
+
     public Config(String host, int port, int backlog, boolean debug, int workerThreads, List<ClusterServer> cluster, int cleanupInterval, int snapshotInterval) {
 
         this.host = host;
@@ -96,6 +166,201 @@ public class Config {
         return snapshotInterval;
     }
 
+    public int flushMaxMessages() {
+
+        return flushMaxMessages;
+    }
+
+    public int flushMaxBytes() {
+
+        return flushMaxBytes;
+    }
+
+    public int writeBufferLowWaterMark() {
+
+        return writeBufferLowWaterMark;
+    }
+
+    public int writeBufferHighWaterMark() {
+
+        return writeBufferHighWaterMark;
+    }
+
+    public SlowConsumerPolicy slowConsumerPolicy() {
+
+        return slowConsumerPolicy;
+    }
+
+    public int slowConsumerMaxBytes() {
+
+        return slowConsumerMaxBytes;
+    }
+
+    public int slowConsumerMaxMillis() {
+
+        return slowConsumerMaxMillis;
+    }
+
+    /**
+     * Returns what happens to the messages for a cluster server which does not keep up.
+     */
+    public SlowConsumerPolicy clusterSlowConsumerPolicy() {
+
+        return clusterSlowConsumerPolicy;
+    }
+
+    /**
+     * Returns the maximum bytes held back for a cluster server, the link is reconnected if its control messages exceed them.
+     */
+    public int clusterMaxBytes() {
+
+        return clusterMaxBytes;
+    }
+
+    public int messageTimeToLive() {
+
+        return messageTimeToLive;
+    }
+
+    public int maxFrameSize() {
+
+        return maxFrameSize;
+    }
+
+    public int maxInboundBytes() {
+
+        return maxInboundBytes;
+    }
+
+    public int ackWindow() {
+
+        return ackWindow;
+    }
+
+    public int ackTimeoutMillis() {
+
+        return ackTimeoutMillis;
+    }
+
+    /**
+     * Returns how long the subscriptions of a disconnected client are kept for it to resume its session.
+     * Sessions are off with 0, which is the default, as every detached session holds up to {@link #sessionBufferBytes()}.
+     */
+    public int sessionGraceMillis() {
+
+        return sessionGraceMillis;
+    }
+
+    /**
+     * Returns how many bytes of messages are buffered for a disconnected client until its session ends.
+     */
+    public int sessionBufferBytes() {
+
+        return sessionBufferBytes;
+    }
+
+    /**
+     * Returns how many bytes of direct messages are buffered per subscriber name while no subscriber with the name is online.
+     */
+    public int inboxMaxBytes() {
+
+        return inboxMaxBytes;
+    }
+
+    public long inboxTimeToLiveMillis() {
+
+        return inboxTimeToLiveMillis;
+    }
+
+    /**
+     * Returns how many inboxes the server holds at most, direct messages to further subscriber names are dropped.
+     */
+    public int inboxMaxCount() {
+
+        return inboxMaxCount;
+    }
+
+    /**
+     * Returns how many bytes of direct messages all inboxes buffer together at most, further messages are dropped.
+     */
+    public long inboxMaxTotalBytes() {
+
+        return inboxMaxTotalBytes;
+    }
+
+    /**
+     * Returns the precision in milliseconds with which scheduled messages are delivered.
+     */
+    public int scheduleTickMillis() {
+
+        return scheduleTickMillis;
+    }
+
+    /**
+     * Returns how many bytes of scheduled messages the server holds at most, further messages are dropped.
+     */
+    public int scheduleMaxBytes() {
+
+        return scheduleMaxBytes;
+    }
+
+    /**
+     * Returns how many of the last messages are kept for new subscribers by channel name or channel pattern.
+     */
+    public Map<String, Integer> channelHistory() {
+
+        return channelHistory;
+    }
+
+    /**
+     * Returns after how long without new messages the history of a channel which is only configured by a pattern is dropped.
+     */
+    public long channelHistoryIdleMillis() {
+
+        return channelHistoryIdleMillis;
+    }
+
+    public List<String> durableChannels() {
+
+        return durableChannels;
+    }
+
+    /**
+     * Returns the channel names or channel patterns whose messages are sent before the messages of other channels.
+     */
+    public List<String> priorityChannels() {
+
+        return priorityChannels;
+    }
+
+    /**
+     * Returns the member whose value conflates the held back messages by channel name or channel pattern.
+     */
+    public Map<String, String> conflationKeys() {
+
+        return conflationKeys;
+    }
+
+    public String channelLogDirectory() {
+
+        return channelLogDirectory;
+    }
+
+    public int channelLogSegmentBytes() {
+
+        return channelLogSegmentBytes;
+    }
+
+    public long channelLogRetentionBytes() {
+
+        return channelLogRetentionBytes;
+    }
+
+    public long channelLogRetentionMillis() {
+
+        return channelLogRetentionMillis;
+    }
+
     @Override
     public String toString() {
 
@@ -108,6 +373,37 @@ public class Config {
                 ", cluster=" + cluster +
                 ", cleanupInterval=" + cleanupInterval +
                 ", snapshotInterval=" + snapshotInterval +
+                ", flushMaxMessages=" + flushMaxMessages +
+                ", flushMaxBytes=" + flushMaxBytes +
+                ", writeBufferLowWaterMark=" + writeBufferLowWaterMark +
+                ", writeBufferHighWaterMark=" + writeBufferHighWaterMark +
+                ", slowConsumerPolicy=" + slowConsumerPolicy +
+                ", slowConsumerMaxBytes=" + slowConsumerMaxBytes +
+                ", slowConsumerMaxMillis=" + slowConsumerMaxMillis +
+                ", clusterSlowConsumerPolicy=" + clusterSlowConsumerPolicy +
+                ", clusterMaxBytes=" + clusterMaxBytes +
+                ", messageTimeToLive=" + messageTimeToLive +
+                ", maxFrameSize=" + maxFrameSize +
+                ", maxInboundBytes=" + maxInboundBytes +
+                ", ackWindow=" + ackWindow +
+                ", ackTimeoutMillis=" + ackTimeoutMillis +
+                ", sessionGraceMillis=" + sessionGraceMillis +
+                ", sessionBufferBytes=" + sessionBufferBytes +
+                ", inboxMaxBytes=" + inboxMaxBytes +
+                ", inboxTimeToLiveMillis=" + inboxTimeToLiveMillis +
+                ", inboxMaxCount=" + inboxMaxCount +
+                ", inboxMaxTotalBytes=" + inboxMaxTotalBytes +
+                ", scheduleTickMillis=" + scheduleTickMillis +
+                ", scheduleMaxBytes=" + scheduleMaxBytes +
+                ", channelHistory=" + channelHistory +
+                ", channelHistoryIdleMillis=" + channelHistoryIdleMillis +
+                ", durableChannels=" + durableChannels +
+                ", priorityChannels=" + priorityChannels +
+                ", conflationKeys=" + conflationKeys +
+                ", channelLogDirectory='" + channelLogDirectory + '\'' +
+                ", channelLogSegmentBytes=" + channelLogSegmentBytes +
+                ", channelLogRetentionBytes=" + channelLogRetentionBytes +
+                ", channelLogRetentionMillis=" + channelLogRetentionMillis +
                 '}';
     }
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.log;
+
+import de.progme.thor.server.Thor;
+import de.progme.thor.shared.net.EncodedFrame;
+import de.progme.thor.shared.net.Protocol;
+import io.netty.buffer.ByteBuf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The durable log of one channel which assigns every message a monotonically increasing offset
+ * and appends it to the newest of its segments.
+ *
+ * All methods are synchronized on the log, so the caller can hold the lock to keep other work
+ * like the delivery to the subscribers in the order of the offsets.
+ */
+public class ChannelLog {
+
+    private static final Logger LOGGER = Thor.getLogger();
+
+    private String channel;
+
+    private File directory;
+
+    private int segmentBytes;
+
+    private List<LogSegment> segments = new ArrayList<>();
+
+    public ChannelLog(String channel, File directory, int segmentBytes) throws IOException {
+
+        this.channel = channel;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("cannot create channel log folder " + directory);
+        }
+
+        File[] files = directory.listFiles(LogSegment::isSegment);
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparing(File::getName));
+
+            for (File file : files) {
+                segments.add(LogSegment.open(file));
+            }
+        }
+
+        if (segments.isEmpty()) {
+            segments.add(LogSegment.create(directory, 0, segmentBytes));
+        }
+    }
+
+    /**
+     * Returns the offset the next appended message will get.
+     */
+    public synchronized long nextOffset() {
+
+        return active().nextOffset();
+    }
+
+    /**
+     * Appends the message, its frame must already carry the next offset.
+     *
+     * @param encodedFrame The message.
+     * @return True if the message was appended.
+     */
+    public synchronized boolean append(EncodedFrame encodedFrame) {
+
+        long offset = encodedFrame.frame().offset();
+        long timestamp = System.currentTimeMillis();
+
+        ByteBuf encoded = encodedFrame.retainedBuffer(Protocol.BINARY);
+
+        try {
+            if (active().append(offset, timestamp, encoded)) {
+                return true;
+            }
+
+            // Roll over to a new segment which is at least large enough for the message
+            active().flush();
+
+            LogSegment segment = LogSegment.create(directory, offset, Math.max(segmentBytes, encoded.readableBytes() + LogSegment.RECORD_HEADER));
+            segments.add(segment);
+
+            return segment.append(offset, timestamp, encoded);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "[{0}] Could not append message {1} to the channel log: {2}", new Object[]{channel, String.valueOf(offset), e.getMessage()});
+
+            return false;
+        } finally {
+            encoded.release();
+        }
+    }
+
+    /**
+     * Hands all retained messages from the given offset on to the consumer.
+     * If older messages were already removed, it starts with the oldest retained one.
+     *
+     * @param fromOffset The offset of the first message.
+     * @param consumer Gets the binary encoded frames including their length field.
+     */
+    public synchronized void read(long fromOffset, Consumer<ByteBuf> consumer) {
+
+        for (LogSegment segment : segments) {
+            if (segment.nextOffset() > fromOffset) {
+                segment.read(fromOffset, consumer);
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest segments until the log is within the limits. The active segment is always kept.
+     *
+     * @param maxBytes The maximum bytes of all messages or -1 for no limit.
+     * @param maxMillis The maximum age of the newest message in a segment or -1 for no limit.
+     */
+    public synchronized void retain(long maxBytes, long maxMillis) {
+
+        long bytes = 0;
+        for (LogSegment segment : segments) {
+            bytes += segment.size();
+        }
+
+        long now = System.currentTimeMillis();
+
+        while (segments.size() > 1) {
+            LogSegment oldest = segments.get(0);
+
+            if ((maxBytes < 0 || bytes <= maxBytes) && (maxMillis < 0 || now - oldest.lastTimestamp() <= maxMillis)) {
+                break;
+            }
+
+            segments.remove(0);
+            bytes -= oldest.size();
+
+            if (!oldest.delete()) {
+                LOGGER.log(Level.WARNING, "[{0}] Could not delete channel log segment {1}", new Object[]{channel, oldest.file().getName()});
+            }
+
+            LOGGER.log(Level.FINE, "[{0}] Removed channel log segment with the offsets {1} to {2}", new Object[]{channel, String.valueOf(oldest.baseOffset()), String.valueOf(oldest.nextOffset() - 1)});
+        }
+    }
+
+    public synchronized void flush() {
+
+        active().flush();
+    }
+
+    /**
+     * Returns the offset of the oldest retained message.
+     */
+    public synchronized long firstOffset() {
+
+        return segments.get(0).baseOffset();
+    }
+
+    public String channel() {
+
+        return channel;
+    }
+
+    private LogSegment active() {
+
+        return segments.get(segments.size() - 1);
+    }
+}
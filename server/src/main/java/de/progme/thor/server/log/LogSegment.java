@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.log;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A preallocated, memory-mapped file of a channel log which holds the messages from its base offset on.
+ *
+ * <pre>
+ * +--------+-------+-----------+-------------------------------------+
+ * | offset | crc32 | timestamp | binary frame including length field |
+ * | 8      | 4     | 8         | 4 + n                               |
+ * +--------+-------+-----------+-------------------------------------+
+ * </pre>
+ *
+ * The checksum covers the timestamp and the frame. The unused rest of the file is zero, so the end of the written
+ * records is found again after a restart by the first record with a wrong offset, length or checksum.
+ * The segment is not thread safe, it is guarded by its channel log.
+ */
+public class LogSegment {
+
+    private static final String SUFFIX = ".log";
+
+    /**
+     * The bytes of a record in front of the frame.
+     */
+    public static final int RECORD_HEADER = 20;
+
+    private static final int CHECKSUM = 8;
+
+    private static final int TIMESTAMP = 12;
+
+    private File file;
+
+    private long baseOffset;
+
+    private MappedByteBuffer buffer;
+
+    private int size;
+
+    private long nextOffset;
+
+    private long lastTimestamp;
+
+    private LogSegment(File file, long baseOffset, MappedByteBuffer buffer) {
+
+        this.file = file;
+        this.baseOffset = baseOffset;
+        this.buffer = buffer;
+        this.nextOffset = baseOffset;
+        this.lastTimestamp = file.lastModified();
+    }
+
+    /**
+     * Creates a new segment file.
+     *
+     * @param directory The directory of the channel log.
+     * @param baseOffset The offset of the first message in the segment.
+     * @param capacity The size of the file.
+     * @return The new segment.
+     * @throws IOException If the file could not be created or mapped.
+     */
+    public static LogSegment create(File directory, long baseOffset, int capacity) throws IOException {
+
+        File file = new File(directory, String.format("%020d", baseOffset) + SUFFIX);
+
+        LogSegment segment = new LogSegment(file, baseOffset, map(file, capacity));
+        segment.lastTimestamp = System.currentTimeMillis();
+
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment file and finds the end of its records.
+     *
+     * @param file The segment file.
+     * @return The segment.
+     * @throws IOException If the file could not be mapped.
+     */
+    public static LogSegment open(File file) throws IOException {
+
+        String name = file.getName();
+        long baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+
+        LogSegment segment = new LogSegment(file, baseOffset, map(file, (int) file.length()));
+        segment.recover();
+
+        return segment;
+    }
+
+    public static boolean isSegment(File file) {
+
+        return file.getName().endsWith(SUFFIX) && file.getName().length() == 20 + SUFFIX.length();
+    }
+
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            if (randomAccessFile.length() < capacity) {
+                randomAccessFile.setLength(capacity);
+            }
+
+            // The mapping stays valid after the file is closed
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+
+    private void recover() {
+
+        int position = 0;
+
+        while (position + RECORD_HEADER + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(position + RECORD_HEADER);
+
+            // A partly written record at the end is dropped
+            if (length <= 0 || position + RECORD_HEADER + 4 + length > buffer.capacity() || buffer.getLong(position) != nextOffset
+                    || buffer.getInt(position + CHECKSUM) != checksum(position, length)) {
+                break;
+            }
+
+            lastTimestamp = buffer.getLong(position + TIMESTAMP);
+            nextOffset++;
+            position += RECORD_HEADER + 4 + length;
+        }
+
+        size = position;
+    }
+
+    /**
+     * Appends a message if there is enough space left.
+     *
+     * @param offset The offset of the message, must be the next offset of the segment.
+     * @param timestamp The time the message was appended.
+     * @param encoded The binary encoded frame including its length field, it is not released.
+     * @return True if the message was appended, false if the segment is full.
+     */
+    public boolean append(long offset, long timestamp, ByteBuf encoded) {
+
+        int length = encoded.readableBytes();
+
+        if (size + RECORD_HEADER + length > buffer.capacity()) {
+            return false;
+        }
+
+        ByteBuffer target = buffer.duplicate();
+        target.position(size + RECORD_HEADER);
+        target.limit(size + RECORD_HEADER + length);
+
+        encoded.getBytes(encoded.readerIndex(), target);
+        buffer.putLong(size + TIMESTAMP, timestamp);
+        buffer.putInt(size + CHECKSUM, checksum(size, length - 4));
+
+        // The offset is written last, a record which was only partly written before a crash also fails its checksum
+        buffer.putLong(size, offset);
+
+        size += RECORD_HEADER + length;
+        nextOffset = offset + 1;
+        lastTimestamp = timestamp;
+
+        return true;
+    }
+
+    private int checksum(int position, int length) {
+
+        ByteBuffer record = buffer.duplicate();
+        record.position(position + TIMESTAMP);
+        record.limit(position + RECORD_HEADER + 4 + length);
+
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Hands all messages from the given offset on to the consumer.
+     * The buffers are read-only views of the mapped file and do not copy the messages.
+     *
+     * @param fromOffset The offset of the first message.
+     * @param consumer Gets the binary encoded frames including their length field.
+     */
+    public void read(long fromOffset, Consumer<ByteBuf> consumer) {
+
+        int position = 0;
+
+        while (position < size) {
+            long offset = buffer.getLong(position);
+            int length = buffer.getInt(position + RECORD_HEADER);
+
+            if (offset >= fromOffset) {
+                ByteBuffer record = buffer.duplicate();
+                record.position(position + RECORD_HEADER);
+                record.limit(position + RECORD_HEADER + 4 + length);
+
+                consumer.accept(Unpooled.wrappedBuffer(record.slice().asReadOnlyBuffer()));
+            }
+
+            position += RECORD_HEADER + 4 + length;
+        }
+    }
+
+    /**
+     * Writes the changes of the mapped file to the disk.
+     */
+    public void flush() {
+
+        buffer.force();
+    }
+
+    /**
+     * Deletes the file, messages which are still being sent keep the mapping alive until they are released.
+     *
+     * @return True if the file was deleted.
+     */
+    public boolean delete() {
+
+        return file.delete();
+    }
+
+    public File file() {
+
+        return file;
+    }
+
+    public long baseOffset() {
+
+        return baseOffset;
+    }
+
+    public long nextOffset() {
+
+        return nextOffset;
+    }
+
+    public long lastTimestamp() {
+
+        return lastTimestamp;
+    }
+
+    public int size() {
+
+        return size;
+    }
+
+    public boolean isEmpty() {
+
+        return nextOffset == baseOffset;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.log;
+
+import de.progme.thor.server.Thor;
+import de.progme.thor.server.config.Config;
+import de.progme.thor.shared.net.ChannelPattern;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The logs of all durable channels, every durable channel has its own folder of segments.
+ *
+ * Which channels are durable is configured with channel names or channel patterns, the result is cached per channel.
+ * A log which could not be opened is tried again at most every 10 seconds.
+ * Logs which exist on disk are opened again on startup, so subscribers can resume after a restart.
+ */
+public class MessageLog {
+
+    private static final Logger LOGGER = Thor.getLogger();
+
+    private static final long RETENTION_INTERVAL = 60;
+
+    private static final int MAX_CACHED_CHANNELS = 16384;
+
+    private static final long OPEN_RETRY_MILLIS = 10000;
+
+    private List<String> durableChannels;
+
+    private File directory;
+
+    private int segmentBytes;
+
+    private long retentionBytes;
+
+    private long retentionMillis;
+
+    private Map<String, ChannelLog> logs = new ConcurrentHashMap<>();
+
+    private Map<String, Boolean> durable = new ConcurrentHashMap<>();
+
+    private Map<String, Long> failedOpens = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService executorService;
+
+    public MessageLog(Config config) {
+
+        this.durableChannels = config.durableChannels();
+        this.directory = new File(config.channelLogDirectory());
+        this.segmentBytes = Math.max(config.channelLogSegmentBytes(), config.maxFrameSize() + 64);
+        this.retentionBytes = config.channelLogRetentionBytes();
+        this.retentionMillis = config.channelLogRetentionMillis();
+
+        if (durableChannels.isEmpty()) {
+            return;
+        }
+
+        File[] folders = directory.listFiles(File::isDirectory);
+        if (folders != null) {
+            for (File folder : folders) {
+                String channel = decode(folder.getName());
+
+                if (isDurable(channel)) {
+                    log(channel);
+                }
+            }
+        }
+
+        executorService = Executors.newSingleThreadScheduledExecutor();
+        executorService.scheduleAtFixedRate(this::retain, RETENTION_INTERVAL, RETENTION_INTERVAL, TimeUnit.SECONDS);
+
+        LOGGER.log(Level.INFO, "Durable channels: {0}", String.join(", ", durableChannels));
+    }
+
+    /**
+     * Returns the log of the channel and opens it on first use.
+     *
+     * @param channel The concrete channel.
+     * @return The log or null if the channel is not durable or its log could not be opened.
+     */
+    public ChannelLog log(String channel) {
+
+        if (durableChannels.isEmpty() || channel == null) {
+            return null;
+        }
+
+        ChannelLog log = logs.get(channel);
+
+        if (log == null && isDurable(channel)) {
+            // Messages of a channel whose log failed are not logged until the next try
+            Long failedAt = failedOpens.get(channel);
+            if (failedAt != null && System.currentTimeMillis() - failedAt < OPEN_RETRY_MILLIS) {
+                return null;
+            }
+
+            log = logs.computeIfAbsent(channel, c -> {
+
+                try {
+                    ChannelLog opened = new ChannelLog(c, new File(directory, encode(c)), segmentBytes);
+                    failedOpens.remove(c);
+
+                    return opened;
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "[{0}] Could not open channel log: {1}", new Object[]{c, e.getMessage()});
+
+                    if (failedOpens.size() >= MAX_CACHED_CHANNELS) {
+                        failedOpens.clear();
+                    }
+                    failedOpens.put(c, System.currentTimeMillis());
+
+                    return null;
+                }
+            });
+        }
+
+        return log;
+    }
+
+    public boolean isDurable(String channel) {
+
+        if (durableChannels.isEmpty() || channel == null) {
+            return false;
+        }
+
+        Boolean cached = durable.get(channel);
+
+        if (cached == null) {
+            cached = false;
+
+            for (String durableChannel : durableChannels) {
+                if (ChannelPattern.isPattern(durableChannel) ? ChannelPattern.matches(durableChannel, channel) : durableChannel.equals(channel)) {
+                    cached = true;
+                    break;
+                }
+            }
+
+            if (durable.size() >= MAX_CACHED_CHANNELS) {
+                durable.clear();
+            }
+            durable.put(channel, cached);
+        }
+
+        return cached;
+    }
+
+    private void retain() {
+
+        for (ChannelLog log : logs.values()) {
+            log.retain(retentionBytes, retentionMillis);
+        }
+    }
+
+    public void close() {
+
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+
+        for (ChannelLog log : logs.values()) {
+            log.flush();
+        }
+    }
+
+    private static String encode(String channel) {
+
+        try {
+            return URLEncoder.encode(channel, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String folder) {
+
+        try {
+            return URLDecoder.decode(folder, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.network;
+
+import de.progme.thor.server.Thor;
+import de.progme.thor.shared.net.BinaryFrameCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The unacknowledged messages of one acknowledged subscription.
+ *
+ * The window numbers the messages of the subscription without gaps, the sequence number in the encoded message is
+ * replaced with its own one while the rest of the message is shared with the other subscribers of the channel.
+ * At most {@code window} messages are sent without an acknowledgement, further messages wait in a backlog.
+ * The subscriber acknowledges cumulatively with the highest sequence number it has handled. If the oldest
+ * message stays unacknowledged for longer than the timeout, all unacknowledged messages are sent again.
+ *
+ * An instance must only be used from the event loop of its connection.
+ */
+public class AckWindow {
+
+    private static final Logger LOGGER = Thor.getLogger();
+
+    private Connection connection;
+
+    private String channel;
+
+    private int window;
+
+    private long timeoutMillis;
+
+    private long maxBacklogBytes;
+
+    private ArrayDeque<Pending> inFlight = new ArrayDeque<>();
+
+    private ArrayDeque<Pending> backlog = new ArrayDeque<>();
+
+    private long backlogBytes;
+
+    private long nextSequence;
+
+    private long redeliveredMessages;
+
+    private ScheduledFuture<?> redeliveryTask;
+
+    private boolean closed;
+
+    /**
+     * @param connection The connection of the subscription.
+     * @param channel The subscribed channel.
+     * @param window The messages which are sent at most without an acknowledgement.
+     * @param timeoutMillis The time after which unacknowledged messages are sent again.
+     * @param maxBacklogBytes The bytes of messages waiting for the window after which the connection is closed.
+     * @param firstSequence The sequence number of the first message.
+     */
+    public AckWindow(Connection connection, String channel, int window, long timeoutMillis, long maxBacklogBytes, long firstSequence) {
+
+        this.connection = connection;
+        this.channel = channel;
+        this.window = Math.max(window, 1);
+        this.timeoutMillis = Math.max(timeoutMillis, 1);
+        this.maxBacklogBytes = maxBacklogBytes;
+        this.nextSequence = firstSequence;
+
+        EventLoop eventLoop = connection.eventLoop();
+        long interval = Math.max(this.timeoutMillis / 2, 1);
+
+        this.redeliveryTask = eventLoop.scheduleAtFixedRate(this::redeliver, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Numbers the message and sends it or puts it into the backlog if the window is full.
+     *
+     * @param encoded The encoded message with a sequence number, it is released by the window.
+     */
+    public void offer(ByteBuf encoded) {
+
+        if (closed) {
+            encoded.release();
+            return;
+        }
+
+        long sequence = nextSequence++;
+
+        Pending pending;
+        try {
+            pending = new Pending(sequence, numbered(encoded, sequence));
+        } finally {
+            encoded.release();
+        }
+
+        if (inFlight.size() < window) {
+            send(pending);
+            return;
+        }
+
+        if (maxBacklogBytes > 0 && backlogBytes + pending.size() > maxBacklogBytes) {
+            pending.release();
+
+            LOGGER.log(Level.WARNING, "[{0}] Disconnecting acknowledged subscriber of channel {1}: backlog exceeds {2} bytes", new Object[]{connection.remoteAddress().toString(), channel, String.valueOf(maxBacklogBytes)});
+
+            connection.close();
+            return;
+        }
+
+        backlog.add(pending);
+        backlogBytes += pending.size();
+    }
+
+    /**
+     * Removes all messages up to the sequence number and sends messages from the backlog.
+     *
+     * @param sequence The highest sequence number the subscriber has handled.
+     */
+    public void ack(long sequence) {
+
+        Pending pending;
+        while ((pending = inFlight.peek()) != null && pending.sequence <= sequence) {
+            inFlight.poll().release();
+        }
+
+        while (inFlight.size() < window && (pending = backlog.poll()) != null) {
+            backlogBytes -= pending.size();
+
+            send(pending);
+        }
+    }
+
+    /**
+     * Returns the message with the given sequence number, it shares everything but the sequence number with the given buffer.
+     */
+    private ByteBuf numbered(ByteBuf encoded, long sequence) {
+
+        ByteBufAllocator allocator = encoded.alloc();
+        int start = encoded.readerIndex();
+        int index = BinaryFrameCodec.sequenceIndex(encoded, start + 4);
+
+        // Only the binary protocol carries a sequence number, other messages are shared as they are
+        if (index == -1) {
+            return encoded.retain();
+        }
+
+        CompositeByteBuf numbered = allocator.compositeBuffer(3);
+        numbered.addComponents(true,
+                encoded.slice(start, index - start).retain(),
+                allocator.buffer(8).writeLong(sequence),
+                encoded.slice(index + 8, encoded.writerIndex() - index - 8).retain());
+
+        return numbered;
+    }
+
+    private void send(Pending pending) {
+
+        pending.sentAt = System.currentTimeMillis();
+        inFlight.add(pending);
+
+        connection.writeQueue().writeAcknowledged(pending.encoded.retainedDuplicate(), channel);
+    }
+
+    private void redeliver() {
+
+        Pending oldest = inFlight.peek();
+
+        // A detached session gets everything unacknowledged once it is resumed
+        if (oldest == null || System.currentTimeMillis() - oldest.sentAt < timeoutMillis || !connection.connected()) {
+            return;
+        }
+
+        // The subscriber skips what it has already handled, so everything after the oldest is sent again in order
+        for (Pending pending : inFlight) {
+            pending.sentAt = System.currentTimeMillis();
+            redeliveredMessages++;
+
+            connection.writeQueue().writeAcknowledged(pending.encoded.retainedDuplicate(), channel);
+        }
+
+        LOGGER.log(Level.FINE, "[{0}] Redelivered {1} unacknowledged messages of channel {2}", new Object[]{connection.remoteAddress().toString(), inFlight.size(), channel});
+    }
+
+    /**
+     * Returns all unacknowledged messages to send them again on the new channel of a resumed session.
+     *
+     * @return The messages in the order of their sequence numbers, the caller has to release them.
+     */
+    public List<ByteBuf> unacknowledged() {
+
+        List<ByteBuf> messages = new ArrayList<>(inFlight.size());
+
+        for (Pending pending : inFlight) {
+            pending.sentAt = System.currentTimeMillis();
+            redeliveredMessages++;
+
+            messages.add(pending.encoded.retainedDuplicate());
+        }
+
+        return messages;
+    }
+
+    /**
+     * Releases all messages, must be called from the event loop of the connection.
+     */
+    public void close() {
+
+        closed = true;
+
+        redeliveryTask.cancel(false);
+
+        Pending pending;
+        while ((pending = inFlight.poll()) != null) {
+            pending.release();
+        }
+
+        while ((pending = backlog.poll()) != null) {
+            pending.release();
+        }
+
+        backlogBytes = 0;
+    }
+
+    /**
+     * Returns the sequence number the next message gets.
+     */
+    public long nextSequence() {
+
+        return nextSequence;
+    }
+
+    public int inFlight() {
+
+        return inFlight.size();
+    }
+
+    public int backlog() {
+
+        return backlog.size();
+    }
+
+    public long redeliveredMessages() {
+
+        return redeliveredMessages;
+    }
+
+    private static class Pending {
+
+        private long sequence;
+
+        private ByteBuf encoded;
+
+        private long sentAt;
+
+        private Pending(long sequence, ByteBuf encoded) {
+
+            this.sequence = sequence;
+            this.encoded = encoded;
+        }
+
+        private int size() {
+
+            return encoded.readableBytes();
+        }
+
+        private void release() {
+
+            encoded.release();
+        }
+    }
+}
@@ -21,56 +21,438 @@ package de.progme.thor.server.network;
 
 import de.progme.thor.server.Thor;
 import de.progme.thor.server.ThorServer;
+import de.progme.thor.shared.net.BinaryFrameCodec;
+import de.progme.thor.shared.net.ChannelIds;
+import de.progme.thor.shared.net.ChannelPattern;
+import de.progme.thor.shared.net.EncodedFrame;
+import de.progme.thor.shared.net.FieldProjection;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.GroupBalance;
+import de.progme.thor.shared.net.JsonFrameCodec;
 import de.progme.thor.shared.net.OpCode;
+import de.progme.thor.shared.net.Protocol;
+import de.progme.thor.shared.net.SlowConsumerPolicy;
 import de.progme.thor.shared.pipeline.ChannelUtil;
+import de.progme.thor.shared.pipeline.handler.FrameEncoder;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Created by Marvin Erkes on 25.03.2017.
+ *
+ * A connection with a session is detached instead of removed when its channel closes. It stays subscribed and
+ * buffers its messages until the client resumes the session on a new channel or the grace period is over.
+ * The new channel is moved to the event loop of the connection and the connection replaces the handler
+ * of the new channel, so it is shared between the pipelines of its channels.
  */
-public class Connection extends SimpleChannelInboundHandler<JSONObject> {
+@ChannelHandler.Sharable
+public class Connection extends SimpleChannelInboundHandler<Frame> {
 
     private static final Logger LOGGER = Thor.getLogger();
 
+    private static final int MAX_CHANNEL_IDS = 4096;
+
+    private static final int MAX_PUBLISH_CHANNEL_IDS = 256;
+
+    private static final int MAX_PENDING_REQUESTS = 65536;
+
+    private static final AtomicLong IDS = new AtomicLong();
+
     private ThorServer server;
 
-    private List<String> channels = new ArrayList<>();
+    private long id;
+
+    private Set<String> channels = ConcurrentHashMap.newKeySet();
+
+    private Map<String, String> groups = new ConcurrentHashMap<>();
+
+    private Map<String, FieldProjection> projections = new ConcurrentHashMap<>();
+
+    private Map<String, AckWindow> ackWindows = new ConcurrentHashMap<>();
+
+    private long nextAckSequence;
+
+    private Set<String> responding = ConcurrentHashMap.newKeySet();
+
+    private int publishChannelIds;
+
+    private Map<PendingRequest, Boolean> pendingRequests = new LinkedHashMap<PendingRequest, Boolean>() {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PendingRequest, Boolean> eldest) {
+
+            // Requesters give up on requests which stay unanswered that long
+            return size() > MAX_PENDING_REQUESTS;
+        }
+    };
 
     private SocketAddress remoteAddress;
 
-    private Channel channel;
+    private volatile Channel channel;
+
+    private volatile String session;
+
+    private boolean detached;
+
+    private ScheduledFuture<?> sessionExpiry;
+
+    private List<Frame> resumeFrames;
+
+    private volatile boolean inbox;
 
     private String host;
 
     private int port;
 
-    private String name;
+    private volatile String name;
+
+    private WriteQueue writeQueue;
+
+    private InboundLimit inboundLimit;
 
     public Connection(ThorServer server, Channel channel) {
 
         this.server = server;
+        this.id = IDS.incrementAndGet();
         this.channel = channel;
         this.remoteAddress = channel.remoteAddress();
+        this.writeQueue = new WriteQueue(channel, server.config(), server.config().slowConsumerPolicy(), server.channelPriorities());
+        this.inboundLimit = new InboundLimit(channel, server.config().maxInboundBytes());
+    }
+
+    public void send(Frame frame) {
+
+        writeQueue.write(frame);
+    }
+
+    public void send(EncodedFrame encodedFrame) {
+
+        send(encodedFrame, null);
+    }
+
+    public void send(EncodedFrame encodedFrame, InboundLimit inboundLimit) {
+
+        String channelName = encodedFrame.frame().channel();
+        ByteBuf encoded = encodedFrame.projected(projection(channelName)).retainedBuffer(protocol(channelName, encodedFrame.channelId()));
+        long sequence = encodedFrame.frame().sequence();
+
+        if (sequence != -1 && ackWindows.containsKey(channelName)) {
+            if (channel.eventLoop().inEventLoop()) {
+                write(encoded, channelName, sequence, null);
+            } else {
+                channel.eventLoop().execute(() -> write(encoded, channelName, sequence, null));
+            }
+            return;
+        }
+
+        writeQueue.write(encoded, channelName, encodedFrame.conflationKey(), inboundLimit);
+    }
+
+    /**
+     * Writes an encoded message of a channel, through the ack window if the channel is subscribed acknowledged.
+     * Must be called from the event loop of the connection.
+     *
+     * @param encoded The encoded message, it is released after it has been written.
+     * @param channelName The channel of the message.
+     * @param sequence The placeholder sequence number of the message or -1 if it is not sequenced.
+     * @param conflationKey The conflation key of the message or null.
+     */
+    public void write(ByteBuf encoded, String channelName, long sequence, String conflationKey) {
+
+        AckWindow ackWindow = (sequence != -1 && !ackWindows.isEmpty()) ? ackWindows.get(channelName) : null;
+
+        // Acknowledged messages are never conflated, every sequence number has to arrive
+        if (ackWindow != null) {
+            ackWindow.offer(encoded);
+        } else {
+            writeQueue.write(encoded, channelName, conflationKey, null);
+        }
     }
 
-    public void send(JSONObject jsonObject) {
+    /**
+     * Sends a frame which is already encoded with the binary protocol, like a message from a channel log.
+     * It is only encoded again if the connection uses another protocol or a projection for the channel.
+     *
+     * @param encoded The binary encoded frame including its length field, it is released after it has been written.
+     * @param channelName The channel of the frame.
+     */
+    public void send(ByteBuf encoded, String channelName) {
 
-        channel.writeAndFlush(jsonObject);
+        Protocol protocol = Protocol.of(channel);
+        FieldProjection projection = projection(channelName);
+
+        if (protocol == Protocol.JSON || projection != null) {
+            try {
+                Frame frame = BinaryFrameCodec.decode(encoded.skipBytes(4));
+
+                if (projection != null) {
+                    frame = projection.apply(frame);
+                }
+
+                ByteBuf reencoded = channel.alloc().ioBuffer(frame.body().length + 64);
+                FrameEncoder.encode(frame, protocol, reencoded);
+
+                writeQueue.write(reencoded, channelName);
+            } finally {
+                encoded.release();
+            }
+            return;
+        }
+
+        writeQueue.write(encoded, channelName);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
 
+        // Connections which were closed on purpose, like slow consumers, do not keep their session
+        if (session != null && !writeQueue.closed() && !channels.isEmpty() && server.config().sessionGraceMillis() > 0) {
+            detach();
+            return;
+        }
+
+        end();
+    }
+
+    /**
+     * Keeps the subscriptions and buffers the messages until the session is resumed or the grace period is over.
+     * Must be called from the event loop of the connection.
+     */
+    private void detach() {
+
+        detached = true;
+
+        // Direct messages wait in the inbox, so they survive even if the session ends
+        if (inbox) {
+            server.inboxOffline(this, name);
+        }
+
+        writeQueue.detach(server.config().sessionBufferBytes(), () -> {
+
+            LOGGER.log(Level.FINE, "[{0}] Session buffer of {1} exceeds {2} bytes", new Object[]{remoteAddress.toString(), name, String.valueOf(server.config().sessionBufferBytes())});
+
+            expire();
+        });
+
+        server.detachSession(session, this);
+
+        sessionExpiry = eventLoop().schedule(this::expire, server.config().sessionGraceMillis(), TimeUnit.MILLISECONDS);
+
+        LOGGER.log(Level.FINE, "[{0}] Connection closed, keeping the session with {1} channels", new Object[]{remoteAddress.toString(), channels.size()});
+    }
+
+    private void expire() {
+
+        if (detached && server.endSession(session, this)) {
+            detached = false;
+
+            sessionExpiry.cancel(false);
+
+            end();
+
+            LOGGER.log(Level.FINE, "[{0}] Session of {1} ended", new Object[]{remoteAddress.toString(), name});
+        }
+    }
+
+    /**
+     * Starts a new session or resumes the detached session of the token.
+     *
+     * @param ctx The context of the new channel.
+     * @param token The token the client presented, empty for a new session.
+     */
+    private void startSession(ChannelHandlerContext ctx, String token) {
+
+        if (server.config().sessionGraceMillis() <= 0) {
+            writeQueue.write(sessionFrame(null, false));
+            return;
+        }
+
+        Connection resumed = !token.isEmpty() ? server.resumeSession(token) : null;
+
+        if (resumed != null && resumed.protocol() == protocol()) {
+            resume(ctx, resumed);
+            return;
+        }
+
+        if (resumed != null) {
+            // Its buffered messages are encoded for another protocol
+            resumed.eventLoop().execute(resumed::end);
+        }
+
+        session = UUID.randomUUID().toString();
+
+        writeQueue.write(sessionFrame(session, false));
+    }
+
+    /**
+     * Hands the channel over to the detached connection of a session.
+     * Its event loop owns all its state, so the channel is moved to it first.
+     * Frames which arrive in the meantime are passed on once the connection took over.
+     */
+    private void resume(ChannelHandlerContext ctx, Connection resumed) {
+
+        Channel newChannel = ctx.channel();
+        EventLoop eventLoop = resumed.eventLoop();
+
+        resumeFrames = new ArrayList<>();
+
+        server.removeClient(this);
+
+        newChannel.deregister().addListener(deregistered -> {
+
+            if (!deregistered.isSuccess()) {
+                resumeFailed(newChannel, resumed);
+                return;
+            }
+
+            eventLoop.register(newChannel).addListener(registered -> {
+
+                if (!registered.isSuccess() || !newChannel.isActive()) {
+                    resumeFailed(newChannel, resumed);
+                    return;
+                }
+
+                ctx.pipeline().replace(this, null, resumed);
+
+                resumed.attach(newChannel, inboundLimit);
+
+                ChannelHandlerContext resumedContext = newChannel.pipeline().context(resumed);
+                for (Frame frame : resumeFrames) {
+                    resumed.channelRead0(resumedContext, frame);
+                }
+
+                resumeFrames = null;
+            });
+        });
+    }
+
+    private void resumeFailed(Channel newChannel, Connection resumed) {
+
+        newChannel.close();
+
+        // The session waits for the next try of its client
+        resumed.eventLoop().execute(resumed::awaitResume);
+    }
+
+    /**
+     * Keeps the detached session again after a failed resume.
+     * The grace period started anew if it was over during the resume, as the session could not expire meanwhile.
+     * Must be called from the event loop of the connection.
+     */
+    void awaitResume() {
+
+        if (!detached) {
+            return;
+        }
+
+        server.detachSession(session, this);
+
+        if (sessionExpiry.isDone()) {
+            sessionExpiry = eventLoop().schedule(this::expire, server.config().sessionGraceMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Continues the detached session on the new channel.
+     * Must be called from the event loop of the connection with which the new channel is registered.
+     */
+    private void attach(Channel newChannel, InboundLimit newInboundLimit) {
+
+        ChannelIds channelIds = channel.attr(ChannelIds.ATTRIBUTE).get();
+
+        detached = false;
+        sessionExpiry.cancel(false);
+
+        channel = newChannel;
+        remoteAddress = newChannel.remoteAddress();
+        inboundLimit = newInboundLimit;
+
+        List<Object> first = new ArrayList<>();
+        first.add(sessionFrame(session, true));
+
+        // The client learns the ids of the buffered messages again
+        if (channelIds != null) {
+            newChannel.attr(ChannelIds.ATTRIBUTE).set(channelIds);
+
+            for (String channelName : channelIds.channels()) {
+                first.add(new Frame(OpCode.OP_CHANNEL_ID)
+                        .channel(channelName)
+                        .channelId(channelIds.id(channelName)));
+            }
+        }
+
+        // Unacknowledged messages might have been lost with the old channel
+        for (AckWindow ackWindow : ackWindows.values()) {
+            first.addAll(ackWindow.unacknowledged());
+        }
+
+        writeQueue.attach(newChannel, first);
+
+        if (inbox) {
+            server.inboxOnline(this);
+        }
+
+        LOGGER.log(Level.FINE, "[{0}] Session of {1} resumed with {2} buffered messages", new Object[]{remoteAddress.toString(), name, writeQueue.queuedMessages()});
+    }
+
+    private static Frame sessionFrame(String session, boolean resumed) {
+
+        JSONObject json = new JSONObject().put("resumed", resumed);
+        if (session != null) {
+            json.put("session", session);
+        }
+
+        return new Frame(OpCode.OP_SESSION).json(json);
+    }
+
+    /**
+     * Removes the connection with all its subscriptions.
+     * Must be called from the event loop of the connection.
+     */
+    private void end() {
+
+        writeQueue.close();
+
+        synchronized (pendingRequests) {
+            pendingRequests.clear();
+        }
+
+        ChannelIds channelIds = channel.attr(ChannelIds.ATTRIBUTE).get();
+        if (channelIds != null) {
+            for (String channelName : channelIds.channels()) {
+                server.channelIds().release(channelName);
+            }
+        }
+
+        for (AckWindow ackWindow : ackWindows.values()) {
+            ackWindow.close();
+        }
+        ackWindows.clear();
+
         server.removeClient(this);
 
         LOGGER.log(Level.FINE, "[{0}] Connection closed", remoteAddress.toString());
@@ -79,120 +461,250 @@ public class Connection extends SimpleChannelInboundHandler<JSONObject> {
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
 
+        server.addClient(this);
+
         LOGGER.log(Level.FINE, "[{0}] New connection", remoteAddress.toString());
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, JSONObject jsonObject) throws Exception {
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+
+        writeQueue.writabilityChanged();
+
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Frame frame) throws Exception {
 
-        if (jsonObject.isNull("op")) {
+        if (resumeFrames != null) {
+            resumeFrames.add(frame);
             return;
         }
 
-        int op = ((Integer) jsonObject.remove("op"));
-
-        OpCode opCode = OpCode.of(op);
+        OpCode opCode = frame.opCode();
 
         switch (opCode) {
+            case OP_HANDSHAKE:
+                String token = frame.json().optString("session", null);
+                if (token != null) {
+                    startSession(ctx, token);
+                }
+                break;
+            case OP_INBOX:
+                if (frame.subscriber() != null) {
+                    server.sendToInbox(frame.subscriber(), frame);
+                }
+                break;
+            case OP_SESSION:
+                if (frame.json().optBoolean("end", false)) {
+                    // The client is gone for good, so the connection is removed once it is closed
+                    session = null;
+                }
+                break;
             case OP_BROADCAST:
-                if (!jsonObject.has("su")) {
+            case OP_CHUNK:
+                if (frame.channel() == null && frame.hasChannelId()) {
+                    LOGGER.log(Level.FINE, "[{0}] Unknown channel id: {1}", new Object[]{remoteAddress.toString(), String.valueOf(frame.channelId())});
+                    break;
+                }
+
+                if (frame.opCode() == OpCode.OP_BROADCAST) {
+                    // Publishers use the id of the channel for their next messages
+                    handOutChannelId(frame.channel(), true);
+                }
+
+                if (frame.subscriber() == null) {
                     // Broadcast it to all subscriber
-                    server.broadcast(this, jsonObject.getString("ch"), jsonObject);
+                    server.broadcast(this, frame.channel(), frame);
                 } else {
                     // Broadcast to specific subscriber
-                    server.broadcastTo(this, jsonObject.getString("ch"), jsonObject, jsonObject.getString("su"));
+                    server.broadcastTo(this, frame.channel(), frame, frame.subscriber());
+                }
+                break;
+            case OP_REQUEST:
+                if (frame.channel() != null && frame.hasId()) {
+                    server.request(this, frame);
+                }
+                break;
+            case OP_REPLY:
+                if (frame.hasId() && frame.hasReplyTo()) {
+                    server.reply(this, frame);
+                }
+                break;
+            case OP_SCHEDULE:
+                if (frame.channel() == null || !frame.hasDeliverAt()) {
+                    break;
+                }
+
+                if (!server.schedule(frame)) {
+                    LOGGER.log(Level.WARNING, "[{0}] Dropped scheduled message for {1}, too many scheduled messages", new Object[]{remoteAddress.toString(), frame.channel()});
+                }
+                break;
+            case OP_BATCH:
+                // Every message of the batch is handled as if it was sent on its own
+                for (Frame batchedFrame : JsonFrameCodec.decodeBatch(frame.body())) {
+                    if (!batchable(batchedFrame.opCode())) {
+                        LOGGER.log(Level.WARNING, "[{0}] OP code not allowed in a batch: {1}", new Object[]{remoteAddress.toString(), batchedFrame.opCode()});
+                        continue;
+                    }
+
+                    channelRead0(ctx, batchedFrame);
+                }
+                break;
+            case OP_ACK:
+                AckWindow ackedWindow = ackWindows.get(frame.channel());
+
+                if (ackedWindow != null) {
+                    ackedWindow.ack(frame.sequence());
                 }
                 break;
             case OP_CACHE_GET:
-                String getKey = jsonObject.getString("key");
-                int getCallbackId = jsonObject.getInt("id");
+                String getKey = frame.key();
+                int getCallbackId = frame.id();
 
                 Object getValue = server.cache().get(getKey);
 
-                JSONObject getResponse = new JSONObject()
-                        .put("op", 5)
-                        .put("id", getCallbackId)
-                        .put("value", getValue);
+                Frame getResponse = new Frame(OpCode.OP_CACHE_GET)
+                        .id(getCallbackId)
+                        .json(new JSONObject().put("value", getValue));
 
                 send(getResponse);
 
                 LOGGER.log(Level.FINE, "[{0}] Got cache entry {1}={2} and a callback id of {3}", new Object[] {remoteAddress.toString(), getKey, getValue, getCallbackId});
                 break;
             case OP_CACHE_ADD:
-                String key = jsonObject.getString("key");
-                Object value = jsonObject.get("value");
-                int expire = jsonObject.getInt("expire");
+                String key = frame.key();
+                Object value = frame.json().get("value");
+                int expire = frame.json().getInt("expire");
 
                 server.cache().put(key, value, expire);
 
-                server.clusterBroadcast(this, jsonObject.put("op", OpCode.OP_CACHE_ADD.getCode()));
+                server.clusterBroadcast(this, frame);
 
                 LOGGER.log(Level.FINE, "[{0}] Added cache entry {1}={2} with an expire of {3}", new Object[] {remoteAddress.toString(), key, value, expire});
                 break;
             case OP_CACHE_REMOVE:
-                String removeKey = jsonObject.getString("key");
+                String removeKey = frame.key();
 
                 server.cache().remove(removeKey);
 
-                server.clusterBroadcast(this, jsonObject.put("op", OpCode.OP_CACHE_REMOVE.getCode()));
+                server.clusterBroadcast(this, frame);
 
                 LOGGER.log(Level.FINE, "[{0}] Removed cache entry with key {1}", new Object[] {remoteAddress.toString(), removeKey});
                 break;
             case OP_CACHE_HAS:
-                boolean has = server.cache().has(jsonObject.getString("key"));
+                boolean has = server.cache().has(frame.key());
 
-                JSONObject hasResponse = new JSONObject()
-                        .put("op", OpCode.OP_CACHE_HAS.getCode())
-                        .put("id", jsonObject.getInt("id"))
-                        .put("has", has);
+                Frame hasResponse = new Frame(OpCode.OP_CACHE_HAS)
+                        .id(frame.id())
+                        .json(new JSONObject().put("has", has));
 
                 send(hasResponse);
                 break;
             case OP_CACHE_SET_EXPIRE:
-                String expireKey = jsonObject.getString("key");
-                int expireSeconds = jsonObject.getInt("expire");
+                String expireKey = frame.key();
+                int expireSeconds = frame.json().getInt("expire");
 
                 server.cache().expire(expireKey, expireSeconds);
 
-                server.clusterBroadcast(this, jsonObject.put("op", OpCode.OP_CACHE_SET_EXPIRE.getCode()));
+                server.clusterBroadcast(this, frame);
 
                 LOGGER.log(Level.FINE, "[{0}] Set expire seconds for key {1} to {2} seconds", new Object[] {remoteAddress.toString(), expireKey, expireSeconds});
                 break;
             case OP_CACHE_GET_EXPIRE:
-                String expireGetKey = jsonObject.getString("key");
-                int expireGetCallbackId = jsonObject.getInt("id");
+                String expireGetKey = frame.key();
+                int expireGetCallbackId = frame.id();
 
                 int expireGetValue = ((int) server.cache().expire(expireGetKey));
 
-                JSONObject expireGetResponse = new JSONObject()
-                        .put("op", 5)
-                        .put("id", expireGetCallbackId)
-                        .put("value", expireGetValue);
+                Frame expireGetResponse = new Frame(OpCode.OP_CACHE_GET)
+                        .id(expireGetCallbackId)
+                        .json(new JSONObject().put("value", expireGetValue));
 
                 send(expireGetResponse);
 
                 LOGGER.log(Level.FINE, "[{0}] Got expire in time for key {1} which will expire in {2} seconds", new Object[] {remoteAddress.toString(), expireGetKey, expireGetValue});
                 break;
             case OP_REGISTER_CHANNEL:
-                String channelToRegister = jsonObject.getString("ch");
+                register(frame.channel(), frame.json());
+                break;
+            case OP_REGISTER_CHANNELS:
+                // Many channels in one frame, channels without options are subscribed in one pass
+                JSONArray registrations = frame.json().optJSONArray("m");
+                if (registrations == null) {
+                    break;
+                }
 
-                server.subscribeChannel(channelToRegister, this);
-                channels.add(channelToRegister);
+                List<String> plainChannels = new ArrayList<>();
+                for (int i = 0; i < registrations.length(); i++) {
+                    JSONObject registration = registrations.optJSONObject(i);
+
+                    if (registration == null) {
+                        plainChannels.add(registrations.getString(i));
+                    } else if (registration.length() == 1) {
+                        plainChannels.add(registration.getString("ch"));
+                    } else {
+                        register(registration.getString("ch"), registration);
+                    }
+                }
+
+                for (String subscribedChannel : server.subscribeChannels(plainChannels, this)) {
+                    projections.remove(subscribedChannel);
+                    subscribed(subscribedChannel, null);
+                }
+
+                LOGGER.log(Level.FINE, "[{0}] Registered {1} channels", new Object[]{remoteAddress.toString(), registrations.length()});
                 break;
             case OP_UNREGISTER_CHANNEL:
-                String channelToRemove = jsonObject.getString("ch");
-
-                server.unsubscribeChannel(channelToRemove, this);
-                channels.remove(channelToRemove);
+                unregister(frame.channel());
+                break;
+            case OP_UNREGISTER_CHANNELS:
+                JSONArray unregistrations = frame.json().optJSONArray("m");
+                if (unregistrations != null) {
+                    for (int i = 0; i < unregistrations.length(); i++) {
+                        unregister(unregistrations.getString(i));
+                    }
+                }
                 break;
             case OP_SUBSCRIBER_SET_NAME:
-                name = jsonObject.getString("su");
+                String oldName = name;
+                boolean renamed = frame.subscriber() != null && !frame.subscriber().equals(name);
+
+                if (renamed) {
+                    name = frame.subscriber();
+
+                    server.renameClient(this, oldName, name);
+
+                    LOGGER.log(Level.FINE, "[{0}] Subscriber name set to: {1}", new Object[]{remoteAddress.toString(), name});
+                }
+
+                // Subscribers can receive the direct messages for their name
+                boolean receiveInbox = frame.json().optBoolean("inbox", false) && name != null;
+                if (inbox && (renamed || !receiveInbox)) {
+                    inbox = false;
+                    server.inboxOffline(this, oldName);
+                }
+                if (receiveInbox && !inbox) {
+                    inbox = true;
+                    server.inboxOnline(this);
+                }
+
+                // Subscribers can choose how they want to be treated if they can not keep up
+                String policy = frame.json().optString("policy", null);
+                if (policy != null) {
+                    try {
+                        writeQueue.policy(SlowConsumerPolicy.valueOf(policy));
 
-                LOGGER.log(Level.FINE, "[{0}] Subscriber name set to: {1}", new Object[]{remoteAddress.toString(), name});
+                        LOGGER.log(Level.FINE, "[{0}] Slow consumer policy set to: {1}", new Object[]{remoteAddress.toString(), policy});
+                    } catch (IllegalArgumentException e) {
+                        LOGGER.log(Level.WARNING, "[{0}] Unknown slow consumer policy: {1}", new Object[]{remoteAddress.toString(), policy});
+                    }
+                }
                 break;
             case OP_CLUSTER_INFO_SET:
-                host = jsonObject.getString("host");
-                port = jsonObject.getInt("port");
+                host = frame.json().getString("host");
+                port = frame.json().getInt("port");
 
                 LOGGER.log(Level.FINE, "[{0}] Cluster info set to: {1}:{2}", new Object[]{remoteAddress.toString(), host, String.valueOf(port)});
                 break;
@@ -201,7 +713,7 @@ public class Connection extends SimpleChannelInboundHandler<JSONObject> {
                 //LOGGER.log(Level.FINE, "[{0}] Keep alive time: {1}", new Object[]{remoteAddress.toString(), System.currentTimeMillis()});
                 break;
             case OP_UNKNOWN:
-                LOGGER.log(Level.WARNING, "[{0}] Unknown OP code received: {0}", new Object[]{remoteAddress.toString(), op});
+                LOGGER.log(Level.WARNING, "[{0}] Unknown OP code received: {0}", new Object[]{remoteAddress.toString(), opCode});
                 break;
         }
     }
@@ -211,6 +723,11 @@ public class Connection extends SimpleChannelInboundHandler<JSONObject> {
 
         ChannelUtil.closeOnFlush(channel);
 
+        if (cause instanceof TooLongFrameException) {
+            LOGGER.log(Level.WARNING, "[{0}] Closing connection: {1}", new Object[]{remoteAddress.toString(), cause.getMessage()});
+            return;
+        }
+
         if (!(cause instanceof IOException)) {
             cause.printStackTrace();
 
@@ -218,11 +735,189 @@ public class Connection extends SimpleChannelInboundHandler<JSONObject> {
         }
     }
 
-    public List<String> channels() {
+    /**
+     * Returns if messages with the OP code may be part of a batch.
+     * Only publishes are batched, so a batch can neither contain another batch nor control messages.
+     *
+     * @param opCode The OP code of a message in a batch.
+     * @return True if the message is handled, false if it is dropped.
+     */
+    private static boolean batchable(OpCode opCode) {
+
+        switch (opCode) {
+            case OP_BROADCAST:
+            case OP_CHUNK:
+            case OP_INBOX:
+            case OP_SCHEDULE:
+            case OP_REQUEST:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Subscribes the channel with the options of a register frame.
+     *
+     * @param channelToRegister The channel or channel pattern.
+     * @param options The options like the consumer group, the offset, the filters, the fields and the ack mode.
+     */
+    private void register(String channelToRegister, JSONObject options) {
+
+        // Subscribers can join a consumer group which gets every message only once
+        String group = options.optString("group", null);
+        GroupBalance balance = GroupBalance.ROUND_ROBIN;
+        String balanceName = options.optString("balance", null);
+        if (balanceName != null) {
+            try {
+                balance = GroupBalance.valueOf(balanceName);
+            } catch (IllegalArgumentException e) {
+                LOGGER.log(Level.WARNING, "[{0}] Unknown group balance: {1}", new Object[]{remoteAddress.toString(), balanceName});
+            }
+        }
+
+        // Responders get the requests of the channel instead of its messages
+        if (options.optBoolean("respond", false)) {
+            if (ChannelPattern.isPattern(channelToRegister)) {
+                LOGGER.log(Level.WARNING, "[{0}] Cannot respond to channel pattern: {1}", new Object[]{remoteAddress.toString(), channelToRegister});
+                return;
+            }
+
+            responding.add(channelToRegister);
+            server.respond(channelToRegister, this, balance);
+            return;
+        }
+
+        // Subscribers of a durable channel can resume from an offset
+        long offset = options.optLong("offset", -1);
+
+        // Subscribers can let the server filter the messages by the values of top level members
+        Map<String, Set<String>> filter = null;
+        JSONObject filters = options.optJSONObject("filters");
+        if (filters != null) {
+            filter = new HashMap<>();
+
+            for (String filterKey : filters.keySet()) {
+                JSONArray values = filters.optJSONArray(filterKey);
+
+                if (values != null) {
+                    Set<String> filterValues = new HashSet<>();
+                    for (int i = 0; i < values.length(); i++) {
+                        filterValues.add(values.getString(i));
+                    }
+
+                    filter.put(filterKey, filterValues);
+                }
+            }
+        }
+
+        // Subscribers can let the server strip the messages down to the members they read
+        JSONArray fields = options.optJSONArray("fields");
+        if (fields != null && fields.length() > 0) {
+            List<String> fieldNames = new ArrayList<>();
+            for (int i = 0; i < fields.length(); i++) {
+                fieldNames.add(fields.getString(i));
+            }
+
+            projections.put(channelToRegister, new FieldProjection(fieldNames));
+        } else {
+            projections.remove(channelToRegister);
+        }
+
+        // Acknowledged subscriptions get every message at least once
+        boolean ack = options.optBoolean("ack", false) && !ChannelPattern.isPattern(channelToRegister);
+        AckWindow newWindow = null;
+
+        if (ack && !ackWindows.containsKey(channelToRegister)) {
+            // The window has to exist before the first sequenced message arrives, its numbers continue
+            // after the ones of earlier windows because the subscriber skips numbers it has already handled
+            newWindow = new AckWindow(this, channelToRegister, server.config().ackWindow(), server.config().ackTimeoutMillis(), server.config().slowConsumerMaxBytes(), nextAckSequence);
+            ackWindows.put(channelToRegister, newWindow);
+        }
+
+        if (!server.subscribeChannel(channelToRegister, this, group, balance, offset, filter, ack)) {
+            if (newWindow != null) {
+                ackWindows.remove(channelToRegister);
+                newWindow.close();
+            }
+            return;
+        }
+
+        subscribed(channelToRegister, group);
+    }
+
+    /**
+     * Remembers a subscribed channel and hands out its id.
+     *
+     * @param channelName The subscribed channel or channel pattern.
+     * @param group The consumer group or null.
+     */
+    private void subscribed(String channelName, String group) {
+
+        channels.add(channelName);
+        handOutChannelId(channelName, false);
+
+        if (group != null) {
+            groups.put(channelName, group);
+        } else {
+            groups.remove(channelName);
+        }
+    }
+
+    private void unregister(String channelToRemove) {
+
+        if (responding.remove(channelToRemove)) {
+            server.stopResponding(channelToRemove, this);
+        }
+
+        server.unsubscribeChannel(channelToRemove, this);
+        channels.remove(channelToRemove);
+        groups.remove(channelToRemove);
+        projections.remove(channelToRemove);
+        releaseChannelId(channelToRemove);
+
+        AckWindow ackWindow = ackWindows.remove(channelToRemove);
+        if (ackWindow != null) {
+            nextAckSequence = Math.max(nextAckSequence, ackWindow.nextSequence());
+            ackWindow.close();
+        }
+    }
+
+    public Set<String> channels() {
 
         return channels;
     }
 
+    /**
+     * Returns the channels whose requests the connection answers.
+     */
+    public Set<String> responding() {
+
+        return responding;
+    }
+
+    /**
+     * Returns the consumer group the connection joined for the channel.
+     *
+     * @param channel The channel.
+     * @return The group or null if the channel was subscribed without a group.
+     */
+    public String group(String channel) {
+
+        return groups.get(channel);
+    }
+
+    /**
+     * Returns the projection the connection wants the messages of the channel in.
+     *
+     * @param channel The channel.
+     * @return The projection or null for whole messages.
+     */
+    public FieldProjection projection(String channel) {
+
+        return (channel != null && !projections.isEmpty()) ? projections.get(channel) : null;
+    }
+
     public SocketAddress remoteAddress() {
 
         return remoteAddress;
@@ -238,13 +933,219 @@ public class Connection extends SimpleChannelInboundHandler<JSONObject> {
         return port;
     }
 
+    /**
+     * Returns the id of the connection which is unique on this server, replies are routed to their requester by it.
+     */
+    public long id() {
+
+        return id;
+    }
+
     public String name() {
 
         return name;
     }
 
+    /**
+     * Returns if the connection receives the direct messages for its name.
+     */
+    public boolean inbox() {
+
+        return inbox;
+    }
+
+    public void close() {
+
+        if (detached) {
+            eventLoop().execute(this::expire);
+            return;
+        }
+
+        // A connection which is closed on purpose does not keep its session
+        writeQueue.close();
+
+        channel.close();
+    }
+
     public boolean connected() {
 
         return channel.isActive();
     }
+
+    /**
+     * Returns the channel the connection currently uses.
+     */
+    Channel channel() {
+
+        return channel;
+    }
+
+    public boolean writable() {
+
+        return channel.isWritable();
+    }
+
+    /**
+     * Returns the bytes which are queued or written but not yet flushed to this connection.
+     */
+    public long outstandingBytes() {
+
+        return writeQueue.queuedBytes() + writeQueue.pendingBytes();
+    }
+
+    public EventLoop eventLoop() {
+
+        return channel.eventLoop();
+    }
+
+    public Protocol protocol() {
+
+        return Protocol.of(channel);
+    }
+
+    /**
+     * Returns the protocol for a message of the channel.
+     * Channel ids are only used for the channels whose id was handed out on this connection.
+     *
+     * @param channelName The channel of the message.
+     * @param channelId The channel id the message is encoded with or -1.
+     * @return The protocol.
+     */
+    public Protocol protocol(String channelName, int channelId) {
+
+        Protocol protocol = Protocol.of(channel);
+
+        if (protocol == Protocol.COMPACT) {
+            ChannelIds channelIds = channel.attr(ChannelIds.ATTRIBUTE).get();
+
+            // The id might have been released or handed out again since the message was encoded
+            if (channelId == -1 || channelIds == null || channelIds.id(channelName) != channelId) {
+                return Protocol.BINARY;
+            }
+        }
+
+        return protocol;
+    }
+
+    /**
+     * Hands out the id of the channel if the connection uses channel ids and does not know the id yet.
+     * At most {@link #MAX_PUBLISH_CHANNEL_IDS} ids are handed out for the channels the connection publishes to,
+     * as these are only released once the connection is gone.
+     * Must be called from the event loop of the connection.
+     *
+     * @param channelName The channel.
+     * @param publish True if the connection publishes to the channel, false if it subscribed it.
+     */
+    private void handOutChannelId(String channelName, boolean publish) {
+
+        ChannelIds channelIds = channel.attr(ChannelIds.ATTRIBUTE).get();
+
+        if (channelIds == null || channelName == null || ChannelPattern.isPattern(channelName)
+                || channelIds.id(channelName) != -1 || channelIds.size() >= MAX_CHANNEL_IDS
+                || (publish && publishChannelIds >= MAX_PUBLISH_CHANNEL_IDS)) {
+            return;
+        }
+
+        if (publish) {
+            publishChannelIds++;
+        }
+
+        int id = server.channelIds().acquire(channelName);
+
+        // The id is written before any message which uses it
+        writeQueue.write(new Frame(OpCode.OP_CHANNEL_ID)
+                .channel(channelName)
+                .channelId(id));
+
+        channelIds.put(channelName, id);
+    }
+
+    /**
+     * Releases the id of an unsubscribed channel. The client stops using the id when it sends the unsubscription.
+     * Must be called from the event loop of the connection.
+     *
+     * @param channelName The channel.
+     */
+    private void releaseChannelId(String channelName) {
+
+        ChannelIds channelIds = channel.attr(ChannelIds.ATTRIBUTE).get();
+
+        if (channelIds != null && channelIds.id(channelName) != -1) {
+            channelIds.remove(channelName);
+            server.channelIds().release(channelName);
+        }
+    }
+
+    /**
+     * Remembers a request which is sent to this connection, so only a reply to it is routed back.
+     * Only the last {@link #MAX_PENDING_REQUESTS} unanswered requests are remembered.
+     *
+     * @param requester The id of the requesting connection.
+     * @param id The id of the request.
+     */
+    public void requested(long requester, int id) {
+
+        synchronized (pendingRequests) {
+            pendingRequests.put(new PendingRequest(requester, id), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Forgets the request the reply of this connection answers.
+     *
+     * @param requester The id of the requesting connection.
+     * @param id The id of the request.
+     * @return False if the connection did not get such a request or already replied to it.
+     */
+    public boolean replied(long requester, int id) {
+
+        synchronized (pendingRequests) {
+            return pendingRequests.remove(new PendingRequest(requester, id)) != null;
+        }
+    }
+
+    public WriteQueue writeQueue() {
+
+        return writeQueue;
+    }
+
+    public InboundLimit inboundLimit() {
+
+        return inboundLimit;
+    }
+
+    private static class PendingRequest {
+
+        private final long requester;
+
+        private final int id;
+
+        private PendingRequest(long requester, int id) {
+
+            this.requester = requester;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof PendingRequest)) {
+                return false;
+            }
+
+            PendingRequest that = (PendingRequest) o;
+
+            return requester == that.requester && id == that.id;
+        }
+
+        @Override
+        public int hashCode() {
+
+            return 31 * Long.hashCode(requester) + id;
+        }
+    }
 }
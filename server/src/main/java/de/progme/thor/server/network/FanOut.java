@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.network;
+
+import de.progme.thor.shared.net.EncodedFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.EventLoop;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The subscribers of a channel grouped by the event loop of their connection.
+ *
+ * A message is handed over to every event loop with a single task which writes it to all connections
+ * of that loop, instead of one task per connection. The connections of the publishing event loop are written directly.
+ * The writes are flushed together by the write queues at the end of the event loop tick.
+ * Connections with a field projection for the channel get the projected frame, which is built once per projection.
+ */
+public class FanOut {
+
+    private Group[] groups;
+
+    private int size;
+
+    private FanOut(Group[] groups, int size) {
+
+        this.groups = groups;
+        this.size = size;
+    }
+
+    public static FanOut of(Collection<Connection> connections) {
+
+        Map<EventLoop, List<Connection>> byEventLoop = new LinkedHashMap<>();
+        for (Connection connection : connections) {
+            byEventLoop.computeIfAbsent(connection.eventLoop(), e -> new ArrayList<>()).add(connection);
+        }
+
+        Group[] groups = new Group[byEventLoop.size()];
+
+        int i = 0;
+        for (Map.Entry<EventLoop, List<Connection>> entry : byEventLoop.entrySet()) {
+            groups[i++] = new Group(entry.getKey(), entry.getValue().toArray(new Connection[entry.getValue().size()]));
+        }
+
+        return new FanOut(groups, connections.size());
+    }
+
+    /**
+     * Sends the frame to all connections.
+     * Must be called before the encoded frame is released, but the frame can be released right after.
+     *
+     * @param encodedFrame The encoded frame.
+     * @param inboundLimit The limit of the connection the frame came from or null.
+     */
+    public void send(EncodedFrame encodedFrame, InboundLimit inboundLimit) {
+
+        send(encodedFrame, inboundLimit, false);
+    }
+
+    /**
+     * Sends the frame to all connections.
+     * Must be called before the encoded frame is released, but the frame can be released right after.
+     *
+     * @param encodedFrame The encoded frame.
+     * @param inboundLimit The limit of the connection the frame came from or null.
+     * @param ordered If the frame is also handed over as task to the publishing event loop,
+     *                so frames sent one after another from different event loops keep their order.
+     */
+    public void send(EncodedFrame encodedFrame, InboundLimit inboundLimit, boolean ordered) {
+
+        for (Group group : groups) {
+            group.send(encodedFrame, inboundLimit, ordered);
+        }
+    }
+
+    public int size() {
+
+        return size;
+    }
+
+    private static class Group {
+
+        private EventLoop eventLoop;
+
+        private Connection[] connections;
+
+        private Group(EventLoop eventLoop, Connection[] connections) {
+
+            this.eventLoop = eventLoop;
+            this.connections = connections;
+        }
+
+        private void send(EncodedFrame encodedFrame, InboundLimit inboundLimit, boolean ordered) {
+
+            String channel = encodedFrame.frame().channel();
+            long sequence = encodedFrame.frame().sequence();
+            String conflationKey = encodedFrame.conflationKey();
+
+            // The encoded frame is not thread safe, so the buffers are taken before handing them over
+            ByteBuf[] buffers = new ByteBuf[connections.length];
+            long bytes = 0;
+
+            for (int i = 0; i < connections.length; i++) {
+                buffers[i] = encodedFrame.projected(connections[i].projection(channel)).retainedBuffer(connections[i].protocol(channel, encodedFrame.channelId()));
+                bytes += buffers[i].readableBytes();
+            }
+
+            if (!ordered && eventLoop.inEventLoop()) {
+                write(buffers, channel, sequence, conflationKey);
+            } else if (inboundLimit == null) {
+                eventLoop.execute(() -> write(buffers, channel, sequence, conflationKey));
+            } else {
+                long inFlight = bytes;
+
+                inboundLimit.acquire(inFlight);
+
+                eventLoop.execute(() -> {
+
+                    try {
+                        write(buffers, channel, sequence, conflationKey);
+                    } finally {
+                        inboundLimit.release(inFlight);
+                    }
+                });
+            }
+        }
+
+        private void write(ByteBuf[] buffers, String channel, long sequence, String conflationKey) {
+
+            for (int i = 0; i < connections.length; i++) {
+                connections[i].write(buffers[i], channel, sequence, conflationKey);
+            }
+        }
+    }
+}
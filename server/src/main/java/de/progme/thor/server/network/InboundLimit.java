@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.network;
+
+import io.netty.channel.Channel;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the inbound bytes of a connection which are still in flight inside the server.
+ *
+ * Messages of a connection which are handed over to the event loops of other connections are counted
+ * until they arrived in the write queue there. If the limit is exceeded, reading from the connection
+ * is paused until at least half of these bytes are processed.
+ */
+public class InboundLimit {
+
+    private Channel channel;
+
+    private long maxBytes;
+
+    private AtomicLong bytes = new AtomicLong();
+
+    public InboundLimit(Channel channel, long maxBytes) {
+
+        this.channel = channel;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Counts the bytes as in flight. Can be called from any thread.
+     *
+     * @param size The size in bytes.
+     */
+    public void acquire(long size) {
+
+        if (bytes.addAndGet(size) > maxBytes && channel.config().isAutoRead()) {
+            channel.config().setAutoRead(false);
+
+            // Everything could have been processed in the meantime
+            if (bytes.get() <= maxBytes / 2) {
+                channel.config().setAutoRead(true);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes as processed. Can be called from any thread.
+     *
+     * @param size The size in bytes.
+     */
+    public void release(long size) {
+
+        if (bytes.addAndGet(-size) <= maxBytes / 2 && !channel.config().isAutoRead()) {
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    public long bytes() {
+
+        return bytes.get();
+    }
+}
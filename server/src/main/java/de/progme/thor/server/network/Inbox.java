@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.network;
+
+import de.progme.thor.shared.net.Frame;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The direct messages for one subscriber name, independent of any channel.
+ *
+ * The connections with the name which asked for their inbox receive the messages, every message is sent to one of them in turn.
+ * While none of them is online, the messages are buffered up to a maximum of bytes. Beyond that and after their
+ * time to live the oldest messages are dropped. A connection which comes online gets all buffered messages at once.
+ * All inboxes of the server share a maximum of buffered bytes, a message which does not fit into it is dropped.
+ *
+ * All methods are synchronized, an inbox is only used when a message for its name arrives or a connection comes or goes.
+ */
+public class Inbox {
+
+    private String name;
+
+    private long maxBytes;
+
+    private long timeToLive;
+
+    private List<Connection> receivers = new ArrayList<>(1);
+
+    private int next;
+
+    private ArrayDeque<Entry> buffered = new ArrayDeque<>();
+
+    private long bufferedBytes;
+
+    private long droppedMessages;
+
+    private AtomicLong totalBytes;
+
+    private long maxTotalBytes;
+
+    /**
+     * @param name The subscriber name.
+     * @param maxBytes The bytes the inbox buffers at most.
+     * @param timeToLive The time in milliseconds after which buffered messages are dropped or 0 to keep them.
+     * @param totalBytes The bytes all inboxes of the server buffer together.
+     * @param maxTotalBytes The bytes all inboxes of the server buffer at most.
+     */
+    public Inbox(String name, long maxBytes, long timeToLive, AtomicLong totalBytes, long maxTotalBytes) {
+
+        this.name = name;
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive;
+        this.totalBytes = totalBytes;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    /**
+     * Sends the message to the next online connection or buffers it.
+     *
+     * @param frame The message.
+     */
+    public synchronized void deliver(Frame frame) {
+
+        if (!receivers.isEmpty()) {
+            next = (next + 1) % receivers.size();
+
+            receivers.get(next).send(frame);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int size = frame.body().length;
+
+        if (size > maxBytes) {
+            droppedMessages++;
+            return;
+        }
+
+        expire(now);
+
+        while (bufferedBytes + size > maxBytes) {
+            buffered(-buffered.poll().size);
+            droppedMessages++;
+        }
+
+        if (totalBytes.addAndGet(size) > maxTotalBytes) {
+            totalBytes.addAndGet(-size);
+            droppedMessages++;
+            return;
+        }
+
+        buffered.add(new Entry(frame, size, now));
+        bufferedBytes += size;
+    }
+
+    /**
+     * Adds the connection to the receivers and sends it the buffered messages.
+     * Must be called from the event loop of the connection, so messages delivered afterwards can not overtake them.
+     *
+     * @param connection The connection.
+     */
+    public synchronized void online(Connection connection) {
+
+        if (receivers.contains(connection)) {
+            return;
+        }
+
+        receivers.add(connection);
+
+        expire(System.currentTimeMillis());
+
+        Entry entry;
+        while ((entry = buffered.poll()) != null) {
+            connection.send(entry.frame);
+        }
+
+        buffered(-bufferedBytes);
+    }
+
+    public synchronized void offline(Connection connection) {
+
+        receivers.remove(connection);
+    }
+
+    /**
+     * Drops the buffered messages whose time to live is over.
+     */
+    public synchronized void expire() {
+
+        expire(System.currentTimeMillis());
+    }
+
+    private void expire(long now) {
+
+        Entry entry;
+        while (timeToLive > 0 && (entry = buffered.peek()) != null && now - entry.bufferedAt > timeToLive) {
+            buffered.poll();
+
+            buffered(-entry.size);
+            droppedMessages++;
+        }
+    }
+
+    private void buffered(long bytes) {
+
+        bufferedBytes += bytes;
+        totalBytes.addAndGet(bytes);
+    }
+
+    public String name() {
+
+        return name;
+    }
+
+    /**
+     * Returns if the inbox has neither receivers nor buffered messages, so it can be removed.
+     */
+    public synchronized boolean isEmpty() {
+
+        return receivers.isEmpty() && buffered.isEmpty();
+    }
+
+    public synchronized int bufferedMessages() {
+
+        return buffered.size();
+    }
+
+    public synchronized long droppedMessages() {
+
+        return droppedMessages;
+    }
+
+    private static class Entry {
+
+        private Frame frame;
+
+        private int size;
+
+        private long bufferedAt;
+
+        private Entry(Frame frame, int size, long bufferedAt) {
+
+            this.frame = frame;
+            this.size = size;
+            this.bufferedAt = bufferedAt;
+        }
+    }
+}
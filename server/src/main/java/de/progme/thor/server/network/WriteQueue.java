@@ -0,0 +1,767 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.network;
+
+import de.progme.thor.server.Thor;
+import de.progme.thor.server.channel.ChannelPriorities;
+import de.progme.thor.server.config.Config;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.SlowConsumerPolicy;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.EventLoop;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces the flushes of a channel and protects the server from slow consumers.
+ *
+ * Messages are written without a flush and a single flush is scheduled on the event loop of the channel,
+ * so all messages written during the same read cycle or event loop tick go out with one syscall.
+ * If too many messages or bytes are waiting for the flush, it is forced immediately.
+ *
+ * While the channel is above its write buffer high watermark, messages are held back in a queue
+ * and written once it drains below the low watermark. Channel messages in that queue are subject to the
+ * {@link SlowConsumerPolicy} and the time to live, control messages like cache responses are never dropped.
+ * Neither are the messages of acknowledged subscriptions, which are bounded by their ack window instead.
+ * If these messages alone exceed the limit of the queue, the connection is closed.
+ *
+ * Held back messages wait in one of two lanes. Control messages and the messages of priority channels
+ * are written before all bulk channel messages, so a cache response does not wait behind megabytes of broadcasts.
+ * The messages of a channel always use the same lane and keep their order. Bulk messages are dropped first.
+ *
+ * A held back message with a conflation key is replaced by the next message of its channel with the same key,
+ * so the backlog of a channel which carries state updates is bounded by the number of its keys.
+ *
+ * While the channel of a session is gone, all messages are held back until the session is resumed on a new channel
+ * or the buffered messages exceed the limit of the session.
+ *
+ * All state is only touched by the event loop of the channel, writes from other threads are handed over to it.
+ * The metrics can be read from any thread.
+ */
+public class WriteQueue {
+
+    private static final Logger LOGGER = Thor.getLogger();
+
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    private volatile Channel channel;
+
+    private EventLoop eventLoop;
+
+    private int maxPendingMessages;
+
+    private int maxPendingBytes;
+
+    private volatile SlowConsumerPolicy policy;
+
+    private ChannelPriorities priorities;
+
+    private int maxQueuedBytes;
+
+    private int maxUnwritableMillis;
+
+    private int timeToLive;
+
+    private int pendingMessages;
+
+    private long pendingBytes;
+
+    private boolean flushScheduled;
+
+    private ArrayDeque<Entry> queue = new ArrayDeque<>();
+
+    private ArrayDeque<Entry> priorityQueue = new ArrayDeque<>();
+
+    private Map<String, Entry> conflated = new HashMap<>();
+
+    private Map<String, Entry> keyed = new HashMap<>();
+
+    private long unwritableSince = -1;
+
+    private boolean closed;
+
+    private boolean detached;
+
+    private long maxDetachedBytes;
+
+    private Runnable overflow;
+
+    private volatile int queuedMessages;
+
+    private volatile long queuedBytes;
+
+    private volatile long droppedMessages;
+
+    private volatile long expiredMessages;
+
+    private Runnable flushTask = () -> {
+
+        flushScheduled = false;
+
+        flush();
+    };
+
+    public WriteQueue(Channel channel, Config config, SlowConsumerPolicy policy) {
+
+        this(channel, config, policy, null);
+    }
+
+    /**
+     * Creates the queue of a channel.
+     *
+     * @param channel The channel.
+     * @param config The config with the limits.
+     * @param policy The initial slow consumer policy.
+     * @param priorities The channels whose messages are written before bulk messages or null.
+     */
+    public WriteQueue(Channel channel, Config config, SlowConsumerPolicy policy, ChannelPriorities priorities) {
+
+        this(channel, config, policy, priorities, config.slowConsumerMaxBytes());
+    }
+
+    /**
+     * Creates the queue of a channel.
+     *
+     * @param channel The channel.
+     * @param config The config with the limits.
+     * @param policy The initial slow consumer policy.
+     * @param priorities The channels whose messages are written before bulk messages or null.
+     * @param maxQueuedBytes The maximum bytes of held back messages.
+     */
+    public WriteQueue(Channel channel, Config config, SlowConsumerPolicy policy, ChannelPriorities priorities, int maxQueuedBytes) {
+
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+
+        this.channel = channel;
+        this.eventLoop = channel.eventLoop();
+        this.maxPendingMessages = config.flushMaxMessages();
+        this.maxPendingBytes = config.flushMaxBytes();
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxUnwritableMillis = config.slowConsumerMaxMillis();
+        this.timeToLive = config.messageTimeToLive();
+        this.policy = policy;
+        this.priorities = priorities;
+    }
+
+    /**
+     * Writes a control message which is never dropped or expired.
+     * Can be called from any thread.
+     *
+     * @param message The frame or encoded buffer to write.
+     */
+    public void write(Object message) {
+
+        write(message, null);
+    }
+
+    /**
+     * Writes a message of the given channel which is subject to the slow consumer policy.
+     * Can be called from any thread.
+     *
+     * @param message The frame or encoded buffer to write.
+     * @param channelName The channel of the message or null if it is a control message.
+     */
+    public void write(Object message, String channelName) {
+
+        write(message, channelName, null);
+    }
+
+    /**
+     * Writes a message of the given channel which is subject to the slow consumer policy.
+     * Can be called from any thread.
+     *
+     * @param message The frame or encoded buffer to write.
+     * @param channelName The channel of the message or null if it is a control message.
+     * @param inboundLimit The limit of the connection the message came from or null.
+     */
+    public void write(Object message, String channelName, InboundLimit inboundLimit) {
+
+        write(message, channelName, null, inboundLimit);
+    }
+
+    /**
+     * Writes a message of the given channel which is subject to the slow consumer policy.
+     * Can be called from any thread.
+     *
+     * @param message The frame or encoded buffer to write.
+     * @param channelName The channel of the message or null if it is a control message.
+     * @param conflationKey The key which replaces a held back message of the channel with the same key or null.
+     * @param inboundLimit The limit of the connection the message came from or null.
+     */
+    public void write(Object message, String channelName, String conflationKey, InboundLimit inboundLimit) {
+
+        write(message, channelName, conflationKey, inboundLimit, channelName == null);
+    }
+
+    /**
+     * Writes a message of an acknowledged subscription. It keeps the lane of its channel,
+     * but like a control message it is never dropped, conflated or expired.
+     * Can be called from any thread.
+     *
+     * @param message The frame or encoded buffer to write.
+     * @param channelName The channel of the message.
+     */
+    public void writeAcknowledged(Object message, String channelName) {
+
+        write(message, channelName, null, null, true);
+    }
+
+    private void write(Object message, String channelName, String conflationKey, InboundLimit inboundLimit, boolean reliable) {
+
+        if (eventLoop.inEventLoop()) {
+            write0(message, channelName, conflationKey, reliable);
+        } else if (inboundLimit == null) {
+            eventLoop.execute(() -> write0(message, channelName, conflationKey, reliable));
+        } else {
+            int size = size(message);
+
+            // The message is in flight until it reached the event loop of this channel
+            inboundLimit.acquire(size);
+
+            eventLoop.execute(() -> {
+
+                try {
+                    write0(message, channelName, conflationKey, reliable);
+                } finally {
+                    inboundLimit.release(size);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets the slow consumer policy for all following messages.
+     * Must be called from the event loop of the channel.
+     *
+     * @param policy The new policy.
+     */
+    public void policy(SlowConsumerPolicy policy) {
+
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+
+        this.policy = policy;
+
+        if (policy != SlowConsumerPolicy.CONFLATE) {
+            conflated.clear();
+        }
+    }
+
+    public SlowConsumerPolicy policy() {
+
+        return policy;
+    }
+
+    /**
+     * Must be called from the handler of the channel whenever its writability changed.
+     */
+    public void writabilityChanged() {
+
+        if (channel.isWritable()) {
+            unwritableSince = -1;
+
+            drain();
+        } else {
+            markUnwritable();
+
+            // Get the buffered messages out as fast as possible
+            flush();
+        }
+    }
+
+    /**
+     * Releases all queued messages, must be called from the event loop once the channel is closed.
+     */
+    public void close() {
+
+        closed = true;
+        detached = false;
+
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            ReferenceCountUtil.release(entry.message);
+        }
+
+        while ((entry = priorityQueue.poll()) != null) {
+            ReferenceCountUtil.release(entry.message);
+        }
+
+        conflated.clear();
+        keyed.clear();
+        queuedMessages = 0;
+        queuedBytes = 0;
+    }
+
+    /**
+     * Holds back all following messages until the queue is attached to a new channel.
+     * Must be called from the event loop once the channel is closed.
+     *
+     * @param maxBytes The maximum bytes of held back messages.
+     * @param overflow Called instead of queueing a message which exceeds the maximum bytes.
+     */
+    public void detach(long maxBytes, Runnable overflow) {
+
+        this.detached = true;
+        this.maxDetachedBytes = maxBytes;
+        this.overflow = overflow;
+
+        unwritableSince = -1;
+        pendingMessages = 0;
+        pendingBytes = 0;
+    }
+
+    /**
+     * Continues writing to a new channel which must be registered with the event loop of the queue.
+     * Must be called from the event loop.
+     *
+     * @param channel The new channel.
+     * @param first The messages which are written before the held back messages.
+     */
+    public void attach(Channel channel, List<Object> first) {
+
+        this.channel = channel;
+        this.detached = false;
+        this.overflow = null;
+
+        for (Object message : first) {
+            writeAndFlushLater(message, size(message));
+        }
+
+        drain();
+    }
+
+    public boolean closed() {
+
+        return closed;
+    }
+
+    private void write0(Object message, String channelName, String conflationKey, boolean reliable) {
+
+        if (closed) {
+            ReferenceCountUtil.release(message);
+            return;
+        }
+
+        int size = size(message);
+        boolean priority = channelName == null || (priorities != null && priorities.isPriority(channelName));
+        String keyedName = (channelName != null && conflationKey != null) ? channelName + KEY_SEPARATOR + conflationKey : null;
+
+        if (detached) {
+            // Only the latest state of a key is kept for the client
+            if (keyedName != null && replace(keyed.get(keyedName), message, size)) {
+                return;
+            }
+
+            // Nothing is dropped while the session waits for its client, it rather ends
+            if (queuedBytes + size > maxDetachedBytes) {
+                ReferenceCountUtil.release(message);
+
+                overflow.run();
+                return;
+            }
+
+            enqueue(link(new Entry(message, size, channelName, priority, reliable), keyedName));
+            return;
+        }
+
+        // Priority messages only wait for other priority messages
+        boolean laneEmpty = priority ? priorityQueue.isEmpty() : queueEmpty();
+
+        if (laneEmpty && channel.isWritable()) {
+            writeAndFlushLater(message, size);
+
+            if (!channel.isWritable()) {
+                markUnwritable();
+            }
+            return;
+        }
+
+        if (reliable) {
+            if (queuedBytes + size > maxQueuedBytes) {
+                // Control and acknowledged messages are never dropped, so make room for them or give up the connection
+                dropOldest(queuedBytes + size - maxQueuedBytes);
+
+                if (queuedBytes + size > maxQueuedBytes) {
+                    ReferenceCountUtil.release(message);
+
+                    disconnect("queued more than " + maxQueuedBytes + " bytes of control messages");
+                    return;
+                }
+            }
+
+            enqueue(new Entry(message, size, channelName, priority, true));
+            return;
+        }
+
+        expire();
+
+        // Messages with a conflation key only replace the held back message with the same key
+        if (keyedName != null) {
+            if (replace(keyed.get(keyedName), message, size)) {
+                return;
+            }
+        } else if (policy == SlowConsumerPolicy.CONFLATE && replace(conflated.get(channelName), message, size)) {
+            return;
+        }
+
+        if (queuedBytes + size > maxQueuedBytes) {
+            switch (policy) {
+                case DROP_NEWEST:
+                    ReferenceCountUtil.release(message);
+                    droppedMessages++;
+                    return;
+                case DISCONNECT:
+                    ReferenceCountUtil.release(message);
+
+                    disconnect("queued more than " + maxQueuedBytes + " bytes");
+                    return;
+                default:
+                    dropOldest(queuedBytes + size - maxQueuedBytes);
+                    break;
+            }
+        }
+
+        Entry entry = link(new Entry(message, size, channelName, priority, false), keyedName);
+
+        if (keyedName == null && policy == SlowConsumerPolicy.CONFLATE) {
+            conflated.put(channelName, entry);
+        }
+
+        enqueue(entry);
+    }
+
+    /**
+     * Replaces the message of a held back entry, it keeps its place in the queue.
+     *
+     * @param previous The held back entry or null.
+     * @param message The new message.
+     * @param size The size of the new message.
+     * @return True if the message replaced the one of the entry.
+     */
+    private boolean replace(Entry previous, Object message, int size) {
+
+        if (previous == null) {
+            return false;
+        }
+
+        ReferenceCountUtil.release(previous.message);
+
+        queuedBytes += size - previous.size;
+        droppedMessages++;
+
+        previous.message = message;
+        previous.size = size;
+        previous.enqueuedAt = System.currentTimeMillis();
+
+        return true;
+    }
+
+    private Entry link(Entry entry, String keyedName) {
+
+        if (keyedName != null) {
+            entry.keyedName = keyedName;
+
+            keyed.put(keyedName, entry);
+        }
+
+        return entry;
+    }
+
+    private void unlink(Entry entry) {
+
+        if (entry.channelName != null && conflated.get(entry.channelName) == entry) {
+            conflated.remove(entry.channelName);
+        }
+
+        if (entry.keyedName != null && keyed.get(entry.keyedName) == entry) {
+            keyed.remove(entry.keyedName);
+        }
+    }
+
+    private void writeAndFlushLater(Object message, int size) {
+
+        pendingMessages++;
+        pendingBytes += size;
+
+        channel.write(message, channel.voidPromise());
+
+        if (pendingMessages >= maxPendingMessages || pendingBytes >= maxPendingBytes) {
+            flush();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+
+            eventLoop.execute(flushTask);
+        }
+    }
+
+    private void enqueue(Entry entry) {
+
+        (entry.priority ? priorityQueue : queue).add(entry);
+
+        queuedMessages++;
+        queuedBytes += entry.size;
+    }
+
+    private Entry dequeue() {
+
+        Entry entry = priorityQueue.isEmpty() ? queue.poll() : priorityQueue.poll();
+
+        queuedMessages--;
+        queuedBytes -= entry.size;
+
+        unlink(entry);
+
+        return entry;
+    }
+
+    private void drain() {
+
+        while (!queueEmpty() && channel.isWritable()) {
+            Entry entry = dequeue();
+
+            if (expired(entry, System.currentTimeMillis())) {
+                ReferenceCountUtil.release(entry.message);
+                expiredMessages++;
+            } else {
+                writeAndFlushLater(entry.message, entry.size);
+            }
+        }
+
+        if (!channel.isWritable()) {
+            markUnwritable();
+        }
+    }
+
+    private boolean queueEmpty() {
+
+        return queue.isEmpty() && priorityQueue.isEmpty();
+    }
+
+    private void dropOldest(long bytes) {
+
+        // The messages of priority channels are only dropped if dropping bulk messages is not enough
+        dropOldest(priorityQueue, dropOldest(queue, bytes));
+    }
+
+    private long dropOldest(ArrayDeque<Entry> lane, long bytes) {
+
+        Iterator<Entry> iterator = lane.iterator();
+        while (bytes > 0 && iterator.hasNext()) {
+            Entry entry = iterator.next();
+
+            // Control and acknowledged messages are never dropped
+            if (entry.reliable) {
+                continue;
+            }
+
+            iterator.remove();
+            remove(entry);
+
+            droppedMessages++;
+            bytes -= entry.size;
+        }
+
+        return bytes;
+    }
+
+    private void expire() {
+
+        if (timeToLive <= 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        expire(queue, now);
+        expire(priorityQueue, now);
+    }
+
+    private void expire(ArrayDeque<Entry> lane, long now) {
+
+        Iterator<Entry> iterator = lane.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+
+            // Entries are ordered by time, except for conflated ones which are only refreshed
+            if (entry.reliable) {
+                continue;
+            }
+            if (!expired(entry, now)) {
+                break;
+            }
+
+            iterator.remove();
+            remove(entry);
+
+            expiredMessages++;
+        }
+    }
+
+    private void remove(Entry entry) {
+
+        ReferenceCountUtil.release(entry.message);
+
+        queuedMessages--;
+        queuedBytes -= entry.size;
+
+        unlink(entry);
+    }
+
+    private boolean expired(Entry entry, long now) {
+
+        return timeToLive > 0 && !entry.reliable && now - entry.enqueuedAt > timeToLive;
+    }
+
+    private void markUnwritable() {
+
+        if (unwritableSince != -1) {
+            return;
+        }
+
+        unwritableSince = System.currentTimeMillis();
+
+        if (policy == SlowConsumerPolicy.DISCONNECT && maxUnwritableMillis > 0) {
+            eventLoop.schedule(this::checkUnwritable, maxUnwritableMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void checkUnwritable() {
+
+        if (closed || detached || unwritableSince == -1 || policy != SlowConsumerPolicy.DISCONNECT) {
+            return;
+        }
+
+        // The channel might have been writable in between, so check again once the full time has passed
+        long remaining = unwritableSince + maxUnwritableMillis - System.currentTimeMillis();
+        if (remaining > 0) {
+            eventLoop.schedule(this::checkUnwritable, remaining, TimeUnit.MILLISECONDS);
+        } else {
+            disconnect("above the high watermark for more than " + maxUnwritableMillis + " ms");
+        }
+    }
+
+    private void disconnect(String reason) {
+
+        LOGGER.log(Level.WARNING, "[{0}] Disconnecting slow consumer: {1}", new Object[]{String.valueOf(channel.remoteAddress()), reason});
+
+        close();
+
+        channel.close();
+    }
+
+    private void flush() {
+
+        if (pendingMessages > 0) {
+            pendingMessages = 0;
+            pendingBytes = 0;
+
+            channel.flush();
+        }
+    }
+
+    /**
+     * Returns the number of messages held back because the channel is not writable.
+     */
+    public int queuedMessages() {
+
+        return queuedMessages;
+    }
+
+    /**
+     * Returns the bytes held back because the channel is not writable.
+     */
+    public long queuedBytes() {
+
+        return queuedBytes;
+    }
+
+    /**
+     * Returns the bytes which are written to the channel but not yet to the socket.
+     */
+    public long pendingBytes() {
+
+        ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+
+        return (outboundBuffer != null) ? outboundBuffer.totalPendingWriteBytes() : 0;
+    }
+
+    public long droppedMessages() {
+
+        return droppedMessages;
+    }
+
+    public long expiredMessages() {
+
+        return expiredMessages;
+    }
+
+    private static int size(Object message) {
+
+        if (message instanceof ByteBuf) {
+            return ((ByteBuf) message).readableBytes();
+        }
+
+        if (message instanceof Frame) {
+            return ((Frame) message).body().length;
+        }
+
+        return 0;
+    }
+
+    private static class Entry {
+
+        private Object message;
+
+        private int size;
+
+        private String channelName;
+
+        private long enqueuedAt;
+
+        private boolean priority;
+
+        private boolean reliable;
+
+        private String keyedName;
+
+        private Entry(Object message, int size, String channelName, boolean priority, boolean reliable) {
+
+            this.message = message;
+            this.size = size;
+            this.channelName = channelName;
+            this.priority = priority;
+            this.reliable = reliable;
+            this.enqueuedAt = System.currentTimeMillis();
+        }
+    }
+}
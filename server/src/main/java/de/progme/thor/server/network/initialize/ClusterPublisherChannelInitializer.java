@@ -20,15 +20,15 @@
 package de.progme.thor.server.network.initialize;
 
 import de.progme.thor.server.ThorServer;
-import de.progme.thor.shared.pipeline.handler.JSONObjectDecoder;
-import de.progme.thor.shared.pipeline.handler.JSONObjectEncoder;
+import de.progme.thor.shared.pipeline.handler.FrameDecoder;
+import de.progme.thor.shared.pipeline.handler.FrameEncoder;
+import de.progme.thor.shared.pipeline.handler.FrameLengthDecoder;
+import de.progme.thor.shared.pipeline.handler.HandshakeHandler;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelException;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.LengthFieldPrepender;
 
 /**
  * Created by Marvin Erkes on 07.10.2017.
@@ -37,9 +37,16 @@ public class ClusterPublisherChannelInitializer extends ChannelInitializer<Chann
 
     private ThorServer.ClusterPublisher clusterPublisher;
 
-    public ClusterPublisherChannelInitializer(ThorServer.ClusterPublisher clusterPublisher) {
+    private int maxFrameSize;
+
+    /**
+     * @param clusterPublisher The cluster publisher.
+     * @param maxFrameSize The max frame size this server accepts, until the other server tells its own in the handshake.
+     */
+    public ClusterPublisherChannelInitializer(ThorServer.ClusterPublisher clusterPublisher, int maxFrameSize) {
 
         this.clusterPublisher = clusterPublisher;
+        this.maxFrameSize = maxFrameSize;
     }
 
     @Override
@@ -52,10 +59,10 @@ public class ClusterPublisherChannelInitializer extends ChannelInitializer<Chann
         }
         channel.config().setAllocator(PooledByteBufAllocator.DEFAULT);
 
-        channel.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4));
-        channel.pipeline().addLast(new JSONObjectDecoder());
-        channel.pipeline().addLast(new LengthFieldPrepender(4));
-        channel.pipeline().addLast(new JSONObjectEncoder());
+        channel.pipeline().addLast(new FrameLengthDecoder(maxFrameSize));
+        channel.pipeline().addLast(new FrameDecoder());
+        channel.pipeline().addLast(new FrameEncoder());
+        channel.pipeline().addLast(new HandshakeHandler(true));
         channel.pipeline().addLast(clusterPublisher);
     }
 }
@@ -21,15 +21,16 @@ package de.progme.thor.server.network.initialize;
 
 import de.progme.thor.server.ThorServer;
 import de.progme.thor.server.network.Connection;
-import de.progme.thor.shared.pipeline.handler.JSONObjectDecoder;
-import de.progme.thor.shared.pipeline.handler.JSONObjectEncoder;
+import de.progme.thor.shared.pipeline.handler.FrameDecoder;
+import de.progme.thor.shared.pipeline.handler.FrameEncoder;
+import de.progme.thor.shared.pipeline.handler.FrameLengthDecoder;
+import de.progme.thor.shared.pipeline.handler.HandshakeHandler;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelException;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.channel.WriteBufferWaterMark;
 
 /**
  * Created by Marvin Erkes on 07.10.2017.
@@ -52,11 +53,12 @@ public class ServerChannelInitializer extends ChannelInitializer<Channel> {
             // Not supported
         }
         channel.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(thorServer.config().writeBufferLowWaterMark(), thorServer.config().writeBufferHighWaterMark()));
 
-        channel.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4));
-        channel.pipeline().addLast(new JSONObjectDecoder());
-        channel.pipeline().addLast(new LengthFieldPrepender(4));
-        channel.pipeline().addLast(new JSONObjectEncoder());
+        channel.pipeline().addLast(new FrameLengthDecoder(thorServer.config().maxFrameSize()));
+        channel.pipeline().addLast(new FrameDecoder());
+        channel.pipeline().addLast(new FrameEncoder());
+        channel.pipeline().addLast(new HandshakeHandler(false).maxFrameSize(thorServer.config().maxFrameSize()));
         channel.pipeline().addLast(new Connection(thorServer, channel));
     }
 }
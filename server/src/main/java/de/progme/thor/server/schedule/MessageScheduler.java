@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.schedule;
+
+import de.progme.thor.server.Thor;
+import de.progme.thor.server.ThorServer;
+import de.progme.thor.server.config.Config;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.JsonFrameCodec;
+import de.progme.thor.shared.net.OpCode;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.CharsetUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds messages which are published for a later time and broadcasts them once they are due.
+ *
+ * The messages wait in a {@link TimerWheel} which is owned and advanced by the single thread of the scheduler,
+ * new messages are handed over to it through a queue. Messages which are already due are broadcast right away.
+ * The pending messages are written to a snapshot next to the snapshots of the cache and can be loaded again.
+ */
+public class MessageScheduler {
+
+    public static final String SNAPSHOT_FORMAT = "Thor scheduled messages format v.0.0.1";
+
+    private static final Logger LOGGER = Thor.getLogger();
+
+    private ThorServer server;
+
+    private long maxBytes;
+
+    private TimerWheel<Frame> wheel;
+
+    private Queue<Frame> added = new ConcurrentLinkedQueue<>();
+
+    private AtomicInteger pendingMessages = new AtomicInteger();
+
+    private AtomicLong pendingBytes = new AtomicLong();
+
+    private ScheduledExecutorService executorService;
+
+    public MessageScheduler(ThorServer server, Config config) {
+
+        this.server = server;
+        this.maxBytes = config.scheduleMaxBytes();
+        this.wheel = new TimerWheel<>(config.scheduleTickMillis(), System.currentTimeMillis());
+
+        executorService = Executors.newScheduledThreadPool(1);
+        executorService.scheduleAtFixedRate(this::tick, config.scheduleTickMillis(), config.scheduleTickMillis(), TimeUnit.MILLISECONDS);
+
+        if (config.snapshotInterval() > 0) {
+            executorService.scheduleAtFixedRate(this::writeSnapshot, config.snapshotInterval(), config.snapshotInterval(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Schedules the message for its delivery time.
+     *
+     * @param frame The {@link OpCode#OP_SCHEDULE} frame with channel and delivery time.
+     * @return False if the message was dropped because the scheduler holds its maximum of bytes.
+     */
+    public boolean schedule(Frame frame) {
+
+        if (frame.deliverAt() <= System.currentTimeMillis()) {
+            deliver(frame);
+            return true;
+        }
+
+        int size = frame.body().length;
+
+        if (pendingBytes.addAndGet(size) > maxBytes) {
+            pendingBytes.addAndGet(-size);
+            return false;
+        }
+
+        pendingMessages.incrementAndGet();
+        added.add(frame);
+
+        return true;
+    }
+
+    private void tick() {
+
+        try {
+            addPending();
+
+            wheel.advance(System.currentTimeMillis(), this::expired);
+        } catch (Exception e) {
+            // An exception would cancel the ticks of the executor
+            LOGGER.log(Level.SEVERE, "[Scheduler] Could not advance the scheduled messages", e);
+        }
+    }
+
+    private void addPending() {
+
+        Frame frame;
+        while ((frame = added.poll()) != null) {
+            if (!wheel.add(frame, frame.deliverAt())) {
+                expired(frame);
+            }
+        }
+    }
+
+    private void expired(Frame frame) {
+
+        pendingMessages.decrementAndGet();
+        pendingBytes.addAndGet(-frame.body().length);
+
+        deliver(frame);
+    }
+
+    private void deliver(Frame frame) {
+
+        // The subscriber name is kept for the cluster, the server leaves it out for its own subscribers
+        Frame message = new Frame(OpCode.OP_BROADCAST)
+                .channel(frame.channel())
+                .subscriber(frame.subscriber())
+                .body(frame.body());
+
+        try {
+            if (frame.subscriber() == null) {
+                server.broadcast(null, frame.channel(), message);
+            } else {
+                server.broadcastTo(null, frame.channel(), message, frame.subscriber());
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "[Scheduler] Could not broadcast scheduled message to " + frame.channel(), e);
+        }
+    }
+
+    /**
+     * Writes the pending messages to a new snapshot file in the 'snapshots' folder.
+     * The snapshot is written by the thread of the scheduler, this method waits until it is done.
+     */
+    public void snapshot() {
+
+        try {
+            executorService.submit(this::writeSnapshot).get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeSnapshot() {
+
+        addPending();
+
+        if (wheel.size() == 0) {
+            return;
+        }
+
+        File file = Paths.get("snapshots", "scheduled-0.thor").toFile();
+
+        int id = 0;
+        while (file.exists()) {
+            file = Paths.get("snapshots", "scheduled-" + (++id) + ".thor").toFile();
+        }
+
+        LOGGER.log(Level.INFO, "[Scheduler] Creating snapshot from {0} scheduled messages", wheel.size());
+
+        ByteBuf byteBuf = Unpooled.buffer();
+
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(file))) {
+            bufferedWriter.write(SNAPSHOT_FORMAT);
+            bufferedWriter.newLine();
+
+            wheel.forEach(frame -> {
+                byteBuf.clear();
+                JsonFrameCodec.encode(frame, byteBuf);
+
+                byte[] line = ByteBufUtil.getBytes(byteBuf);
+                for (int i = 0; i < line.length; i++) {
+                    // Line breaks can only be whitespace between the tokens of valid JSON
+                    if (line[i] == '\n' || line[i] == '\r') {
+                        line[i] = ' ';
+                    }
+                }
+
+                try {
+                    bufferedWriter.write(new String(line, CharsetUtil.UTF_8));
+                    bufferedWriter.newLine();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            byteBuf.release();
+        }
+
+        LOGGER.log(Level.INFO, "Snapshot {0} saved in 'snapshots' folder", file.getName());
+    }
+
+    /**
+     * Schedules the messages of a snapshot again, messages which became due in the meantime are broadcast right away.
+     *
+     * @param path The path of the snapshot file.
+     * @return False if the file is no snapshot of scheduled messages.
+     */
+    public boolean loadSnapshot(String path) {
+
+        List<String> lines;
+
+        try {
+            lines = Files.readAllLines(Paths.get(path));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        if (lines.isEmpty() || !lines.get(0).equals(SNAPSHOT_FORMAT)) {
+            return false;
+        }
+
+        LOGGER.log(Level.INFO, "[Scheduler] Loading snapshot from {0}", path);
+
+        int loaded = 0;
+
+        for (int i = 1; i < lines.size(); i++) {
+            Frame frame;
+
+            try {
+                frame = JsonFrameCodec.decode(Unpooled.wrappedBuffer(lines.get(i).getBytes(CharsetUtil.UTF_8)));
+            } catch (CorruptedFrameException e) {
+                frame = null;
+            }
+
+            if (frame == null || frame.opCode() != OpCode.OP_SCHEDULE || frame.channel() == null || !frame.hasDeliverAt()) {
+                LOGGER.log(Level.SEVERE, "Invalid file format!");
+                break;
+            }
+
+            if (schedule(frame)) {
+                loaded++;
+            }
+        }
+
+        LOGGER.log(Level.INFO, "[Scheduler] Loaded {0} scheduled messages from snapshot file", loaded);
+
+        return true;
+    }
+
+    /**
+     * Returns how many messages wait for their delivery time.
+     */
+    public int pendingMessages() {
+
+        return pendingMessages.get();
+    }
+
+    public void close() {
+
+        executorService.shutdown();
+    }
+}
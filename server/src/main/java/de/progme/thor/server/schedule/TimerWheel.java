@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.schedule;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel which keeps values until their deadline.
+ *
+ * The wheel has four levels of 256 slots, a slot of the first level covers one tick and a slot of every further level
+ * covers a whole rotation of the level below. A value is put in the lowest level whose range reaches its deadline and
+ * moved one level down every time the level below starts a new rotation, so adding and expiring a value is O(1) no matter
+ * how many values are pending. With a tick of 10 milliseconds the wheel covers more than a year, values beyond that
+ * wait in the last slot of the highest level until they come in range.
+ *
+ * A value never expires before its deadline and at most one tick after it.
+ * The wheel is not thread safe, it is meant to be used by the single thread which advances it.
+ *
+ * @param <T> The type of the values.
+ */
+public class TimerWheel<T> {
+
+    private static final int LEVEL_BITS = 8;
+
+    private static final int SLOTS = 1 << LEVEL_BITS;
+
+    private static final int MASK = SLOTS - 1;
+
+    private static final int LEVELS = 4;
+
+    private static final long MAX_TICKS = (1L << (LEVEL_BITS * LEVELS)) - 1;
+
+    private long tickMillis;
+
+    private long currentTick;
+
+    private Node<T>[][] slots;
+
+    private int size;
+
+    /**
+     * Creates a new wheel.
+     *
+     * @param tickMillis The duration of one tick in milliseconds.
+     * @param now The current time in milliseconds.
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMillis, long now) {
+
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be greater than 0");
+        }
+
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+        this.slots = new Node[LEVELS][SLOTS];
+    }
+
+    /**
+     * Adds the value to the wheel.
+     *
+     * @param value The value.
+     * @param deadline The time in milliseconds the value expires at.
+     * @return False if the deadline is already due, the value is not added then.
+     */
+    public boolean add(T value, long deadline) {
+
+        // Round up, so the value never expires too early
+        long tick = (deadline + tickMillis - 1) / tickMillis;
+
+        if (tick <= currentTick) {
+            return false;
+        }
+
+        insert(new Node<>(value, tick));
+        size++;
+
+        return true;
+    }
+
+    private void insert(Node<T> node) {
+
+        // Values beyond the range of the wheel wait in the last slot of the highest level
+        long tick = Math.min(node.tick, currentTick + MAX_TICKS);
+        long delta = tick - currentTick;
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (LEVEL_BITS * (level + 1))) {
+            level++;
+        }
+
+        int index = (int) (tick >>> (LEVEL_BITS * level)) & MASK;
+
+        node.next = slots[level][index];
+        slots[level][index] = node;
+    }
+
+    /**
+     * Advances the wheel tick by tick up to the given time and passes every expired value to the consumer.
+     *
+     * @param now The current time in milliseconds.
+     * @param expired The consumer of the expired values.
+     */
+    public void advance(long now, Consumer<T> expired) {
+
+        long targetTick = now / tickMillis;
+
+        while (currentTick < targetTick) {
+            currentTick++;
+
+            // A higher level moves its next slot down once all levels below it completed a rotation
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (LEVEL_BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) (currentTick >>> (LEVEL_BITS * level)) & MASK);
+                }
+            }
+
+            int index = (int) currentTick & MASK;
+            Node<T> node = slots[0][index];
+            slots[0][index] = null;
+
+            while (node != null) {
+                Node<T> next = node.next;
+
+                size--;
+                expired.accept(node.value);
+
+                node = next;
+            }
+        }
+    }
+
+    private void cascade(int level, int index) {
+
+        Node<T> node = slots[level][index];
+        slots[level][index] = null;
+
+        while (node != null) {
+            Node<T> next = node.next;
+
+            insert(node);
+
+            node = next;
+        }
+    }
+
+    /**
+     * Passes every pending value to the consumer, in no particular order.
+     *
+     * @param consumer The consumer.
+     */
+    public void forEach(Consumer<T> consumer) {
+
+        for (Node<T>[] level : slots) {
+            for (Node<T> node : level) {
+                for (; node != null; node = node.next) {
+                    consumer.accept(node.value);
+                }
+            }
+        }
+    }
+
+    public int size() {
+
+        return size;
+    }
+
+    private static class Node<T> {
+
+        private T value;
+
+        private long tick;
+
+        private Node<T> next;
+
+        private Node(T value, long tick) {
+
+            this.value = value;
+            this.tick = tick;
+        }
+    }
+}
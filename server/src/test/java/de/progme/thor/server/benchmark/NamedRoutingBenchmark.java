@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.benchmark;
+
+import de.progme.thor.server.channel.ChannelSession;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares finding the subscribers of a channel with a given name for a targeted publish.
+ *
+ * scan is the old path which filters all subscribers of the channel for every message,
+ * indexed looks them up in the subscriber name index of the channel session.
+ *
+ * Run it with the test classpath of this module, all JMH command line options are supported.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NamedRoutingBenchmark {
+
+    @Param({"100", "10000"})
+    private int subscribers;
+
+    private ChannelSession<Subscriber> session;
+
+    private String target;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+
+        session = new ChannelSession<>("benchmark");
+
+        for (int i = 0; i < subscribers; i++) {
+            Subscriber subscriber = new Subscriber("subscriber-" + i);
+
+            session.add(subscriber, subscriber.name);
+        }
+
+        target = "subscriber-" + (subscribers / 2);
+    }
+
+    @Benchmark
+    public void scan(Blackhole blackhole) {
+
+        List<Subscriber> filtered = session.subscribers().stream().filter(subscriber -> target.equals(subscriber.name)).collect(Collectors.toList());
+
+        for (Subscriber subscriber : filtered) {
+            blackhole.consume(subscriber.deliver());
+        }
+    }
+
+    @Benchmark
+    public void indexed(Blackhole blackhole) {
+
+        for (Subscriber subscriber : session.subscribers(target)) {
+            blackhole.consume(subscriber.deliver());
+        }
+    }
+
+    /**
+     * Measures the cost of keeping the index up to date when subscribers come and go.
+     */
+    @Benchmark
+    public void churn() {
+
+        Subscriber subscriber = new Subscriber("churn-" + (next++ & 1023));
+
+        session.add(subscriber, subscriber.name);
+        session.remove(subscriber, subscriber.name);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(NamedRoutingBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    private static class Subscriber {
+
+        private String name;
+
+        private int delivered;
+
+        private Subscriber(String name) {
+
+            this.name = name;
+        }
+
+        private int deliver() {
+
+            return ++delivered;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.progme.thor.server.benchmark;
+
+import de.progme.thor.server.channel.SubscriberSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reproduces a reconnect storm where the subscribers of a channel leave and subscribe again
+ * while messages are still delivered to the channel.
+ *
+ * Every operation lets one subscriber reconnect, which is a remove followed by an add,
+ * and delivers a message to all subscribers after every {@code reconnectsPerMessage} reconnects.
+ * copyOnWrite is the old subscriber list which copies the whole array on every change,
+ * subscriberSet is the {@link SubscriberSet} which only copies once per delivered message after changes.
+ *
+ * Run it with the test classpath of this module, all JMH command line options are supported.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubscriptionChurnBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    private int subscribers;
+
+    @Param({"100"})
+    private int reconnectsPerMessage;
+
+    private List<Subscriber> connected;
+
+    private List<Subscriber> copyOnWrite;
+
+    private SubscriberSet<Subscriber> subscriberSet;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+
+        connected = new ArrayList<>(subscribers);
+        subscriberSet = new SubscriberSet<>();
+
+        for (int i = 0; i < subscribers; i++) {
+            Subscriber subscriber = new Subscriber();
+
+            connected.add(subscriber);
+            subscriberSet.add(subscriber);
+        }
+
+        copyOnWrite = new CopyOnWriteArrayList<>(connected);
+    }
+
+    @Benchmark
+    public void copyOnWrite(Blackhole blackhole) {
+
+        Subscriber subscriber = reconnecting();
+
+        copyOnWrite.remove(subscriber);
+        copyOnWrite.add(subscriber);
+
+        if (next % reconnectsPerMessage == 0) {
+            for (Subscriber s : copyOnWrite) {
+                blackhole.consume(s.deliver());
+            }
+        }
+    }
+
+    @Benchmark
+    public void subscriberSet(Blackhole blackhole) {
+
+        Subscriber subscriber = reconnecting();
+
+        subscriberSet.remove(subscriber);
+        subscriberSet.add(subscriber);
+
+        if (next % reconnectsPerMessage == 0) {
+            for (Subscriber s : subscriberSet.snapshot()) {
+                blackhole.consume(s.deliver());
+            }
+        }
+    }
+
+    private Subscriber reconnecting() {
+
+        // Walk through the subscribers with a stride, so the removed positions are spread over the whole list
+        next++;
+
+        return connected.get((int) ((next * 7919L) % subscribers));
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(SubscriptionChurnBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    private static class Subscriber {
+
+        private int delivered;
+
+        private int deliver() {
+
+            return ++delivered;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.channel;
+
+import de.progme.thor.shared.net.BinaryFrameCodec;
+import de.progme.thor.shared.net.EncodedFrame;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.OpCode;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelHistoryTest {
+
+    private static void add(ChannelHistory history, Frame frame) {
+
+        EncodedFrame encodedFrame = new EncodedFrame(frame, UnpooledByteBufAllocator.DEFAULT);
+
+        try {
+            history.add(encodedFrame);
+        } finally {
+            encodedFrame.release();
+        }
+    }
+
+    private static Frame message(int n) {
+
+        return new Frame(OpCode.OP_BROADCAST).channel("test").json(new JSONObject().put("n", n));
+    }
+
+    private static List<Frame> read(ChannelHistory history) {
+
+        List<Frame> frames = new ArrayList<>();
+
+        history.read(byteBuf -> {
+            try {
+                byteBuf.skipBytes(4);
+                frames.add(BinaryFrameCodec.decode(byteBuf));
+            } finally {
+                byteBuf.release();
+            }
+        });
+
+        return frames;
+    }
+
+    @Test
+    public void keepsTheLastMessages() {
+
+        ChannelHistory history = new ChannelHistory(2);
+
+        for (int i = 0; i < 3; i++) {
+            add(history, message(i));
+        }
+
+        List<Frame> frames = read(history);
+
+        assertEquals(2, frames.size());
+        assertEquals(1, frames.get(0).json().getInt("n"));
+        assertEquals(2, frames.get(1).json().getInt("n"));
+    }
+
+    @Test
+    public void dropsOffsetAndSequence() {
+
+        ChannelHistory history = new ChannelHistory(1);
+        add(history, message(1).offset(42).sequence(7));
+
+        Frame frame = read(history).get(0);
+
+        assertEquals("test", frame.channel());
+        assertFalse(frame.hasOffset());
+        assertFalse(frame.hasSequence());
+        assertEquals(1, frame.json().getInt("n"));
+    }
+
+    @Test
+    public void idleHistoryKeepsTheLastMessage() {
+
+        ChannelHistory history = new ChannelHistory(3);
+
+        for (int i = 0; i < 4; i++) {
+            add(history, message(i));
+        }
+
+        assertFalse(history.evictIfIdle(60000));
+        assertEquals(3, history.size());
+
+        assertFalse(history.evictIfIdle(0));
+        assertEquals(1, history.size());
+        assertEquals(3, read(history).get(0).json().getInt("n"));
+
+        // The history grows again with new messages
+        for (int i = 4; i < 7; i++) {
+            add(history, message(i));
+        }
+
+        List<Frame> frames = read(history);
+
+        assertEquals(3, frames.size());
+        assertEquals(4, frames.get(0).json().getInt("n"));
+        assertEquals(6, frames.get(2).json().getInt("n"));
+        assertEquals(3, history.capacity());
+    }
+
+    @Test
+    public void evictedHistoryIgnoresNewMessages() {
+
+        ChannelHistory history = new ChannelHistory(1);
+
+        assertFalse(history.evictIfIdle(60000));
+        assertTrue(history.evictIfIdle(0));
+
+        add(history, message(2));
+        assertEquals(0, history.size());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.channel;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelSessionTest {
+
+    private static Map<String, Set<String>> filter(String member, String... values) {
+
+        return Collections.singletonMap(member, new HashSet<>(Arrays.asList(values)));
+    }
+
+    @Test
+    public void subscribingWithFilterLeavesThePlainSubscribers() {
+
+        ChannelSession<String> session = new ChannelSession<>("test");
+        session.add("a", null);
+        long version = session.version();
+
+        session.add("a", null, null, null, filter("type", "x"));
+
+        assertTrue(session.subscribers().isEmpty());
+        assertTrue(session.filters().contains("a"));
+        assertNotEquals(version, session.version());
+    }
+
+    @Test
+    public void subscribingWithoutFilterLeavesTheFilters() {
+
+        ChannelSession<String> session = new ChannelSession<>("test");
+        session.add("a", null, null, null, filter("type", "x"));
+
+        session.add("a", null);
+
+        assertEquals(Collections.singletonList("a"), session.subscribers());
+        assertFalse(session.filters().contains("a"));
+    }
+
+    @Test
+    public void subscribingInAnotherGroupLeavesTheOldGroup() {
+
+        ChannelSession<String> session = new ChannelSession<>("test");
+        session.add("a", null, "first", null);
+
+        session.add("a", null, "second", null);
+
+        assertEquals(1, session.groups().size());
+        assertEquals("second", session.groups().iterator().next().name());
+
+        assertTrue(session.remove("a", null, "second"));
+        assertTrue(session.isEmpty());
+    }
+
+    @Test
+    public void subscribingInGroupLeavesThePlainSubscribers() {
+
+        ChannelSession<String> session = new ChannelSession<>("test");
+        session.add("a", null);
+        long version = session.version();
+
+        session.add("a", null, "group", null);
+
+        assertTrue(session.subscribers().isEmpty());
+        assertNotEquals(version, session.version());
+
+        assertTrue(session.remove("a", null, "group"));
+        assertTrue(session.isEmpty());
+    }
+
+    @Test
+    public void subscribingWithoutGroupLeavesTheGroup() {
+
+        ChannelSession<String> session = new ChannelSession<>("test");
+        session.add("a", null, "group", null);
+
+        session.add("a", null);
+
+        assertTrue(session.groups().isEmpty());
+
+        assertTrue(session.remove("a", null));
+        assertTrue(session.isEmpty());
+    }
+}
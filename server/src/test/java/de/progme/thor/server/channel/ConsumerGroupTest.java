@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.channel;
+
+import de.progme.thor.shared.net.GroupBalance;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ConsumerGroupTest {
+
+    @Test
+    public void roundRobinTakesTurns() {
+
+        ConsumerGroup<String> group = new ConsumerGroup<>("group", GroupBalance.ROUND_ROBIN);
+        group.add("a");
+        group.add("b");
+        group.add("c");
+
+        Set<String> selected = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            selected.add(group.select(member -> true, member -> 0L));
+        }
+
+        assertEquals(3, selected.size());
+    }
+
+    @Test
+    public void prefersWritableMembers() {
+
+        ConsumerGroup<String> group = new ConsumerGroup<>("group", GroupBalance.ROUND_ROBIN);
+        group.add("a");
+        group.add("b");
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals("b", group.select(member -> member.equals("b"), member -> 0L));
+        }
+    }
+
+    @Test
+    public void leastOutstandingPicksTheEmptiestMember() {
+
+        ConsumerGroup<String> group = new ConsumerGroup<>("group", GroupBalance.LEAST_OUTSTANDING);
+        group.add("a");
+        group.add("b");
+        group.add("c");
+
+        Map<String, Long> outstanding = new HashMap<>();
+        outstanding.put("a", 100L);
+        outstanding.put("b", 10L);
+        outstanding.put("c", 50L);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("b", group.select(member -> true, outstanding::get));
+        }
+    }
+
+    @Test
+    public void hashSelectionIsStable() {
+
+        ConsumerGroup<String> group = new ConsumerGroup<>("group", GroupBalance.ROUND_ROBIN);
+        group.add("a");
+        group.add("b");
+        group.add("c");
+
+        // All chunks of one transfer have to reach the same member
+        String member = group.select("transfer".hashCode());
+        for (int i = 0; i < 10; i++) {
+            group.select(m -> true, m -> 0L);
+            assertEquals(member, group.select("transfer".hashCode()));
+        }
+
+        assertEquals(group.select(Integer.MIN_VALUE), group.select(Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void emptyGroupSelectsNothing() {
+
+        ConsumerGroup<String> group = new ConsumerGroup<>("group", GroupBalance.ROUND_ROBIN);
+
+        assertNull(group.select(member -> true, member -> 0L));
+        assertNull(group.select(42));
+    }
+}
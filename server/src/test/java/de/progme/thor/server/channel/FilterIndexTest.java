@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.channel;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class FilterIndexTest {
+
+    private static Map<String, Set<String>> filter(String member, String... values) {
+
+        return Collections.singletonMap(member, new HashSet<>(Arrays.asList(values)));
+    }
+
+    @Test
+    public void matchesAnyValueOnce() {
+
+        FilterIndex<String> filters = new FilterIndex<>();
+        filters.add("a", filter("type", "x", "y"));
+        filters.add("b", Collections.singletonMap("region", Collections.singleton("eu")));
+
+        Map<String, String> members = new HashMap<>();
+        members.put("type", "y");
+        members.put("region", "eu");
+
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(filters.match(members)));
+        assertEquals(Collections.singletonList("a"), filters.match(Collections.singletonMap("type", "x")));
+    }
+
+    @Test
+    public void reusesTheResultForASingleMatchedValue() {
+
+        FilterIndex<String> filters = new FilterIndex<>();
+        filters.add("a", filter("type", "x"));
+        filters.add("b", filter("type", "x"));
+
+        Map<String, String> members = Collections.singletonMap("type", "x");
+
+        Object first = filters.match(members, 0, matched -> new HashSet<>(matched));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), first);
+        assertSame(first, filters.match(members, 0, matched -> new HashSet<>(matched)));
+
+        // A new version or a changed subscriber set computes it again
+        assertNotSame(first, filters.match(members, 1, matched -> new HashSet<>(matched)));
+        filters.add("c", filter("type", "x"));
+        assertEquals(3, filters.match(members, 1, matched -> new HashSet<>(matched)).size());
+
+        assertNull(filters.match(Collections.singletonMap("type", "y"), 1, matched -> new HashSet<>(matched)));
+    }
+}
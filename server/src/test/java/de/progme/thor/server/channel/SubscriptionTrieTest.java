@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.channel;
+
+import de.progme.thor.shared.net.ChannelPattern;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionTrieTest {
+
+    @Test
+    public void matchesExactSingleAndMultiWildcards() {
+
+        SubscriptionTrie<String> trie = new SubscriptionTrie<>();
+        trie.add("metrics.*.cpu", "single");
+        trie.add("metrics.#", "multi");
+        trie.add("metrics.a.cpu", "exact");
+        trie.add("other.#", "other");
+
+        List<String> matches = trie.match("metrics.a.cpu");
+        assertEquals(3, matches.size());
+        assertEquals(new HashSet<>(Arrays.asList("single", "multi", "exact")), new HashSet<>(matches));
+        assertEquals(Collections.singletonList("multi"), trie.match("metrics"));
+        assertEquals(Collections.singletonList("multi"), trie.match("metrics.a.b.cpu"));
+        assertTrue(trie.match("unknown.channel").isEmpty());
+    }
+
+    @Test
+    public void returnsEverySubscriberOnlyOnce() {
+
+        SubscriptionTrie<String> trie = new SubscriptionTrie<>();
+        trie.add("metrics.*", "sub");
+        trie.add("metrics.#", "sub");
+
+        assertEquals(Collections.singletonList("sub"), trie.match("metrics.cpu"));
+        assertEquals(2, trie.size());
+    }
+
+    @Test
+    public void ignoresDuplicateAndUnknownSubscriptions() {
+
+        SubscriptionTrie<String> trie = new SubscriptionTrie<>();
+
+        assertTrue(trie.add("metrics.*", "sub"));
+        assertFalse(trie.add("metrics.*", "sub"));
+        assertFalse(trie.remove("metrics.#", "sub"));
+        assertFalse(trie.remove("metrics.*", "other"));
+        assertEquals(1, trie.size());
+    }
+
+    @Test
+    public void removeInvalidatesTheCache() {
+
+        SubscriptionTrie<String> trie = new SubscriptionTrie<>();
+        trie.add("metrics.*", "sub");
+
+        assertEquals(Collections.singletonList("sub"), trie.match("metrics.cpu"));
+        long version = trie.version();
+
+        assertTrue(trie.remove("metrics.*", "sub"));
+        assertNotEquals(version, trie.version());
+        assertTrue(trie.match("metrics.cpu").isEmpty());
+        assertEquals(0, trie.size());
+
+        // The pruned path can be added again
+        trie.add("metrics.*", "sub");
+        assertEquals(Collections.singletonList("sub"), trie.match("metrics.cpu"));
+    }
+
+    @Test
+    public void agreesWithChannelPattern() {
+
+        String[] segments = {"a", "b", "*", "#"};
+        String[] channelSegments = {"a", "b", "c"};
+        Random random = new Random(42);
+
+        SubscriptionTrie<String> trie = new SubscriptionTrie<>();
+        List<String> patterns = new ArrayList<>();
+
+        for (int i = 0; i < 200; i++) {
+            String pattern = random(random, segments);
+            if (ChannelPattern.isValid(pattern) && trie.add(pattern, pattern)) {
+                patterns.add(pattern);
+            }
+        }
+
+        for (int i = 0; i < 200; i++) {
+            String channel = random(random, channelSegments);
+
+            List<String> expected = new ArrayList<>();
+            for (String pattern : patterns) {
+                if (ChannelPattern.matches(pattern, channel)) {
+                    expected.add(pattern);
+                }
+            }
+
+            List<String> actual = new ArrayList<>(trie.match(channel));
+            Collections.sort(expected);
+            Collections.sort(actual);
+
+            assertEquals(channel, expected, actual);
+        }
+    }
+
+    private static String random(Random random, String[] segments) {
+
+        int length = 1 + random.nextInt(4);
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                builder.append('.');
+            }
+            builder.append(segments[random.nextInt(segments.length)]);
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.log;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogSegmentTest {
+
+    private static final int CAPACITY = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuf record(String message) {
+
+        byte[] bytes = message.getBytes(CharsetUtil.UTF_8);
+
+        return Unpooled.buffer(4 + bytes.length).writeInt(bytes.length).writeBytes(bytes);
+    }
+
+    private static List<String> read(LogSegment segment, long fromOffset) {
+
+        List<String> messages = new ArrayList<>();
+
+        segment.read(fromOffset, byteBuf -> {
+            int length = byteBuf.readInt();
+            messages.add(byteBuf.toString(byteBuf.readerIndex(), length, CharsetUtil.UTF_8));
+        });
+
+        return messages;
+    }
+
+    private static void append(LogSegment segment, String... messages) {
+
+        for (String message : messages) {
+            ByteBuf byteBuf = record(message);
+            assertTrue(segment.append(segment.nextOffset(), System.currentTimeMillis(), byteBuf));
+            byteBuf.release();
+        }
+
+        segment.flush();
+    }
+
+    private static void overwrite(File file, long position, byte[] bytes) throws IOException {
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(position);
+            randomAccessFile.write(bytes);
+        }
+    }
+
+    @Test
+    public void recoversAllRecords() throws IOException {
+
+        LogSegment segment = LogSegment.create(folder.getRoot(), 10, CAPACITY);
+        append(segment, "a", "bb", "ccc");
+
+        LogSegment reopened = LogSegment.open(segment.file());
+
+        assertEquals(10, reopened.baseOffset());
+        assertEquals(13, reopened.nextOffset());
+        assertEquals(segment.size(), reopened.size());
+        assertEquals(segment.lastTimestamp(), reopened.lastTimestamp());
+        assertEquals(3, read(reopened, 10).size());
+        assertEquals("ccc", read(reopened, 12).get(0));
+    }
+
+    @Test
+    public void dropsRecordWithCorruptedBody() throws IOException {
+
+        LogSegment segment = LogSegment.create(folder.getRoot(), 0, CAPACITY);
+        append(segment, "first", "second");
+
+        // Flip a byte of the second message as if it was only partly written
+        long second = LogSegment.RECORD_HEADER + 4 + "first".length();
+        overwrite(segment.file(), second + LogSegment.RECORD_HEADER + 4, new byte[]{'x'});
+
+        LogSegment reopened = LogSegment.open(segment.file());
+
+        assertEquals(1, reopened.nextOffset());
+        assertEquals(second, reopened.size());
+        assertEquals("first", read(reopened, 0).get(0));
+    }
+
+    @Test
+    public void dropsZeroedFirstRecord() throws IOException {
+
+        File file = new File(folder.getRoot(), String.format("%020d", 0) + ".log");
+
+        // Only the length field reached the disk, the offset reads as the base offset 0
+        overwrite(file, CAPACITY - 1, new byte[]{0});
+        overwrite(file, LogSegment.RECORD_HEADER, new byte[]{0, 0, 0, 8});
+
+        LogSegment reopened = LogSegment.open(file);
+
+        assertTrue(reopened.isEmpty());
+        assertEquals(0, reopened.size());
+    }
+
+    @Test
+    public void appendsAfterRecoveredRecords() throws IOException {
+
+        LogSegment segment = LogSegment.create(folder.getRoot(), 0, CAPACITY);
+        append(segment, "a");
+
+        LogSegment reopened = LogSegment.open(segment.file());
+        append(reopened, "b");
+
+        LogSegment again = LogSegment.open(segment.file());
+
+        assertEquals(2, again.nextOffset());
+        assertEquals("b", read(again, 1).get(0));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import de.progme.thor.server.config.Config;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MessageLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MessageLog messageLog;
+
+    @After
+    public void tearDown() {
+
+        if (messageLog != null) {
+            messageLog.close();
+        }
+    }
+
+    private static MessageLog messageLog(File directory, String... durableChannels) {
+
+        Gson gson = new Gson();
+
+        JsonArray durable = new JsonArray();
+        for (String durableChannel : durableChannels) {
+            durable.add(durableChannel);
+        }
+
+        JsonObject json = gson.toJsonTree(new Config("127.0.0.1", 0, 50, false, 1, new ArrayList<>(), -1, -1)).getAsJsonObject();
+        json.add("durableChannels", durable);
+        json.addProperty("channelLogDirectory", directory.getPath());
+
+        return new MessageLog(gson.fromJson(json, Config.class));
+    }
+
+    @Test
+    public void opensTheLogsOfDurableChannels() throws IOException {
+
+        messageLog = messageLog(folder.newFolder(), "orders", "events.#");
+
+        assertTrue(messageLog.isDurable("orders"));
+        assertTrue(messageLog.isDurable("events.a.b"));
+        assertFalse(messageLog.isDurable("other"));
+        assertFalse(messageLog.isDurable("other"));
+
+        assertNotNull(messageLog.log("events.a.b"));
+        assertSame(messageLog.log("events.a.b"), messageLog.log("events.a.b"));
+        assertNull(messageLog.log("other"));
+    }
+
+    @Test
+    public void failedLogIsNotOpenedOnEveryMessage() throws IOException {
+
+        // The log folder cannot be created below a file
+        File directory = folder.newFile();
+        messageLog = messageLog(directory, "orders");
+
+        assertNull(messageLog.log("orders"));
+
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+
+        // The folder could be created now, but the next try is only after the retry interval
+        assertNull(messageLog.log("orders"));
+    }
+}
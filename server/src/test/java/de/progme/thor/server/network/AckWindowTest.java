@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.network;
+
+import de.progme.thor.server.ThorServer;
+import de.progme.thor.server.config.Config;
+import de.progme.thor.shared.net.BinaryFrameCodec;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.OpCode;
+import de.progme.thor.shared.net.Protocol;
+import de.progme.thor.shared.pipeline.handler.FrameEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AckWindowTest {
+
+    private static final long TIMEOUT_MILLIS = 50;
+
+    private static ThorServer server;
+
+    private EmbeddedChannel channel;
+
+    private AckWindow ackWindow;
+
+    @BeforeClass
+    public static void startServer() {
+
+        // The connections of the test live on embedded channels, the server only provides the config
+        server = new ThorServer(new Config("127.0.0.1", 0, 50, false, 1, new ArrayList<>(), -1, -1));
+    }
+
+    @AfterClass
+    public static void stopServer() {
+
+        server.stop();
+    }
+
+    @Before
+    public void setUp() {
+
+        channel = new EmbeddedChannel();
+        ackWindow = new AckWindow(new Connection(server, channel), "a", 2, TIMEOUT_MILLIS, 1024, 1);
+    }
+
+    @After
+    public void tearDown() {
+
+        ackWindow.close();
+        channel.finishAndReleaseAll();
+    }
+
+    private static ByteBuf message(String name) {
+
+        // The server broadcasts sequenced messages with a placeholder which every window replaces
+        Frame frame = new Frame(OpCode.OP_BROADCAST)
+                .channel("a")
+                .sequence(0)
+                .body(name.getBytes(CharsetUtil.UTF_8));
+
+        ByteBuf byteBuf = PooledByteBufAllocator.DEFAULT.buffer();
+        FrameEncoder.encode(frame, Protocol.BINARY, byteBuf);
+
+        return byteBuf;
+    }
+
+    private static Frame frame(ByteBuf byteBuf) {
+
+        return BinaryFrameCodec.decode(byteBuf.slice(byteBuf.readerIndex() + 4, byteBuf.readableBytes() - 4));
+    }
+
+    private static String name(ByteBuf byteBuf) {
+
+        // Plain messages written to the queue are no frames
+        if (byteBuf.readableBytes() <= 4 || byteBuf.getByte(byteBuf.readerIndex() + 4) != BinaryFrameCodec.MAGIC) {
+            return byteBuf.toString(CharsetUtil.UTF_8);
+        }
+
+        Frame frame = frame(byteBuf);
+
+        return new String(frame.body(), CharsetUtil.UTF_8) + "#" + frame.sequence();
+    }
+
+    private List<String> written() {
+
+        channel.runPendingTasks();
+        channel.flush();
+
+        List<String> written = new ArrayList<>();
+
+        ByteBuf byteBuf;
+        while ((byteBuf = channel.readOutbound()) != null) {
+            written.add(name(byteBuf));
+            byteBuf.release();
+        }
+
+        return written;
+    }
+
+    private List<String> afterTimeout() throws InterruptedException {
+
+        Thread.sleep(TIMEOUT_MILLIS * 2);
+        channel.runScheduledPendingTasks();
+
+        return written();
+    }
+
+    @Test
+    public void holdsMessagesBeyondTheWindowBack() {
+
+        ackWindow.offer(message("s1"));
+        ackWindow.offer(message("s2"));
+        ackWindow.offer(message("s3"));
+
+        assertEquals(Arrays.asList("s1#1", "s2#2"), written());
+        assertEquals(1, ackWindow.backlog());
+
+        ackWindow.ack(1);
+
+        assertEquals(Collections.singletonList("s3#3"), written());
+        assertEquals(2, ackWindow.inFlight());
+    }
+
+    @Test
+    public void redeliversMessagesLostOnTheWay() throws InterruptedException {
+
+        ackWindow.offer(message("s1"));
+        ackWindow.offer(message("s2"));
+
+        // The subscriber only got the first message, the second one was lost
+        assertEquals(Arrays.asList("s1#1", "s2#2"), written());
+        ackWindow.ack(1);
+
+        assertEquals(Collections.singletonList("s2#2"), afterTimeout());
+        assertEquals(1, ackWindow.redeliveredMessages());
+
+        ackWindow.ack(2);
+
+        assertTrue(afterTimeout().isEmpty());
+        assertEquals(0, ackWindow.inFlight());
+    }
+
+    @Test
+    public void messageUnderPressureIsDeliveredAndRedelivered() throws InterruptedException {
+
+        Connection connection = new Connection(server, channel);
+        // Draining the queue takes a while, the message must not be sent again before
+        long timeoutMillis = TIMEOUT_MILLIS * 10;
+        AckWindow window = new AckWindow(connection, "a", 2, timeoutMillis, 1024, 1);
+
+        // Every written message makes the channel unwritable until it is flushed, so everything else is held back
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(1, 1));
+        connection.writeQueue().write(message("first"), "a");
+
+        window.offer(message("s1"));
+
+        // Plain messages of the channel exceed the limit of the queue, the oldest ones are dropped
+        int bulkSize = 64 * 1024;
+        for (int i = 0; i <= server.config().slowConsumerMaxBytes() / bulkSize; i++) {
+            connection.writeQueue().write(Unpooled.wrappedBuffer(new byte[bulkSize]), "a");
+        }
+
+        assertTrue(connection.writeQueue().droppedMessages() > 0);
+        assertEquals(1, count(drain(connection.writeQueue()), "s1#1"));
+
+        // Not acknowledged, so it is sent again
+        Thread.sleep(timeoutMillis * 2);
+        channel.runScheduledPendingTasks();
+
+        assertEquals(1, count(drain(connection.writeQueue()), "s1#1"));
+
+        window.close();
+    }
+
+    @Test
+    public void numbersEveryWindowOnItsOwnWithoutCopyingTheMessage() {
+
+        EmbeddedChannel otherChannel = new EmbeddedChannel();
+        AckWindow otherWindow = new AckWindow(new Connection(server, otherChannel), "a", 2, TIMEOUT_MILLIS, 1024, 7);
+
+        ByteBuf s1 = message("s1");
+        ByteBuf s2 = message("s2");
+
+        // Both subscribers get the same encoded messages, like from a fan out
+        ackWindow.offer(s1.retainedDuplicate());
+        otherWindow.offer(s1.retainedDuplicate());
+        ackWindow.offer(s2.retainedDuplicate());
+        otherWindow.offer(s2.retainedDuplicate());
+
+        assertEquals(Arrays.asList("s1#1", "s2#2"), written());
+
+        otherChannel.runPendingTasks();
+        otherChannel.flush();
+
+        List<String> otherWritten = new ArrayList<>();
+        ByteBuf byteBuf;
+        while ((byteBuf = otherChannel.readOutbound()) != null) {
+            otherWritten.add(name(byteBuf));
+            byteBuf.release();
+        }
+
+        assertEquals(Arrays.asList("s1#7", "s2#8"), otherWritten);
+        assertEquals(9, otherWindow.nextSequence());
+
+        // The windows only hold references, the placeholder of the shared message stays
+        assertEquals(0, frame(s1).sequence());
+        assertTrue(s1.refCnt() > 1);
+
+        ackWindow.ack(1);
+        otherWindow.close();
+        otherChannel.finishAndReleaseAll();
+
+        assertEquals(1, s1.refCnt());
+        assertTrue(s2.refCnt() > 1);
+
+        ackWindow.ack(2);
+
+        assertEquals(1, s2.refCnt());
+
+        s1.release();
+        s2.release();
+    }
+
+    private List<String> drain(WriteQueue writeQueue) {
+
+        List<String> written = new ArrayList<>();
+        int rounds = 0;
+
+        do {
+            assertTrue("queue does not drain", rounds++ < 10000);
+
+            channel.runPendingTasks();
+            channel.flush();
+
+            writeQueue.writabilityChanged();
+
+            written.addAll(written());
+        } while (writeQueue.queuedMessages() > 0);
+
+        return written;
+    }
+
+    private static int count(List<String> written, String message) {
+
+        return Collections.frequency(written, message);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.network;
+
+import de.progme.thor.server.ThorServer;
+import de.progme.thor.server.config.Config;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.OpCode;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConnectionTest {
+
+    private static ThorServer server;
+
+    @BeforeClass
+    public static void startServer() {
+
+        server = new ThorServer(new Config("127.0.0.1", 0, 50, false, 1, new ArrayList<>(), -1, -1));
+    }
+
+    @AfterClass
+    public static void stopServer() {
+
+        server.stop();
+    }
+
+    private static Frame register(String channel, String group) {
+
+        JSONObject options = new JSONObject();
+        if (group != null) {
+            options.put("group", group);
+        }
+
+        return new Frame(OpCode.OP_REGISTER_CHANNEL).channel(channel).json(options);
+    }
+
+    private static void subscribeAgainAndClose(String... groups) {
+
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast(new Connection(server, channel));
+
+        for (String group : groups) {
+            channel.writeInbound(register("again", group));
+        }
+
+        assertEquals(1, server.channelCount());
+
+        channel.close();
+        channel.finishAndReleaseAll();
+
+        // The session of the channel is reclaimed, so no membership was left behind
+        assertEquals(0, server.channelCount());
+    }
+
+    @Test
+    public void closingAfterSubscribingInAnotherGroupLeavesTheChannel() {
+
+        subscribeAgainAndClose("first", "second");
+    }
+
+    @Test
+    public void closingAfterSubscribingInGroupLeavesTheChannel() {
+
+        subscribeAgainAndClose(null, "group");
+    }
+
+    @Test
+    public void closingAfterSubscribingWithoutGroupLeavesTheChannel() {
+
+        subscribeAgainAndClose("group", null);
+    }
+
+    private static Frame batch(String... messages) {
+
+        return new Frame(OpCode.OP_BATCH).body(("{\"m\":[" + String.join(",", messages) + "]}").getBytes(CharsetUtil.UTF_8));
+    }
+
+    @Test
+    public void batchOnlyHandlesPublishes() {
+
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast(new Connection(server, channel));
+
+        String register = "{\"op\":0,\"ch\":\"batched\"}";
+        String nested = "{\"op\":14,\"m\":[" + register + "]}";
+
+        channel.writeInbound(batch(register, nested));
+
+        assertEquals(0, server.channelCount());
+
+        channel.close();
+        channel.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.network;
+
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.OpCode;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InboxTest {
+
+    private static Frame message(int size) {
+
+        return new Frame(OpCode.OP_INBOX).body(new byte[size]);
+    }
+
+    @Test
+    public void inboxesShareTheirMaxTotalBytes() {
+
+        AtomicLong totalBytes = new AtomicLong();
+        Inbox first = new Inbox("first", 100, 0, totalBytes, 150);
+        Inbox second = new Inbox("second", 100, 0, totalBytes, 150);
+
+        first.deliver(message(100));
+        second.deliver(message(40));
+        second.deliver(message(40));
+
+        assertEquals(1, second.bufferedMessages());
+        assertEquals(1, second.droppedMessages());
+        assertEquals(140, totalBytes.get());
+    }
+
+    @Test
+    public void droppedMessagesFreeTheirBytes() {
+
+        AtomicLong totalBytes = new AtomicLong();
+        Inbox inbox = new Inbox("inbox", 100, 0, totalBytes, 1000);
+
+        inbox.deliver(message(60));
+        inbox.deliver(message(60));
+
+        assertEquals(1, inbox.bufferedMessages());
+        assertEquals(60, totalBytes.get());
+    }
+
+    @Test
+    public void expireDropsOldMessages() throws InterruptedException {
+
+        AtomicLong totalBytes = new AtomicLong();
+        Inbox inbox = new Inbox("inbox", 100, 10, totalBytes, 1000);
+
+        inbox.deliver(message(10));
+        Thread.sleep(50);
+        inbox.expire();
+
+        assertTrue(inbox.isEmpty());
+        assertEquals(1, inbox.droppedMessages());
+        assertEquals(0, totalBytes.get());
+    }
+}
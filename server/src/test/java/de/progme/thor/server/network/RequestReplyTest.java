@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.network;
+
+import de.progme.thor.server.ThorServer;
+import de.progme.thor.server.config.Config;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.GroupBalance;
+import de.progme.thor.shared.net.OpCode;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RequestReplyTest {
+
+    private static ThorServer server;
+
+    private EmbeddedChannel requesterChannel;
+
+    private EmbeddedChannel responderChannel;
+
+    private Connection requester;
+
+    private Connection responder;
+
+    @BeforeClass
+    public static void startServer() {
+
+        server = new ThorServer(new Config("127.0.0.1", 0, 50, false, 1, new ArrayList<>(), -1, -1));
+    }
+
+    @AfterClass
+    public static void stopServer() {
+
+        server.stop();
+    }
+
+    @Before
+    public void setUp() {
+
+        requesterChannel = new EmbeddedChannel();
+        responderChannel = new EmbeddedChannel();
+        requester = new Connection(server, requesterChannel);
+        responder = new Connection(server, responderChannel);
+
+        server.addClient(requester);
+        server.addClient(responder);
+        server.respond("rpc", responder, GroupBalance.ROUND_ROBIN);
+    }
+
+    @After
+    public void tearDown() {
+
+        server.stopResponding("rpc", responder);
+        server.removeClient(requester);
+        server.removeClient(responder);
+
+        requesterChannel.finishAndReleaseAll();
+        responderChannel.finishAndReleaseAll();
+    }
+
+    private static Frame read(EmbeddedChannel channel) {
+
+        channel.runPendingTasks();
+        channel.flush();
+
+        return channel.readOutbound();
+    }
+
+    private Frame reply(int id) {
+
+        return new Frame(OpCode.OP_REPLY).id(id).replyTo(requester.id()).body(new byte[]{'{', '}'});
+    }
+
+    @Test
+    public void replyIsRoutedToTheRequester() {
+
+        server.request(requester, new Frame(OpCode.OP_REQUEST).channel("rpc").id(1).body(new byte[]{'{', '}'}));
+
+        Frame request = read(responderChannel);
+        assertEquals(requester.id(), request.replyTo());
+
+        server.reply(responder, reply(1));
+
+        assertEquals(1, read(requesterChannel).id());
+    }
+
+    @Test
+    public void secondReplyIsDropped() {
+
+        server.request(requester, new Frame(OpCode.OP_REQUEST).channel("rpc").id(1).body(new byte[]{'{', '}'}));
+        read(responderChannel);
+
+        server.reply(responder, reply(1));
+        server.reply(responder, reply(1));
+
+        assertEquals(1, read(requesterChannel).id());
+        assertNull(read(requesterChannel));
+    }
+
+    @Test
+    public void replyOfAnotherConnectionIsDropped() {
+
+        server.request(requester, new Frame(OpCode.OP_REQUEST).channel("rpc").id(1).body(new byte[]{'{', '}'}));
+        read(responderChannel);
+
+        // Neither the requester itself nor a reply to an unknown request gets through
+        server.reply(requester, reply(1));
+        server.reply(responder, reply(2));
+
+        assertNull(read(requesterChannel));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.network;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import de.progme.thor.client.pub.Publisher;
+import de.progme.thor.client.pub.PublisherFactory;
+import de.progme.thor.client.sub.Subscriber;
+import de.progme.thor.client.sub.SubscriberFactory;
+import de.progme.thor.client.sub.impl.handler.ChannelHandler;
+import de.progme.thor.server.ThorServer;
+import de.progme.thor.server.config.Config;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.OpCode;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTest {
+
+    private static final BlockingQueue<String> MESSAGES = new LinkedBlockingQueue<>();
+
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    private ThorServer server;
+
+    public static class Handler extends ChannelHandler<JSONObject> {
+
+        @Override
+        public void onMessage(String channel, JSONObject message) {
+
+            MESSAGES.add(message.getString("m"));
+        }
+    }
+
+    @After
+    public void tearDown() {
+
+        MESSAGES.clear();
+        server.stop();
+    }
+
+    private static ThorServer server(int sessionGraceMillis) {
+
+        Gson gson = new Gson();
+
+        JsonObject json = gson.toJsonTree(new Config("127.0.0.1", 0, 50, false, 1, new ArrayList<>(), -1, -1)).getAsJsonObject();
+        json.addProperty("sessionGraceMillis", sessionGraceMillis);
+
+        return new ThorServer(gson.fromJson(json, Config.class));
+    }
+
+    private static void await(String what, Condition condition) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+        while (!condition.met()) {
+            assertTrue(what, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private Connection connection(String name) {
+
+        for (Connection connection : server.connections()) {
+            if (name.equals(connection.name()) && connection.channels().contains("session")) {
+                return connection;
+            }
+        }
+
+        return null;
+    }
+
+    @Test
+    public void resumedSessionGetsBufferedMessages() throws Exception {
+
+        server = server(TIMEOUT_MILLIS);
+
+        Publisher publisher = PublisherFactory.create("127.0.0.1", server.port());
+        Subscriber subscriber = SubscriberFactory.create("127.0.0.1", server.port(), "resuming");
+
+        try {
+            subscriber.subscribe("session", Handler.class);
+            await("subscribed", () -> connection("resuming") != null);
+
+            Connection connection = connection("resuming");
+            connection.channel().close();
+            await("detached", () -> server.detachedSessionCount() == 1);
+
+            for (int i = 0; i < 3; i++) {
+                publisher.publish("session", new JSONObject().put("m", "m" + i));
+            }
+
+            List<String> received = new ArrayList<>();
+            while (received.size() < 3) {
+                String message = MESSAGES.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                assertTrue("buffered message", message != null);
+                received.add(message);
+            }
+
+            assertEquals(Arrays.asList("m0", "m1", "m2"), received);
+            // The detached connection took over the new channel
+            assertSame(connection, connection("resuming"));
+            assertTrue(connection.connected());
+            assertEquals(0, server.detachedSessionCount());
+        } finally {
+            subscriber.disconnect();
+            publisher.disconnect();
+        }
+    }
+
+    @Test
+    public void sessionExpiresAfterFailedResume() throws Exception {
+
+        server = server(50);
+
+        EmbeddedChannel channel = new EmbeddedChannel();
+        Connection connection = new Connection(server, channel);
+        channel.pipeline().addLast(connection);
+
+        channel.writeInbound(new Frame(OpCode.OP_HANDSHAKE).json(new JSONObject().put("session", "")));
+        channel.writeInbound(new Frame(OpCode.OP_REGISTER_CHANNEL).channel("session"));
+        channel.runPendingTasks();
+        channel.flush();
+
+        String token = ((Frame) channel.readOutbound()).json().getString("session");
+
+        channel.close();
+        assertEquals(1, server.detachedSessionCount());
+
+        // A resume takes the session, its grace period passes and the resume fails
+        assertSame(connection, server.resumeSession(token));
+        Thread.sleep(100);
+        channel.runScheduledPendingTasks();
+
+        connection.awaitResume();
+        assertEquals(1, server.detachedSessionCount());
+
+        Thread.sleep(100);
+        channel.runScheduledPendingTasks();
+
+        assertEquals(0, server.detachedSessionCount());
+        assertEquals(0, server.channelCount());
+    }
+
+    private interface Condition {
+
+        boolean met();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.network;
+
+import de.progme.thor.server.channel.ChannelPriorities;
+import de.progme.thor.server.config.Config;
+import de.progme.thor.shared.net.SlowConsumerPolicy;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteQueueTest {
+
+    private static final int MESSAGE_SIZE = 100;
+
+    private EmbeddedChannel channel;
+
+    private Config config;
+
+    @Before
+    public void setUp() {
+
+        channel = new EmbeddedChannel();
+        // Every written message makes the channel unwritable until it is flushed
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(1, 1));
+
+        config = new Config("localhost", 0, 50, false, 1, new ArrayList<>(), -1, -1);
+    }
+
+    private WriteQueue queue(SlowConsumerPolicy policy, int maxQueuedBytes) {
+
+        return queue(policy, maxQueuedBytes, null);
+    }
+
+    private WriteQueue queue(SlowConsumerPolicy policy, int maxQueuedBytes, ChannelPriorities priorities) {
+
+        return new WriteQueue(channel, config, policy, priorities, maxQueuedBytes);
+    }
+
+    private static ByteBuf message(String name) {
+
+        char[] chars = new char[MESSAGE_SIZE];
+        Arrays.fill(chars, ' ');
+        name.getChars(0, name.length(), chars, 0);
+
+        return Unpooled.copiedBuffer(chars, CharsetUtil.UTF_8);
+    }
+
+    /**
+     * Lets the channel write everything and returns the names of the written messages in their order.
+     */
+    private List<String> drain(WriteQueue writeQueue) {
+
+        List<String> written = new ArrayList<>();
+        int rounds = 0;
+
+        do {
+            assertTrue("queue does not drain", rounds++ < 1000);
+
+            channel.runPendingTasks();
+            channel.flush();
+
+            writeQueue.writabilityChanged();
+
+            channel.runPendingTasks();
+            channel.flush();
+
+            ByteBuf byteBuf;
+            while ((byteBuf = channel.readOutbound()) != null) {
+                written.add(byteBuf.toString(CharsetUtil.UTF_8).trim());
+                byteBuf.release();
+            }
+        } while (writeQueue.queuedMessages() > 0);
+
+        return written;
+    }
+
+    @Test
+    public void writesDirectlyWhileWritable() {
+
+        WriteQueue writeQueue = queue(SlowConsumerPolicy.DROP_OLDEST, 1024);
+        writeQueue.write(message("m0"), "a");
+
+        assertEquals(0, writeQueue.queuedMessages());
+        assertEquals(Collections.singletonList("m0"), drain(writeQueue));
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestMessages() {
+
+        WriteQueue writeQueue = queue(SlowConsumerPolicy.DROP_OLDEST, 3 * MESSAGE_SIZE);
+
+        for (int i = 0; i < 10; i++) {
+            writeQueue.write(message("m" + i), "a");
+        }
+
+        assertEquals(3, writeQueue.queuedMessages());
+        assertEquals(6, writeQueue.droppedMessages());
+        assertEquals(Arrays.asList("m0", "m7", "m8", "m9"), drain(writeQueue));
+    }
+
+    @Test
+    public void dropNewestKeepsTheOldestMessages() {
+
+        WriteQueue writeQueue = queue(SlowConsumerPolicy.DROP_NEWEST, 3 * MESSAGE_SIZE);
+
+        for (int i = 0; i < 10; i++) {
+            writeQueue.write(message("m" + i), "a");
+        }
+
+        assertEquals(6, writeQueue.droppedMessages());
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3"), drain(writeQueue));
+    }
+
+    @Test
+    public void disconnectClosesTheChannel() {
+
+        WriteQueue writeQueue = queue(SlowConsumerPolicy.DISCONNECT, 3 * MESSAGE_SIZE);
+
+        for (int i = 0; i < 5; i++) {
+            writeQueue.write(message("m" + i), "a");
+        }
+
+        assertTrue(writeQueue.closed());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void conflateKeepsTheLatestMessagePerChannel() {
+
+        WriteQueue writeQueue = queue(SlowConsumerPolicy.CONFLATE, 1024);
+
+        for (int i = 0; i < 10; i++) {
+            writeQueue.write(message("a" + i), "a");
+            writeQueue.write(message("b" + i), "b");
+        }
+
+        assertEquals(Arrays.asList("a0", "b9", "a9"), drain(writeQueue));
+    }
+
+    @Test
+    public void conflationKeyReplacesTheMessageWithTheSameKey() {
+
+        WriteQueue writeQueue = queue(SlowConsumerPolicy.DROP_OLDEST, 1024);
+
+        for (int i = 0; i < 9; i++) {
+            writeQueue.write(message("k" + (i % 3) + "-" + i), "a", "k" + (i % 3), null);
+        }
+
+        // One message per key is held back
+        assertEquals(3, writeQueue.queuedMessages());
+
+        writeQueue.write(message("plain"), "a");
+
+        assertEquals(Arrays.asList("k0-0", "k1-7", "k2-8", "k0-6", "plain"), drain(writeQueue));
+    }
+
+    @Test
+    public void controlMessagesAreNeverDropped() {
+
+        WriteQueue writeQueue = queue(SlowConsumerPolicy.DROP_OLDEST, 3 * MESSAGE_SIZE);
+
+        writeQueue.write(message("m0"), "a");
+        writeQueue.write(message("m1"), "a");
+        writeQueue.write(message("m2"), "a");
+        writeQueue.write(message("c0"));
+        writeQueue.write(message("c1"));
+        writeQueue.write(message("m3"), "a");
+
+        assertEquals(Arrays.asList("m0", "c0", "c1", "m3"), drain(writeQueue));
+    }
+
+    @Test
+    public void acknowledgedMessagesAreNeverDropped() {
+
+        WriteQueue writeQueue = queue(SlowConsumerPolicy.DROP_NEWEST, 3 * MESSAGE_SIZE);
+
+        writeQueue.write(message("m0"), "a");
+        writeQueue.writeAcknowledged(message("s1"), "a");
+        writeQueue.write(message("m2"), "a");
+        writeQueue.write(message("m3"), "a");
+        writeQueue.writeAcknowledged(message("s4"), "a");
+        writeQueue.write(message("m5"), "a");
+
+        // Plain messages make room for acknowledged ones or are dropped themselves, never the acknowledged ones
+        assertEquals(Arrays.asList("m0", "s1", "m3", "s4"), drain(writeQueue));
+    }
+
+    @Test
+    public void acknowledgedMessagesAreNeverConflated() {
+
+        WriteQueue writeQueue = queue(SlowConsumerPolicy.CONFLATE, 1024);
+
+        writeQueue.write(message("m0"), "a");
+        writeQueue.writeAcknowledged(message("s1"), "a");
+        writeQueue.writeAcknowledged(message("s2"), "a");
+        writeQueue.write(message("m3"), "a");
+        writeQueue.write(message("m4"), "a");
+
+        assertEquals(Arrays.asList("m0", "s1", "s2", "m4"), drain(writeQueue));
+    }
+
+    @Test
+    public void tooManyControlMessagesCloseTheChannel() {
+
+        WriteQueue writeQueue = queue(SlowConsumerPolicy.DROP_OLDEST, 3 * MESSAGE_SIZE);
+
+        for (int i = 0; i < 5; i++) {
+            writeQueue.write(message("c" + i));
+        }
+
+        assertTrue(writeQueue.closed());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void priorityMessagesBypassBulkMessages() {
+
+        WriteQueue writeQueue = queue(SlowConsumerPolicy.DROP_OLDEST, 1024, new ChannelPriorities(Collections.singletonList("alerts.#")));
+
+        writeQueue.write(message("b0"), "bulk");
+        writeQueue.write(message("b1"), "bulk");
+        writeQueue.write(message("b2"), "bulk");
+        writeQueue.write(message("a0"), "alerts.cpu");
+        writeQueue.write(message("c0"));
+
+        assertEquals(Arrays.asList("b0", "a0", "c0", "b1", "b2"), drain(writeQueue));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.server.schedule;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    @Test
+    public void valueExpiresWithinOneTickAfterItsDeadline() {
+
+        TimerWheel<String> wheel = new TimerWheel<>(10, 0);
+        List<String> expired = new ArrayList<>();
+
+        assertTrue(wheel.add("a", 25));
+
+        wheel.advance(25, expired::add);
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(30, expired::add);
+        assertEquals(Collections.singletonList("a"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void dueValueIsNotAdded() {
+
+        TimerWheel<String> wheel = new TimerWheel<>(10, 100);
+
+        assertFalse(wheel.add("a", 100));
+        assertFalse(wheel.add("b", 50));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void valuesOfHigherLevelsExpireAtTheirDeadline() {
+
+        TimerWheel<Long> wheel = new TimerWheel<>(1, 0);
+        // One deadline per level of the wheel
+        List<Long> deadlines = Arrays.asList(200L, 256L, 1000L, 70000L, (1L << 24) + 5);
+
+        for (long deadline : deadlines) {
+            assertTrue(wheel.add(deadline, deadline));
+        }
+
+        for (long deadline : deadlines) {
+            List<Long> expired = new ArrayList<>();
+
+            wheel.advance(deadline - 1, expired::add);
+            assertTrue(expired.isEmpty());
+
+            wheel.advance(deadline, expired::add);
+            assertEquals(Collections.singletonList(deadline), expired);
+        }
+
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void valuesWithTheSameDeadlineExpireTogether() {
+
+        TimerWheel<String> wheel = new TimerWheel<>(1, 0);
+        List<String> expired = new ArrayList<>();
+
+        wheel.add("a", 300);
+        wheel.add("b", 300);
+        wheel.add("c", 301);
+
+        assertEquals(3, wheel.size());
+
+        wheel.advance(300, expired::add);
+        Collections.sort(expired);
+
+        assertEquals(Arrays.asList("a", "b"), expired);
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void forEachPassesPendingValues() {
+
+        TimerWheel<String> wheel = new TimerWheel<>(1, 0);
+        List<String> pending = new ArrayList<>();
+
+        wheel.add("a", 10);
+        wheel.add("b", 100000);
+        wheel.forEach(pending::add);
+        Collections.sort(pending);
+
+        assertEquals(Arrays.asList("a", "b"), pending);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.EncoderException;
+import io.netty.util.CharsetUtil;
+
+/**
+ * The compact binary wire format.
+ *
+ * <pre>
+ * +-------+---------+-----------------------------------+-----+-----------+
+ * | magic | op code | header fields (tag, u16 len, val) | end | JSON body |
+ * | 1     | 1       | n                                 | 1   | remaining |
+ * +-------+---------+-----------------------------------+-----+-----------+
+ * </pre>
+ *
+ * The header can be read without touching the body, unknown header fields are skipped.
+ */
+public final class BinaryFrameCodec {
+
+    public static final byte MAGIC = (byte) 0xB7;
+
+    private static final byte TAG_END = 0;
+
+    private static final byte TAG_CHANNEL = 'c';
+
+    private static final byte TAG_SUBSCRIBER = 's';
+
+    private static final byte TAG_KEY = 'k';
+
+    private static final byte TAG_ID = 'i';
+
+    private static final byte TAG_OFFSET = 'o';
+
+    private static final byte TAG_SEQUENCE = 'q';
+
+    private static final byte TAG_CHANNEL_ID = 'n';
+
+    private static final byte TAG_DELIVER_AT = 'a';
+
+    private static final byte TAG_REPLY_TO = 'r';
+
+    private static final int MAX_FIELD_LENGTH = 0xFFFF;
+
+    private BinaryFrameCodec() {
+        // no instance
+    }
+
+    public static Frame decode(ByteBuf byteBuf) {
+
+        if (byteBuf.readByte() != MAGIC) {
+            throw new CorruptedFrameException("invalid binary frame magic");
+        }
+
+        Frame frame = new Frame(OpCode.of((int) byteBuf.readByte()));
+
+        byte tag;
+        while ((tag = byteBuf.readByte()) != TAG_END) {
+            int length = byteBuf.readUnsignedShort();
+
+            switch (tag) {
+                case TAG_CHANNEL:
+                    frame.channel(byteBuf.toString(byteBuf.readerIndex(), length, CharsetUtil.UTF_8));
+                    break;
+                case TAG_SUBSCRIBER:
+                    frame.subscriber(byteBuf.toString(byteBuf.readerIndex(), length, CharsetUtil.UTF_8));
+                    break;
+                case TAG_KEY:
+                    frame.key(byteBuf.toString(byteBuf.readerIndex(), length, CharsetUtil.UTF_8));
+                    break;
+                case TAG_ID:
+                    frame.id(byteBuf.getInt(byteBuf.readerIndex()));
+                    break;
+                case TAG_OFFSET:
+                    frame.offset(byteBuf.getLong(byteBuf.readerIndex()));
+                    break;
+                case TAG_SEQUENCE:
+                    frame.sequence(byteBuf.getLong(byteBuf.readerIndex()));
+                    break;
+                case TAG_CHANNEL_ID:
+                    frame.channelId(byteBuf.getInt(byteBuf.readerIndex()));
+                    break;
+                case TAG_DELIVER_AT:
+                    frame.deliverAt(byteBuf.getLong(byteBuf.readerIndex()));
+                    break;
+                case TAG_REPLY_TO:
+                    frame.replyTo(byteBuf.getLong(byteBuf.readerIndex()));
+                    break;
+                default:
+                    // Unknown field of a newer version
+                    break;
+            }
+
+            byteBuf.skipBytes(length);
+        }
+
+        if (byteBuf.isReadable()) {
+            byte[] body = new byte[byteBuf.readableBytes()];
+            byteBuf.readBytes(body);
+
+            frame.body(body);
+        }
+
+        return frame;
+    }
+
+    /**
+     * Finds the sequence number of an encoded frame without decoding it, so it can be replaced in place.
+     *
+     * @param byteBuf The buffer with the frame.
+     * @param index The index of the first byte of the frame, after the length field.
+     * @return The index of the 8 byte sequence number or -1 if the frame is not binary or has none.
+     */
+    public static int sequenceIndex(ByteBuf byteBuf, int index) {
+
+        int end = byteBuf.writerIndex();
+
+        if (index + 2 > end || byteBuf.getByte(index) != MAGIC) {
+            return -1;
+        }
+
+        index += 2;
+
+        while (index + 3 <= end) {
+            byte tag = byteBuf.getByte(index);
+
+            if (tag == TAG_END) {
+                break;
+            }
+
+            int length = byteBuf.getUnsignedShort(index + 1);
+
+            if (tag == TAG_SEQUENCE && length == 8) {
+                return index + 3;
+            }
+
+            index += 3 + length;
+        }
+
+        return -1;
+    }
+
+    public static void encode(Frame frame, ByteBuf byteBuf) {
+
+        encode(frame, byteBuf, -1);
+    }
+
+    /**
+     * Encodes the frame and replaces the channel name of a broadcast with the given channel id,
+     * which both sides of the connection have to know.
+     *
+     * @param frame The frame.
+     * @param byteBuf The buffer to write to.
+     * @param channelId The id of the channel of the frame or -1 to write the channel name.
+     */
+    public static void encode(Frame frame, ByteBuf byteBuf, int channelId) {
+
+        byteBuf.writeByte(MAGIC);
+        byteBuf.writeByte(frame.opCode().getCode());
+
+        if (channelId != -1 && frame.opCode() == OpCode.OP_BROADCAST) {
+            byteBuf.writeByte(TAG_CHANNEL_ID);
+            byteBuf.writeShort(4);
+            byteBuf.writeInt(channelId);
+        } else {
+            writeString(byteBuf, TAG_CHANNEL, frame.channel());
+
+            if (frame.opCode() == OpCode.OP_CHANNEL_ID && frame.hasChannelId()) {
+                // Hands out the id of the channel
+                byteBuf.writeByte(TAG_CHANNEL_ID);
+                byteBuf.writeShort(4);
+                byteBuf.writeInt(frame.channelId());
+            }
+        }
+
+        writeString(byteBuf, TAG_SUBSCRIBER, frame.subscriber());
+        writeString(byteBuf, TAG_KEY, frame.key());
+
+        if (frame.hasId()) {
+            byteBuf.writeByte(TAG_ID);
+            byteBuf.writeShort(4);
+            byteBuf.writeInt(frame.id());
+        }
+
+        if (frame.hasOffset()) {
+            byteBuf.writeByte(TAG_OFFSET);
+            byteBuf.writeShort(8);
+            byteBuf.writeLong(frame.offset());
+        }
+
+        if (frame.hasSequence()) {
+            byteBuf.writeByte(TAG_SEQUENCE);
+            byteBuf.writeShort(8);
+            byteBuf.writeLong(frame.sequence());
+        }
+
+        if (frame.hasDeliverAt()) {
+            byteBuf.writeByte(TAG_DELIVER_AT);
+            byteBuf.writeShort(8);
+            byteBuf.writeLong(frame.deliverAt());
+        }
+
+        if (frame.hasReplyTo()) {
+            byteBuf.writeByte(TAG_REPLY_TO);
+            byteBuf.writeShort(8);
+            byteBuf.writeLong(frame.replyTo());
+        }
+
+        byteBuf.writeByte(TAG_END);
+
+        if (frame.hasBody()) {
+            byteBuf.writeBytes(frame.body());
+        }
+    }
+
+    private static void writeString(ByteBuf byteBuf, byte tag, String value) {
+
+        if (value == null) {
+            return;
+        }
+
+        byteBuf.writeByte(tag);
+
+        int lengthIndex = byteBuf.writerIndex();
+        byteBuf.writeShort(0);
+
+        int length = ByteBufUtil.writeUtf8(byteBuf, value);
+        if (length > MAX_FIELD_LENGTH) {
+            throw new EncoderException("header field '" + (char) tag + "' exceeds " + MAX_FIELD_LENGTH + " bytes");
+        }
+
+        byteBuf.setShort(lengthIndex, length);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package de.progme.thor.shared.net;
+
+import io.netty.util.AttributeKey;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The channel ids a server has handed out on a connection with the {@link Protocol#COMPACT} protocol.
+ *
+ * The ids are only valid for the connection they were handed out on, so the map is stored as channel attribute
+ * on both sides and is gone together with the connection. The frame decoder resolves the ids of inbound broadcasts
+ * and the frame encoder replaces the channel names of outbound broadcasts with them.
+ *
+ * The server releases the id of a channel once it is unsubscribed. The client retires the id when it sends
+ * the unsubscription, so it stops using the id but still resolves the messages which were already on the way.
+ */
+public class ChannelIds {
+
+    public static final AttributeKey<ChannelIds> ATTRIBUTE = AttributeKey.valueOf("thor-channel-ids");
+
+    public static final int MAX_RETIRED = 1024;
+
+    private Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+    private Map<Integer, String> channels = new ConcurrentHashMap<>();
+
+    private ArrayDeque<Integer> retired = new ArrayDeque<>();
+
+    public void put(String channel, int id) {
+
+        ids.put(channel, id);
+        channels.put(id, channel);
+    }
+
+    /**
+     * Returns the id of the channel.
+     *
+     * @param channel The channel.
+     * @return The id or -1 if the server has not handed out an id for the channel.
+     */
+    public int id(String channel) {
+
+        Integer id = (channel != null) ? ids.get(channel) : null;
+
+        return (id != null) ? id : -1;
+    }
+
+    /**
+     * Removes the id of the channel.
+     *
+     * @param channel The channel.
+     */
+    public void remove(String channel) {
+
+        Integer id = ids.remove(channel);
+
+        if (id != null) {
+            channels.remove(id, channel);
+        }
+    }
+
+    /**
+     * Stops using the id of the channel for outbound frames, while inbound frames with the id are still resolved.
+     * Only the ids of the last {@link #MAX_RETIRED} retired channels are resolved.
+     *
+     * @param channel The channel.
+     */
+    public synchronized void retire(String channel) {
+
+        Integer id = ids.remove(channel);
+
+        if (id == null) {
+            return;
+        }
+
+        retired.add(id);
+
+        while (retired.size() > MAX_RETIRED) {
+            Integer oldest = retired.poll();
+            String oldestChannel = channels.get(oldest);
+
+            // The id might have been handed out again in the meantime
+            if (oldestChannel != null && !oldest.equals(ids.get(oldestChannel))) {
+                channels.remove(oldest, oldestChannel);
+            }
+        }
+    }
+
+    /**
+     * Returns the channels which have an id on the connection.
+     */
+    public Set<String> channels() {
+
+        return ids.keySet();
+    }
+
+    public int size() {
+
+        return ids.size();
+    }
+
+    /**
+     * Returns the channel of the id.
+     *
+     * @param id The channel id.
+     * @return The channel or null if the id is unknown.
+     */
+    public String channel(int id) {
+
+        return channels.get(id);
+    }
+}
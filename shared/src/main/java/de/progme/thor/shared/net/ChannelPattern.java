@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+/**
+ * Channel patterns for subscriptions to many channels at once.
+ *
+ * Channels are split into segments by dots. In a pattern a "*" segment matches exactly one segment
+ * and a "#" segment at the end matches zero or more segments, so "metrics.*.cpu" matches "metrics.a.cpu"
+ * and "metrics.#" matches "metrics", "metrics.a" and "metrics.a.cpu".
+ */
+public final class ChannelPattern {
+
+    public static final String SINGLE_WILDCARD = "*";
+
+    public static final String MULTI_WILDCARD = "#";
+
+    private ChannelPattern() {
+        // no instance
+    }
+
+    /**
+     * Checks if the channel contains a wildcard segment.
+     *
+     * @param channel The channel.
+     * @return True if it is a pattern, otherwise false.
+     */
+    public static boolean isPattern(String channel) {
+
+        if (channel.indexOf('*') == -1 && channel.indexOf('#') == -1) {
+            return false;
+        }
+
+        for (String segment : segments(channel)) {
+            if (segment.equals(SINGLE_WILDCARD) || segment.equals(MULTI_WILDCARD)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if the pattern is valid, which means the multi wildcard is only used as last segment.
+     *
+     * @param pattern The pattern.
+     * @return True if it is valid, otherwise false.
+     */
+    public static boolean isValid(String pattern) {
+
+        String[] segments = segments(pattern);
+
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (segments[i].equals(MULTI_WILDCARD)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if the channel matches the pattern.
+     *
+     * @param pattern The pattern.
+     * @param channel The concrete channel.
+     * @return True if it matches, otherwise false.
+     */
+    public static boolean matches(String pattern, String channel) {
+
+        String[] patternSegments = segments(pattern);
+        String[] channelSegments = segments(channel);
+
+        for (int i = 0; i < patternSegments.length; i++) {
+            String segment = patternSegments[i];
+
+            if (segment.equals(MULTI_WILDCARD) && i == patternSegments.length - 1) {
+                return true;
+            }
+
+            if (i >= channelSegments.length || (!segment.equals(SINGLE_WILDCARD) && !segment.equals(channelSegments[i]))) {
+                return false;
+            }
+        }
+
+        return patternSegments.length == channelSegments.length;
+    }
+
+    public static String[] segments(String channel) {
+
+        return channel.split("\\.", -1);
+    }
+}
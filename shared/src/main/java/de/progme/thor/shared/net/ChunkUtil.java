@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.CharsetUtil;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Splits frames with large bodies into {@link OpCode#OP_CHUNK} frames.
+ *
+ * Only frames which would not fit into the max frame size of the remote side are split,
+ * everything else is sent as it is and stays readable for clients which do not know chunks.
+ *
+ * Every chunk keeps the channel and subscriber of the original frame, so the server routes it like the original
+ * without buffering the whole payload. The chunk body contains the original op code ("o"), a random transfer id ("t"),
+ * the index of the chunk ("n"), if it is the final chunk ("f") and a slice of the original body as string ("d").
+ */
+public final class ChunkUtil {
+
+    /**
+     * The default size of a chunk in characters of the body.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The bytes kept free for the header of a frame when checking the body against the max frame size,
+     * at most an eighth of the max frame size.
+     */
+    public static final int HEADER_RESERVE = 1024;
+
+    /**
+     * The worst case growth of a body slice encoded as JSON string, a character can become six bytes when escaped.
+     */
+    private static final int MAX_ESCAPE_GROWTH = 6;
+
+    private ChunkUtil() {
+        // no instance
+    }
+
+    /**
+     * Reads the transfer id of a chunk without parsing its body, so all chunks of one transfer can be routed alike.
+     *
+     * @param chunk The {@link OpCode#OP_CHUNK} frame.
+     * @return The transfer id as it is written in the body or null if the body has none.
+     */
+    public static String transferId(Frame chunk) {
+
+        try {
+            return JsonFrameCodec.value(chunk.body(), "t");
+        } catch (CorruptedFrameException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param frame The frame.
+     * @param maxFrameSize The max frame size of the remote side.
+     * @return If the frame would not fit into the max frame size.
+     */
+    public static boolean needsChunking(Frame frame, int maxFrameSize) {
+
+        return frame.body().length > maxFrameSize - headerReserve(maxFrameSize);
+    }
+
+    /**
+     * @param maxFrameSize The max frame size of the remote side.
+     * @return The size of the chunks so that every chunk fits into the max frame size.
+     */
+    public static int chunkSize(int maxFrameSize) {
+
+        return Math.max(1, Math.min(CHUNK_SIZE, (maxFrameSize - headerReserve(maxFrameSize)) / MAX_ESCAPE_GROWTH));
+    }
+
+    private static int headerReserve(int maxFrameSize) {
+
+        return Math.min(HEADER_RESERVE, maxFrameSize / 8);
+    }
+
+    public static List<Frame> split(Frame frame, int chunkSize) {
+
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be greater than 0");
+        }
+
+        String body = new String(frame.body(), CharsetUtil.UTF_8);
+        long transferId = ThreadLocalRandom.current().nextLong();
+
+        List<Frame> chunks = new ArrayList<>(body.length() / chunkSize + 1);
+
+        int start = 0;
+        while (start < body.length()) {
+            int end = Math.min(start + chunkSize, body.length());
+
+            // Never split a surrogate pair
+            if (end < body.length() && Character.isHighSurrogate(body.charAt(end - 1))) {
+                end--;
+            }
+
+            chunks.add(new Frame(OpCode.OP_CHUNK)
+                    .channel(frame.channel())
+                    .subscriber(frame.subscriber())
+                    .json(new JSONObject()
+                            .put("o", frame.opCode().getCode())
+                            .put("t", transferId)
+                            .put("n", chunks.size())
+                            .put("f", end == body.length())
+                            .put("d", body.substring(start, end))));
+
+            start = end;
+        }
+
+        return chunks;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+import de.progme.thor.shared.pipeline.handler.FrameEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A frame which is encoded at most once per protocol into a pooled buffer,
+ * so the same message can be written to many channels without encoding it again.
+ *
+ * Every channel gets its own retained duplicate which shares the memory of the encoded buffer
+ * and is released by netty after it has been written. The encoded buffers itself must be released
+ * with {@link #release()} after the frame has been handed to all channels.
+ * Projections of the frame are built at most once as well and are released together with it.
+ * The {@link Protocol#COMPACT} encoding carries the channel id which the server hands out for the channel,
+ * the channels which do not know this id get another encoding.
+ *
+ * An instance is not thread safe and is meant to be used by the thread which does the fan-out.
+ */
+public class EncodedFrame {
+
+    private Frame frame;
+
+    private ByteBufAllocator allocator;
+
+    private ByteBuf[] encoded = new ByteBuf[Protocol.values().length];
+
+    private Map<FieldProjection, EncodedFrame> projected;
+
+    private String conflationKey;
+
+    private int channelId = -1;
+
+    public EncodedFrame(Frame frame, ByteBufAllocator allocator) {
+
+        this.frame = frame;
+        this.allocator = allocator;
+    }
+
+    public Frame frame() {
+
+        return frame;
+    }
+
+    /**
+     * Returns the key which a message of a conflated channel replaces other held back messages with.
+     *
+     * @return The key or null if the message is not conflated by key.
+     */
+    public String conflationKey() {
+
+        return conflationKey;
+    }
+
+    public EncodedFrame conflationKey(String conflationKey) {
+
+        this.conflationKey = conflationKey;
+
+        return this;
+    }
+
+    /**
+     * Returns the channel id the {@link Protocol#COMPACT} encoding carries.
+     *
+     * @return The id or -1 if the channel name is written.
+     */
+    public int channelId() {
+
+        return channelId;
+    }
+
+    public EncodedFrame channelId(int channelId) {
+
+        this.channelId = channelId;
+
+        return this;
+    }
+
+    /**
+     * Returns a retained duplicate of the frame encoded with the given protocol.
+     * The caller is responsible to write or release it.
+     *
+     * @param protocol The protocol to encode the frame with.
+     * @return The retained duplicate including the length field.
+     */
+    public ByteBuf retainedBuffer(Protocol protocol) {
+
+        ByteBuf byteBuf = encoded[protocol.ordinal()];
+
+        if (byteBuf == null) {
+            byteBuf = allocator.ioBuffer(frame.body().length + 64);
+
+            try {
+                if (protocol == Protocol.COMPACT) {
+                    FrameEncoder.encode(frame, channelId, byteBuf);
+                } else {
+                    FrameEncoder.encode(frame, protocol, byteBuf);
+                }
+            } catch (RuntimeException e) {
+                byteBuf.release();
+                throw e;
+            }
+
+            encoded[protocol.ordinal()] = byteBuf;
+        }
+
+        return byteBuf.retainedDuplicate();
+    }
+
+    /**
+     * Returns the frame projected to the given fields.
+     *
+     * @param projection The projection or null for the whole frame.
+     * @return The projected frame which is released together with this one.
+     */
+    public EncodedFrame projected(FieldProjection projection) {
+
+        if (projection == null) {
+            return this;
+        }
+
+        if (projected == null) {
+            projected = new HashMap<>(4);
+        }
+
+        EncodedFrame encodedFrame = projected.get(projection);
+
+        if (encodedFrame == null) {
+            Frame projectedFrame = projection.apply(frame);
+
+            // Frames which cannot be projected share the encoded buffers of the whole frame
+            encodedFrame = (projectedFrame != frame) ? new EncodedFrame(projectedFrame, allocator).channelId(channelId) : this;
+            projected.put(projection, encodedFrame);
+        }
+
+        return encodedFrame;
+    }
+
+    public void release() {
+
+        if (projected != null) {
+            for (EncodedFrame encodedFrame : projected.values()) {
+                if (encodedFrame != this) {
+                    encodedFrame.release();
+                }
+            }
+
+            projected = null;
+        }
+
+        for (int i = 0; i < encoded.length; i++) {
+            if (encoded[i] != null) {
+                ReferenceCountUtil.release(encoded[i]);
+                encoded[i] = null;
+            }
+        }
+    }
+}
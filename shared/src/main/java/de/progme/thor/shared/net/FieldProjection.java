@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+import io.netty.handler.codec.CorruptedFrameException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The top level members of a message a subscriber is interested in.
+ * A projected message only contains these members, so large messages get small on the wire.
+ *
+ * Projections with the same members are equal, so a message is projected once for all subscribers which share one.
+ */
+public final class FieldProjection {
+
+    private Set<String> fields;
+
+    public FieldProjection(Collection<String> fields) {
+
+        if (fields == null || fields.isEmpty()) {
+            throw new IllegalArgumentException("fields cannot be empty");
+        }
+
+        this.fields = Collections.unmodifiableSet(new LinkedHashSet<>(fields));
+    }
+
+    /**
+     * Returns the frame with a body of only the projected members.
+     * Chunks and bodies which are no JSON object are returned unchanged.
+     *
+     * @param frame The frame to project.
+     * @return The projected frame.
+     */
+    public Frame apply(Frame frame) {
+
+        if (frame.opCode() == OpCode.OP_CHUNK || !frame.hasBody()) {
+            return frame;
+        }
+
+        byte[] body;
+        try {
+            body = JsonFrameCodec.project(frame.body(), fields);
+        } catch (CorruptedFrameException e) {
+            return frame;
+        }
+
+        return new Frame(frame.opCode())
+                .channel(frame.channel())
+                .subscriber(frame.subscriber())
+                .key(frame.key())
+                .id(frame.id())
+                .offset(frame.offset())
+                .sequence(frame.sequence())
+                .body(body);
+    }
+
+    public Set<String> fields() {
+
+        return fields;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) {
+            return true;
+        }
+
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        return fields.equals(((FieldProjection) o).fields);
+    }
+
+    @Override
+    public int hashCode() {
+
+        return fields.hashCode();
+    }
+
+    @Override
+    public String toString() {
+
+        return "FieldProjection{" +
+                "fields=" + fields +
+                '}';
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import org.json.JSONObject;
+
+/**
+ * A single message on the wire independent of the protocol it is encoded with.
+ *
+ * The routing header (op code, channel or channel id, subscriber, key, callback id, log offset, sequence, delivery time and reply address) is kept apart from the body,
+ * so the server can route a frame without ever looking into the body.
+ * The body is the remaining JSON object and is held either as raw UTF-8 bytes or as a parsed JSONObject,
+ * the other representation is created lazily on first access.
+ */
+public class Frame {
+
+    /**
+     * The default maximum size of an encoded frame, larger payloads have to be sent in chunks.
+     */
+    public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    /**
+     * The max frame size the remote side accepts as told in the handshake, not set until the handshake is done.
+     */
+    public static final AttributeKey<Integer> MAX_SIZE_ATTRIBUTE = AttributeKey.valueOf("thor-max-frame-size");
+
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    private OpCode opCode;
+
+    private String channel;
+
+    private int channelId = -1;
+
+    private String subscriber;
+
+    private String key;
+
+    private int id = -1;
+
+    private long offset = -1;
+
+    private long sequence = -1;
+
+    private long deliverAt = -1;
+
+    private long replyTo = -1;
+
+    private byte[] body;
+
+    private JSONObject json;
+
+    public Frame(OpCode opCode) {
+
+        if (opCode == null) {
+            throw new IllegalArgumentException("opCode cannot be null");
+        }
+
+        this.opCode = opCode;
+    }
+
+    public OpCode opCode() {
+
+        return opCode;
+    }
+
+    public String channel() {
+
+        return channel;
+    }
+
+    public Frame channel(String channel) {
+
+        this.channel = channel;
+
+        return this;
+    }
+
+    /**
+     * Returns the numeric id the server handed out for the channel of the frame.
+     *
+     * @return The channel id or -1 if the frame has none.
+     */
+    public int channelId() {
+
+        return channelId;
+    }
+
+    public Frame channelId(int channelId) {
+
+        this.channelId = channelId;
+
+        return this;
+    }
+
+    public boolean hasChannelId() {
+
+        return channelId != -1;
+    }
+
+    public String subscriber() {
+
+        return subscriber;
+    }
+
+    public Frame subscriber(String subscriber) {
+
+        this.subscriber = subscriber;
+
+        return this;
+    }
+
+    public String key() {
+
+        return key;
+    }
+
+    public Frame key(String key) {
+
+        this.key = key;
+
+        return this;
+    }
+
+    public int id() {
+
+        return id;
+    }
+
+    public Frame id(int id) {
+
+        this.id = id;
+
+        return this;
+    }
+
+    public boolean hasId() {
+
+        return id != -1;
+    }
+
+    /**
+     * Returns the offset of the message in the log of a durable channel.
+     *
+     * @return The offset or -1 if the message was not logged.
+     */
+    public long offset() {
+
+        return offset;
+    }
+
+    public Frame offset(long offset) {
+
+        this.offset = offset;
+
+        return this;
+    }
+
+    public boolean hasOffset() {
+
+        return offset != -1;
+    }
+
+    /**
+     * Returns the sequence number of a message for an acknowledged subscription
+     * or the acknowledged sequence number of an ack.
+     *
+     * @return The sequence number or -1 if the message is not acknowledged.
+     */
+    public long sequence() {
+
+        return sequence;
+    }
+
+    public Frame sequence(long sequence) {
+
+        this.sequence = sequence;
+
+        return this;
+    }
+
+    public boolean hasSequence() {
+
+        return sequence != -1;
+    }
+
+    /**
+     * Returns the time a scheduled message is delivered at.
+     *
+     * @return The time in milliseconds since the epoch or -1 if the message is not scheduled.
+     */
+    public long deliverAt() {
+
+        return deliverAt;
+    }
+
+    public Frame deliverAt(long deliverAt) {
+
+        this.deliverAt = deliverAt;
+
+        return this;
+    }
+
+    public boolean hasDeliverAt() {
+
+        return deliverAt != -1;
+    }
+
+    /**
+     * Returns the id of the server side connection a request came from and its reply is routed to.
+     *
+     * @return The connection id or -1 if the frame is no routed request or reply.
+     */
+    public long replyTo() {
+
+        return replyTo;
+    }
+
+    public Frame replyTo(long replyTo) {
+
+        this.replyTo = replyTo;
+
+        return this;
+    }
+
+    public boolean hasReplyTo() {
+
+        return replyTo != -1;
+    }
+
+    /**
+     * Returns the body as UTF-8 encoded JSON object.
+     * If the body was set as JSONObject it will be serialized once and cached.
+     *
+     * @return The body bytes, an empty array if the frame has no body.
+     */
+    public byte[] body() {
+
+        if (body == null) {
+            body = (json != null && json.length() > 0) ? json.toString().getBytes(CharsetUtil.UTF_8) : EMPTY_BODY;
+        }
+
+        return body;
+    }
+
+    public Frame body(byte[] body) {
+
+        this.body = body;
+        this.json = null;
+
+        return this;
+    }
+
+    /**
+     * Returns the body as JSONObject.
+     * If the body was set as bytes it will be parsed once and cached.
+     * Changes to the returned object are only visible on the wire if it is set again with {@link #json(JSONObject)}.
+     *
+     * @return The body as JSONObject, never null.
+     */
+    public JSONObject json() {
+
+        if (json == null) {
+            json = (body != null && body.length > 0) ? new JSONObject(new String(body, CharsetUtil.UTF_8)) : new JSONObject();
+        }
+
+        return json;
+    }
+
+    public Frame json(JSONObject json) {
+
+        this.json = json;
+        this.body = null;
+
+        return this;
+    }
+
+    public boolean hasBody() {
+
+        return (body != null) ? body.length > 0 : json != null && json.length() > 0;
+    }
+
+    @Override
+    public String toString() {
+
+        return "Frame{" +
+                "opCode=" + opCode +
+                ", channel='" + channel + '\'' +
+                ", channelId=" + channelId +
+                ", subscriber='" + subscriber + '\'' +
+                ", key='" + key + '\'' +
+                ", id=" + id +
+                ", offset=" + offset +
+                ", sequence=" + sequence +
+                ", deliverAt=" + deliverAt +
+                ", replyTo=" + replyTo +
+                ", body=" + new String(body(), CharsetUtil.UTF_8) +
+                '}';
+    }
+}
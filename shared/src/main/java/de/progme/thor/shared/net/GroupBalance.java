@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+/**
+ * How the server picks the member of a consumer group which gets a message.
+ *
+ * Members which can currently be written to are always preferred.
+ */
+public enum GroupBalance {
+
+    /**
+     * The members take turns.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * The member with the fewest bytes still waiting to be sent to it.
+     */
+    LEAST_OUTSTANDING
+}
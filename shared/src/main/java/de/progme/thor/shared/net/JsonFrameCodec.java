@@ -0,0 +1,665 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.CharsetUtil;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The original JSON wire format where the routing header is part of the JSON object itself.
+ *
+ * <pre>{"op":2,"ch":"test","foo":"bar"}</pre>
+ *
+ * It is still used for old clients and for clients written in other languages like the PHP publisher.
+ */
+public final class JsonFrameCodec {
+
+    private static final Set<OpCode> KEYED = EnumSet.of(OpCode.OP_CACHE_ADD, OpCode.OP_CACHE_GET, OpCode.OP_CACHE_REMOVE,
+            OpCode.OP_CACHE_SET_EXPIRE, OpCode.OP_CACHE_GET_EXPIRE, OpCode.OP_CACHE_HAS);
+
+    private static final Set<OpCode> CORRELATED = EnumSet.of(OpCode.OP_REQUEST, OpCode.OP_REPLY);
+
+    private static final byte[] OP = name("op");
+
+    private static final byte[] CH = name("ch");
+
+    private static final byte[] SU = name("su");
+
+    private static final byte[] KEY = name("key");
+
+    private static final byte[] ID = name("id");
+
+    private static final byte[] M = name("m");
+
+    private static final byte[] AT = name("at");
+
+    private static final byte[] RT = name("rt");
+
+    private JsonFrameCodec() {
+        // no instance
+    }
+
+    /**
+     * Decodes a JSON frame without building a JSONObject.
+     *
+     * Only the top level members are scanned to pick up the header fields, the values of all other
+     * members are skipped and copied as they are into the body. This keeps the cost of routing
+     * a message independent of how complex its payload is.
+     *
+     * @param byteBuf The frame without the length field.
+     * @return The decoded frame with the remaining members as body bytes.
+     */
+    public static Frame decode(ByteBuf byteBuf) {
+
+        byte[] bytes = new byte[byteBuf.readableBytes()];
+        byteBuf.readBytes(bytes);
+
+        return decode(bytes);
+    }
+
+    private static Frame decode(byte[] bytes) {
+
+        // Start and end index of every top level member and the header field it represents
+        int[] members = new int[24];
+        int count = 0;
+
+        int op = -1, ch = -1, su = -1, key = -1, id = -1, at = -1, rt = -1;
+
+        int index = skipWhitespace(bytes, 0);
+        expect(bytes, index++, '{');
+
+        index = skipWhitespace(bytes, index);
+        if (index < bytes.length && bytes[index] == '}') {
+            index++;
+        } else {
+            while (true) {
+                int memberStart = index;
+
+                expect(bytes, index, '"');
+                int nameEnd = skipString(bytes, index);
+
+                index = skipWhitespace(bytes, nameEnd);
+                expect(bytes, index++, ':');
+                index = skipWhitespace(bytes, index);
+
+                int valueStart = index;
+                index = skipValue(bytes, index);
+
+                if (count + 3 > members.length) {
+                    members = Arrays.copyOf(members, members.length * 2);
+                }
+
+                int member = count / 3;
+                members[count++] = memberStart;
+                members[count++] = valueStart;
+                members[count++] = index;
+
+                // Compare the raw name including its quotes, the header is written first so the first member wins
+                if (op == -1 && matches(bytes, memberStart, nameEnd, OP)) {
+                    op = member;
+                } else if (ch == -1 && matches(bytes, memberStart, nameEnd, CH)) {
+                    ch = member;
+                } else if (su == -1 && matches(bytes, memberStart, nameEnd, SU)) {
+                    su = member;
+                } else if (key == -1 && matches(bytes, memberStart, nameEnd, KEY)) {
+                    key = member;
+                } else if (id == -1 && matches(bytes, memberStart, nameEnd, ID)) {
+                    id = member;
+                } else if (at == -1 && matches(bytes, memberStart, nameEnd, AT)) {
+                    at = member;
+                } else if (rt == -1 && matches(bytes, memberStart, nameEnd, RT)) {
+                    rt = member;
+                }
+
+                index = skipWhitespace(bytes, index);
+                if (index >= bytes.length) {
+                    throw new CorruptedFrameException("unterminated json object");
+                }
+
+                if (bytes[index] == ',') {
+                    index = skipWhitespace(bytes, index + 1);
+                } else {
+                    expect(bytes, index++, '}');
+                    break;
+                }
+            }
+        }
+
+        Object opValue = value(bytes, members, op);
+
+        Frame frame = new Frame(OpCode.of((opValue instanceof Integer) ? (Integer) opValue : null));
+
+        boolean[] header = new boolean[count / 3];
+        if (op != -1) {
+            header[op] = true;
+        }
+
+        Object chValue = value(bytes, members, ch);
+        if (chValue instanceof String) {
+            frame.channel((String) chValue);
+            header[ch] = true;
+        }
+
+        Object suValue = value(bytes, members, su);
+        if (suValue instanceof String) {
+            frame.subscriber((String) suValue);
+            header[su] = true;
+        }
+
+        // Only cache frames carry a key, otherwise it is a normal field of the message
+        if (KEYED.contains(frame.opCode())) {
+            Object keyValue = value(bytes, members, key);
+            if (keyValue instanceof String) {
+                frame.key((String) keyValue);
+                header[key] = true;
+            }
+        }
+
+        // Cache frames carry a callback id, requests and replies a correlation id
+        if (KEYED.contains(frame.opCode()) || CORRELATED.contains(frame.opCode())) {
+            Object idValue = value(bytes, members, id);
+            if (idValue instanceof Integer) {
+                frame.id((Integer) idValue);
+                header[id] = true;
+            }
+        }
+
+        // Requests and replies carry the connection the reply is routed to
+        if (CORRELATED.contains(frame.opCode())) {
+            Object rtValue = value(bytes, members, rt);
+            if (rtValue instanceof Number) {
+                frame.replyTo(((Number) rtValue).longValue());
+                header[rt] = true;
+            }
+        }
+
+        // Only scheduled messages carry a delivery time, otherwise it is a normal field of the message
+        if (frame.opCode() == OpCode.OP_SCHEDULE) {
+            Object atValue = value(bytes, members, at);
+            if (atValue instanceof Number) {
+                frame.deliverAt(((Number) atValue).longValue());
+                header[at] = true;
+            }
+        }
+
+        // Copy all remaining members into the body
+        int length = 1;
+        for (int i = 0; i < header.length; i++) {
+            if (!header[i]) {
+                length += members[i * 3 + 2] - members[i * 3] + 1;
+            }
+        }
+
+        if (length == 1) {
+            return frame.body(new byte[0]);
+        }
+
+        byte[] body = new byte[length];
+        body[0] = '{';
+
+        int position = 1;
+        for (int i = 0; i < header.length; i++) {
+            if (header[i]) {
+                continue;
+            }
+
+            if (position > 1) {
+                body[position++] = ',';
+            }
+
+            int memberStart = members[i * 3];
+            int memberLength = members[i * 3 + 2] - memberStart;
+
+            System.arraycopy(bytes, memberStart, body, position, memberLength);
+            position += memberLength;
+        }
+
+        body[position] = '}';
+
+        return frame.body(body);
+    }
+
+    public static void encode(Frame frame, ByteBuf byteBuf) {
+
+        byteBuf.writeByte('{');
+        ByteBufUtil.writeAscii(byteBuf, "\"op\":" + frame.opCode().getCode());
+
+        if (frame.channel() != null) {
+            ByteBufUtil.writeUtf8(byteBuf, ",\"ch\":" + JSONObject.quote(frame.channel()));
+        }
+
+        if (frame.subscriber() != null) {
+            ByteBufUtil.writeUtf8(byteBuf, ",\"su\":" + JSONObject.quote(frame.subscriber()));
+        }
+
+        if (frame.key() != null) {
+            ByteBufUtil.writeUtf8(byteBuf, ",\"key\":" + JSONObject.quote(frame.key()));
+        }
+
+        if (frame.hasId()) {
+            ByteBufUtil.writeAscii(byteBuf, ",\"id\":" + frame.id());
+        }
+
+        if (frame.hasDeliverAt()) {
+            ByteBufUtil.writeAscii(byteBuf, ",\"at\":" + frame.deliverAt());
+        }
+
+        if (frame.hasReplyTo()) {
+            ByteBufUtil.writeAscii(byteBuf, ",\"rt\":" + frame.replyTo());
+        }
+
+        // Splice the members of the body into the object instead of building a new JSONObject
+        byte[] body = frame.body();
+
+        int start = 0;
+        while (start < body.length && body[start] != '{') {
+            start++;
+        }
+        start++;
+
+        int end = body.length - 1;
+        while (end > start && body[end] != '}') {
+            end--;
+        }
+
+        while (start < end && Character.isWhitespace(body[start])) {
+            start++;
+        }
+
+        if (start < end) {
+            byteBuf.writeByte(',');
+            byteBuf.writeBytes(body, start, end - start);
+        }
+
+        byteBuf.writeByte('}');
+    }
+
+    /**
+     * Encodes the frames as body of an {@link OpCode#OP_BATCH} frame.
+     *
+     * <pre>{"m":[{"op":2,"ch":"a","foo":"bar"},{"op":2,"ch":"b","foo":"baz"}]}</pre>
+     *
+     * The frames are always encoded in the JSON format, so the batch body is the same for both protocols.
+     *
+     * @param frames The frames of the batch.
+     * @return The body of the batch frame.
+     */
+    public static byte[] encodeBatch(List<Frame> frames) {
+
+        ByteBuf byteBuf = Unpooled.buffer();
+
+        try {
+            ByteBufUtil.writeAscii(byteBuf, "{\"m\":[");
+
+            for (int i = 0; i < frames.size(); i++) {
+                if (i > 0) {
+                    byteBuf.writeByte(',');
+                }
+
+                encode(frames.get(i), byteBuf);
+            }
+
+            byteBuf.writeByte(']');
+            byteBuf.writeByte('}');
+
+            return ByteBufUtil.getBytes(byteBuf);
+        } finally {
+            byteBuf.release();
+        }
+    }
+
+    /**
+     * Decodes the frames of an {@link OpCode#OP_BATCH} body.
+     * Each frame is decoded like a single JSON frame, so only its header is scanned.
+     *
+     * @param body The body of the batch frame.
+     * @return The frames of the batch in their original order.
+     */
+    public static List<Frame> decodeBatch(byte[] body) {
+
+        List<Frame> frames = new ArrayList<>();
+
+        int index = skipWhitespace(body, 0);
+        expect(body, index++, '{');
+
+        index = skipWhitespace(body, index);
+        while (index < body.length && body[index] != '}') {
+            int nameStart = index;
+
+            expect(body, index, '"');
+            int nameEnd = skipString(body, index);
+
+            index = skipWhitespace(body, nameEnd);
+            expect(body, index++, ':');
+            index = skipWhitespace(body, index);
+
+            if (matches(body, nameStart, nameEnd, M)) {
+                expect(body, index++, '[');
+
+                index = skipWhitespace(body, index);
+                while (index < body.length && body[index] != ']') {
+                    int frameStart = index;
+                    index = skipValue(body, index);
+
+                    frames.add(decode(Arrays.copyOfRange(body, frameStart, index)));
+
+                    index = skipWhitespace(body, index);
+                    if (index < body.length && body[index] == ',') {
+                        index = skipWhitespace(body, index + 1);
+                    }
+                }
+
+                expect(body, index++, ']');
+            } else {
+                index = skipValue(body, index);
+            }
+
+            index = skipWhitespace(body, index);
+            if (index < body.length && body[index] == ',') {
+                index = skipWhitespace(body, index + 1);
+            }
+        }
+
+        return frames;
+    }
+
+    /**
+     * Reads the top level string members with the given names of a JSON body.
+     * All other members are skipped without being parsed, so a message can be filtered cheaply.
+     *
+     * @param body The JSON body.
+     * @param names The names of the members to read.
+     * @return The string values by member name, members which are missing or not a string are left out.
+     */
+    public static Map<String, String> strings(byte[] body, Set<String> names) {
+
+        Map<String, String> strings = new HashMap<>();
+
+        int index = skipWhitespace(body, 0);
+        if (index >= body.length || body[index] != '{') {
+            return strings;
+        }
+
+        index = skipWhitespace(body, index + 1);
+        while (index < body.length && body[index] != '}') {
+            int nameStart = index;
+
+            expect(body, index, '"');
+            int nameEnd = skipString(body, index);
+
+            index = skipWhitespace(body, nameEnd);
+            expect(body, index++, ':');
+            index = skipWhitespace(body, index);
+
+            int valueStart = index;
+            index = skipValue(body, index);
+
+            if (body[valueStart] == '"') {
+                String name = string(body, nameStart, nameEnd);
+
+                if (names.contains(name)) {
+                    strings.put(name, string(body, valueStart, index));
+                }
+            }
+
+            index = skipWhitespace(body, index);
+            if (index < body.length && body[index] == ',') {
+                index = skipWhitespace(body, index + 1);
+            }
+        }
+
+        return strings;
+    }
+
+    /**
+     * Reads the value of a top level member of a JSON body as it is written, without parsing it.
+     *
+     * @param body The JSON body.
+     * @param name The name of the member.
+     * @return The JSON text of the value, like {@code "foo"} or {@code 42}, or null if the member is missing.
+     */
+    public static String value(byte[] body, String name) {
+
+        int index = skipWhitespace(body, 0);
+        if (index >= body.length || body[index] != '{') {
+            return null;
+        }
+
+        index = skipWhitespace(body, index + 1);
+        while (index < body.length && body[index] != '}') {
+            int nameStart = index;
+
+            expect(body, index, '"');
+            int nameEnd = skipString(body, index);
+
+            index = skipWhitespace(body, nameEnd);
+            expect(body, index++, ':');
+            index = skipWhitespace(body, index);
+
+            int valueStart = index;
+            index = skipValue(body, index);
+
+            if (string(body, nameStart, nameEnd).equals(name)) {
+                return new String(body, valueStart, index - valueStart, CharsetUtil.UTF_8);
+            }
+
+            index = skipWhitespace(body, index);
+            if (index < body.length && body[index] == ',') {
+                index = skipWhitespace(body, index + 1);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Copies the top level members with the given names of a JSON body into a new body.
+     * The values are copied as they are without being parsed.
+     *
+     * @param body The JSON body.
+     * @param names The names of the members to keep.
+     * @return The body with only the kept members.
+     */
+    public static byte[] project(byte[] body, Set<String> names) {
+
+        ByteBuf byteBuf = Unpooled.buffer(body.length);
+
+        try {
+            byteBuf.writeByte('{');
+
+            int index = skipWhitespace(body, 0);
+            expect(body, index, '{');
+
+            index = skipWhitespace(body, index + 1);
+            while (index < body.length && body[index] != '}') {
+                int memberStart = index;
+
+                expect(body, index, '"');
+                int nameEnd = skipString(body, index);
+
+                index = skipWhitespace(body, nameEnd);
+                expect(body, index++, ':');
+                index = skipWhitespace(body, index);
+                index = skipValue(body, index);
+
+                if (names.contains(string(body, memberStart, nameEnd))) {
+                    if (byteBuf.writerIndex() > 1) {
+                        byteBuf.writeByte(',');
+                    }
+
+                    byteBuf.writeBytes(body, memberStart, index - memberStart);
+                }
+
+                index = skipWhitespace(body, index);
+                if (index < body.length && body[index] == ',') {
+                    index = skipWhitespace(body, index + 1);
+                }
+            }
+
+            byteBuf.writeByte('}');
+
+            return ByteBufUtil.getBytes(byteBuf);
+        } finally {
+            byteBuf.release();
+        }
+    }
+
+    private static String string(byte[] bytes, int start, int end) {
+
+        for (int i = start + 1; i < end - 1; i++) {
+            if (bytes[i] == '\\') {
+                return (String) new JSONTokener(new String(bytes, start, end - start, CharsetUtil.UTF_8)).nextValue();
+            }
+        }
+
+        // Without escapes the string is just the bytes between the quotes
+        return new String(bytes, start + 1, end - start - 2, CharsetUtil.UTF_8);
+    }
+
+    private static byte[] name(String name) {
+
+        return ("\"" + name + "\"").getBytes(CharsetUtil.UTF_8);
+    }
+
+    private static Object value(byte[] bytes, int[] members, int member) {
+
+        if (member == -1) {
+            return null;
+        }
+
+        int valueStart = members[member * 3 + 1];
+
+        // Header values are short, so the tokener is only used for them
+        return new JSONTokener(new String(bytes, valueStart, members[member * 3 + 2] - valueStart, CharsetUtil.UTF_8)).nextValue();
+    }
+
+    private static boolean matches(byte[] bytes, int start, int end, byte[] name) {
+
+        if (end - start != name.length) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length; i++) {
+            if (bytes[start + i] != name[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static void expect(byte[] bytes, int index, char c) {
+
+        if (index >= bytes.length || bytes[index] != c) {
+            throw new CorruptedFrameException("expected '" + c + "' at position " + index);
+        }
+    }
+
+    private static int skipWhitespace(byte[] bytes, int index) {
+
+        while (index < bytes.length && (bytes[index] == ' ' || bytes[index] == '\n' || bytes[index] == '\r' || bytes[index] == '\t')) {
+            index++;
+        }
+
+        return index;
+    }
+
+    private static int skipString(byte[] bytes, int index) {
+
+        // Skip the opening quote
+        index++;
+
+        while (index < bytes.length) {
+            byte b = bytes[index++];
+
+            if (b == '\\') {
+                index++;
+            } else if (b == '"') {
+                return index;
+            }
+        }
+
+        throw new CorruptedFrameException("unterminated json string");
+    }
+
+    private static int skipValue(byte[] bytes, int index) {
+
+        if (index >= bytes.length) {
+            throw new CorruptedFrameException("missing json value");
+        }
+
+        byte b = bytes[index];
+
+        if (b == '"') {
+            return skipString(bytes, index);
+        }
+
+        if (b == '{' || b == '[') {
+            int depth = 0;
+
+            while (index < bytes.length) {
+                b = bytes[index];
+
+                if (b == '"') {
+                    index = skipString(bytes, index);
+                    continue;
+                }
+
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    if (--depth == 0) {
+                        return index + 1;
+                    }
+                }
+
+                index++;
+            }
+
+            throw new CorruptedFrameException("unterminated json value");
+        }
+
+        // Numbers, booleans and null end at the next delimiter
+        int start = index;
+        while (index < bytes.length && bytes[index] != ',' && bytes[index] != '}' && bytes[index] != ']'
+                && bytes[index] != ' ' && bytes[index] != '\n' && bytes[index] != '\r' && bytes[index] != '\t') {
+            index++;
+        }
+
+        if (index == start) {
+            throw new CorruptedFrameException("missing json value");
+        }
+
+        return index;
+    }
+}
@@ -36,7 +36,19 @@ public enum OpCode {
     OP_CACHE_GET_EXPIRE(8),
     OP_CLUSTER_INFO_SET(9),
     OP_KEEP_ALIVE(10),
-    OP_CACHE_HAS(11);
+    OP_CACHE_HAS(11),
+    OP_HANDSHAKE(12),
+    OP_CHUNK(13),
+    OP_BATCH(14),
+    OP_ACK(15),
+    OP_CHANNEL_ID(16),
+    OP_REGISTER_CHANNELS(17),
+    OP_UNREGISTER_CHANNELS(18),
+    OP_SESSION(19),
+    OP_INBOX(20),
+    OP_SCHEDULE(21),
+    OP_REQUEST(22),
+    OP_REPLY(23);
 
     private int code;
 
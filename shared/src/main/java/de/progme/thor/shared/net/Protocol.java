@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * The wire formats a frame can be encoded with.
+ *
+ * Inbound frames are detected by their first byte, so both formats can be mixed on one connection.
+ * The format of outbound frames is chosen per connection during the handshake and stored as channel attribute.
+ * {@link #COMPACT} is the binary format where broadcasts carry the numeric channel id instead of the channel name
+ * once the server has handed out the id on the connection.
+ */
+public enum Protocol {
+
+    JSON(0) {
+        @Override
+        public Frame decode(ByteBuf byteBuf) {
+
+            return JsonFrameCodec.decode(byteBuf);
+        }
+
+        @Override
+        public void encode(Frame frame, ByteBuf byteBuf) {
+
+            JsonFrameCodec.encode(frame, byteBuf);
+        }
+    },
+    BINARY(1) {
+        @Override
+        public Frame decode(ByteBuf byteBuf) {
+
+            return BinaryFrameCodec.decode(byteBuf);
+        }
+
+        @Override
+        public void encode(Frame frame, ByteBuf byteBuf) {
+
+            BinaryFrameCodec.encode(frame, byteBuf);
+        }
+    },
+    COMPACT(2) {
+        @Override
+        public Frame decode(ByteBuf byteBuf) {
+
+            return BinaryFrameCodec.decode(byteBuf);
+        }
+
+        @Override
+        public void encode(Frame frame, ByteBuf byteBuf) {
+
+            // The channel id is only known per connection, see FrameEncoder and EncodedFrame
+            BinaryFrameCodec.encode(frame, byteBuf);
+        }
+    };
+
+    public static final AttributeKey<Protocol> ATTRIBUTE = AttributeKey.valueOf("thor-protocol");
+
+    private int code;
+
+    Protocol(int code) {
+
+        this.code = code;
+    }
+
+    public int getCode() {
+
+        return code;
+    }
+
+    public abstract Frame decode(ByteBuf byteBuf);
+
+    public abstract void encode(Frame frame, ByteBuf byteBuf);
+
+    public static Protocol of(int code) {
+
+        for (Protocol protocol : values()) {
+            if (protocol.code == code) {
+                return protocol;
+            }
+        }
+
+        return JSON;
+    }
+
+    /**
+     * Returns the protocol which is used for outbound frames of the given channel.
+     *
+     * @param channel The channel.
+     * @return The negotiated protocol or JSON if nothing was negotiated.
+     */
+    public static Protocol of(Channel channel) {
+
+        Protocol protocol = channel.attr(ATTRIBUTE).get();
+
+        return (protocol != null) ? protocol : JSON;
+    }
+
+    /**
+     * Detects the protocol of a single inbound frame without consuming any bytes.
+     *
+     * @param byteBuf The frame without the length field.
+     * @return The protocol the frame is encoded with.
+     */
+    public static Protocol detect(ByteBuf byteBuf) {
+
+        return (byteBuf.getByte(byteBuf.readerIndex()) == BinaryFrameCodec.MAGIC) ? BINARY : JSON;
+    }
+}
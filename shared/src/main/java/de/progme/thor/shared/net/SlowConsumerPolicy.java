@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+/**
+ * What the server does with channel messages for a subscriber which can not keep up.
+ *
+ * Messages are queued while the connection is above its write buffer high watermark,
+ * the policy decides what happens once that queue reaches its limit.
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * The new message is dropped.
+     */
+    DROP_NEWEST,
+
+    /**
+     * The oldest queued messages are dropped until the new one fits.
+     */
+    DROP_OLDEST,
+
+    /**
+     * A queued message of the same channel is replaced by the new one,
+     * the oldest messages are dropped if the queue is still full.
+     */
+    CONFLATE,
+
+    /**
+     * The subscriber is disconnected, either if the queue is full
+     * or if the connection stays above the high watermark for too long.
+     */
+    DISCONNECT
+}
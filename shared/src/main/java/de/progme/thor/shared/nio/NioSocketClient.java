@@ -21,6 +21,8 @@ package de.progme.thor.shared.nio;
 
 import de.progme.thor.shared.config.ClusterServer;
 import de.progme.thor.shared.net.ConnectException;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.OpCode;
 import de.progme.thor.shared.pipeline.ChannelUtil;
 import de.progme.thor.shared.pipeline.PipelineUtils;
 import de.progme.thor.shared.pipeline.initialize.ClientChannelInitializer;
@@ -40,9 +42,13 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by Marvin Erkes on 16.06.2017.
+ *
+ * The server hands out a session token after the handshake. On a reconnect the client presents the token
+ * and if the server still keeps the session, the subscriptions and the messages buffered in the meantime
+ * are resumed without calling {@link #clientReconnected()}.
  */
 @ChannelHandler.Sharable
-public abstract class NioSocketClient extends SimpleChannelInboundHandler<JSONObject> {
+public abstract class NioSocketClient extends SimpleChannelInboundHandler<Frame> {
 
     private static final int CONNECT_TIMEOUT = 2000;
 
@@ -50,13 +56,17 @@ public abstract class NioSocketClient extends SimpleChannelInboundHandler<JSONOb
 
     private EventLoopGroup eventLoopGroup;
 
-    private Channel channel;
+    private volatile Channel channel;
 
     private boolean connected;
 
     private AtomicBoolean reconnecting = new AtomicBoolean(false);
 
-    private Queue<JSONObject> sendQueue = new ConcurrentLinkedQueue<>();
+    private Queue<Frame> sendQueue = new ConcurrentLinkedQueue<>();
+
+    private volatile String session;
+
+    private volatile String presentedSession;
 
     protected String name;
 
@@ -95,15 +105,18 @@ public abstract class NioSocketClient extends SimpleChannelInboundHandler<JSONOb
 
     public abstract void clientReconnected();
 
-    public abstract void received(JSONObject jsonObject);
+    public abstract void received(Frame frame);
 
     public boolean connect(String host, int port) {
 
+        // The session token is presented with the handshake of the new connection
+        presentedSession = session;
+
         eventLoopGroup = PipelineUtils.newEventLoopGroup(1);
         ChannelFuture channelFuture = new Bootstrap()
                 .group(eventLoopGroup)
                 .channel(PipelineUtils.getChannel())
-                .handler(new ClientChannelInitializer(this))
+                .handler(new ClientChannelInitializer(this, presentedSession))
                 .option(ChannelOption.TCP_NODELAY, true)
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT)
                 .connect(host, port);
@@ -136,6 +149,9 @@ public abstract class NioSocketClient extends SimpleChannelInboundHandler<JSONOb
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
 
+        // Fires before connect has returned the channel
+        channel = ctx.channel();
+
         clientConnected();
     }
 
@@ -155,16 +171,31 @@ public abstract class NioSocketClient extends SimpleChannelInboundHandler<JSONOb
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, JSONObject jsonObject) throws Exception {
+    protected void channelRead0(ChannelHandlerContext ctx, Frame frame) throws Exception {
+
+        if (frame.opCode() == OpCode.OP_SESSION) {
+            sessionStarted(frame.json().optString("session", null), frame.json().optBoolean("resumed", false));
+            return;
+        }
 
-        received(jsonObject);
+        received(frame);
     }
 
-    private void addToQueue(JSONObject jsonObject) {
+    private void sessionStarted(String session, boolean resumed) {
+
+        this.session = session;
+
+        if (presentedSession != null && !resumed) {
+            // The server does not know the session any more, so everything has to be set up again
+            clientReconnected();
+        }
+    }
+
+    private void addToQueue(Frame frame) {
 
         // Only queue up to 100 messages
         if (sendQueue.size() < 100) {
-            sendQueue.offer(jsonObject);
+            sendQueue.offer(frame);
         }
     }
 
@@ -184,7 +215,10 @@ public abstract class NioSocketClient extends SimpleChannelInboundHandler<JSONOb
                 } else {
                     reconnecting.set(false);
 
-                    clientReconnected();
+                    // With a presented session the server decides whether the session is resumed
+                    if (presentedSession == null) {
+                        clientReconnected();
+                    }
 
                     try {
                         // Give the subscriber a chance to connect first
@@ -195,9 +229,9 @@ public abstract class NioSocketClient extends SimpleChannelInboundHandler<JSONOb
 
                     //Resend the queued messages if available
                     while (sendQueue.size() > 0) {
-                        JSONObject jsonObject = sendQueue.poll();
-                        if (jsonObject != null) {
-                            write(jsonObject);
+                        Frame frame = sendQueue.poll();
+                        if (frame != null) {
+                            write(frame);
                         }
                     }
                 }
@@ -210,6 +244,11 @@ public abstract class NioSocketClient extends SimpleChannelInboundHandler<JSONOb
         if (connected) {
             connected = false;
 
+            if (force && session != null) {
+                // The server does not need to keep the session for a client which is gone for good
+                channel.writeAndFlush(new Frame(OpCode.OP_SESSION).json(new JSONObject().put("end", true)));
+            }
+
             channel.close();
             if (force) {
                 try {
@@ -225,19 +264,38 @@ public abstract class NioSocketClient extends SimpleChannelInboundHandler<JSONOb
         }
     }
 
-    public void write(JSONObject jsonObject, boolean queueEnabled) {
+    public void write(Frame frame, boolean queueEnabled) {
 
         if (!channel.isActive() && queueEnabled) {
-            addToQueue(jsonObject);
+            addToQueue(frame);
             return;
         }
 
-        channel.writeAndFlush(jsonObject);
+        channel.writeAndFlush(frame);
+    }
+
+    public void write(Frame frame) {
+
+        write(frame, true);
+    }
+
+    /**
+     * @return The max frame size the server accepts, the default until the server has told it in the handshake.
+     */
+    public int maxFrameSize() {
+
+        Channel channel = this.channel;
+        Integer maxFrameSize = (channel != null) ? channel.attr(Frame.MAX_SIZE_ATTRIBUTE).get() : null;
+
+        return (maxFrameSize != null) ? maxFrameSize : Frame.DEFAULT_MAX_SIZE;
     }
 
-    public void write(JSONObject jsonObject) {
+    /**
+     * Returns the event loop of the current connection which also calls {@link #received(Frame)}.
+     */
+    protected EventLoop eventLoop() {
 
-        write(jsonObject, true);
+        return channel.eventLoop();
     }
 
     public List<ClusterServer> clusterServers() {
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.pipeline.handler;
+
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.OpCode;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.util.CharsetUtil;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reassembles chunked frames, all other frames are passed through.
+ *
+ * The bytes of all unfinished transfers of the connection are limited. If a new chunk would exceed the limit,
+ * the oldest transfers are discarded first. Transfers with a missing chunk, for example because it was dropped
+ * for a slow consumer, are discarded as well.
+ */
+public class ChunkAggregator extends MessageToMessageDecoder<Frame> {
+
+    /**
+     * The default limit for the bytes of unfinished transfers of a connection.
+     */
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private int maxBytes;
+
+    private int bufferedBytes;
+
+    private Map<String, Transfer> transfers = new LinkedHashMap<>();
+
+    public ChunkAggregator(int maxBytes) {
+
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext channelHandlerContext, Frame frame, List<Object> out) throws Exception {
+
+        if (frame.opCode() != OpCode.OP_CHUNK) {
+            out.add(frame);
+            return;
+        }
+
+        JSONObject body = frame.json();
+
+        String transferId = frame.channel() + '/' + body.getLong("t");
+        int index = body.getInt("n");
+
+        Transfer transfer = transfers.get(transferId);
+
+        if (index == 0) {
+            if (transfer != null) {
+                remove(transferId);
+            }
+
+            transfer = new Transfer();
+            transfers.put(transferId, transfer);
+        } else if (transfer == null || transfer.next != index) {
+            // A chunk is missing, the transfer can not be completed anymore
+            if (transfer != null) {
+                remove(transferId);
+            }
+            return;
+        }
+
+        byte[] data = body.getString("d").getBytes(CharsetUtil.UTF_8);
+
+        evict(data.length);
+
+        // The transfer itself was the oldest or is too large on its own
+        if (!transfers.containsKey(transferId) || data.length > maxBytes) {
+            remove(transferId);
+            return;
+        }
+
+        transfer.data.write(data, 0, data.length);
+        transfer.next++;
+        bufferedBytes += data.length;
+
+        if (body.optBoolean("f")) {
+            remove(transferId);
+
+            out.add(new Frame(OpCode.of(body.getInt("o")))
+                    .channel(frame.channel())
+                    .subscriber(frame.subscriber())
+                    .offset(frame.offset())
+                    .sequence(frame.sequence())
+                    .body(transfer.data.toByteArray()));
+        }
+    }
+
+    private void evict(int bytes) {
+
+        Iterator<Map.Entry<String, Transfer>> iterator = transfers.entrySet().iterator();
+        while (bufferedBytes + bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Transfer> entry = iterator.next();
+
+            bufferedBytes -= entry.getValue().data.size();
+            iterator.remove();
+        }
+    }
+
+    private void remove(String transferId) {
+
+        Transfer transfer = transfers.remove(transferId);
+
+        if (transfer != null) {
+            bufferedBytes -= transfer.data.size();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+
+        transfers.clear();
+        bufferedBytes = 0;
+
+        super.channelInactive(ctx);
+    }
+
+    private static class Transfer {
+
+        private ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        private int next;
+    }
+}
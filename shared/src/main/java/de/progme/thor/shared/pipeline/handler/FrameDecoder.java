@@ -19,23 +19,38 @@
 
 package de.progme.thor.shared.pipeline.handler;
 
+import de.progme.thor.shared.net.ChannelIds;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.Protocol;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageDecoder;
-import io.netty.util.CharsetUtil;
-import org.json.JSONObject;
 
 import java.util.List;
 
 /**
- * Created by Marvin Erkes on 07.10.2017.
+ * Decodes a length stripped frame with the protocol it was encoded with.
+ * The channel id of a broadcast is resolved to its channel name, frames with an unknown id keep no channel.
  */
-public class JSONObjectDecoder extends MessageToMessageDecoder<ByteBuf> {
+public class FrameDecoder extends MessageToMessageDecoder<ByteBuf> {
 
     @Override
     protected void decode(ChannelHandlerContext channelHandlerContext, ByteBuf byteBuf, List<Object> out) throws Exception {
 
-        byteBuf.readInt();
-        out.add(new JSONObject(byteBuf.toString(CharsetUtil.UTF_8)));
+        if (!byteBuf.isReadable()) {
+            return;
+        }
+
+        Frame frame = Protocol.detect(byteBuf).decode(byteBuf);
+
+        if (frame.channel() == null && frame.hasChannelId()) {
+            ChannelIds channelIds = channelHandlerContext.channel().attr(ChannelIds.ATTRIBUTE).get();
+
+            if (channelIds != null) {
+                frame.channel(channelIds.channel(frame.channelId()));
+            }
+        }
+
+        out.add(frame);
     }
 }
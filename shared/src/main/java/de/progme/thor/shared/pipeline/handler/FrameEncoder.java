@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.pipeline.handler;
+
+import de.progme.thor.shared.net.BinaryFrameCodec;
+import de.progme.thor.shared.net.ChannelIds;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.OpCode;
+import de.progme.thor.shared.net.Protocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+import org.json.JSONArray;
+
+/**
+ * Encodes a frame including its length field with the protocol negotiated for the channel.
+ * With the {@link Protocol#COMPACT} protocol broadcasts carry the channel id instead of the channel name
+ * if an id was handed out for the channel on the connection.
+ * The ids of unsubscribed channels are retired, because the server releases them.
+ */
+public class FrameEncoder extends MessageToByteEncoder<Frame> {
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Frame frame, ByteBuf out) throws Exception {
+
+        Protocol protocol = Protocol.of(ctx.channel());
+        ChannelIds channelIds = ctx.channel().attr(ChannelIds.ATTRIBUTE).get();
+
+        if (channelIds != null) {
+            retire(frame, channelIds);
+
+            if (protocol == Protocol.COMPACT) {
+                encode(frame, channelIds.id(frame.channel()), out);
+                return;
+            }
+        }
+
+        encode(frame, protocol, out);
+    }
+
+    private static void retire(Frame frame, ChannelIds channelIds) {
+
+        if (frame.opCode() == OpCode.OP_UNREGISTER_CHANNEL) {
+            channelIds.retire(frame.channel());
+        } else if (frame.opCode() == OpCode.OP_UNREGISTER_CHANNELS) {
+            JSONArray unregistrations = frame.json().optJSONArray("m");
+
+            if (unregistrations != null) {
+                for (int i = 0; i < unregistrations.length(); i++) {
+                    channelIds.retire(unregistrations.getString(i));
+                }
+            }
+        }
+    }
+
+    public static void encode(Frame frame, Protocol protocol, ByteBuf out) {
+
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+
+        protocol.encode(frame, out);
+
+        out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+    }
+
+    /**
+     * Encodes a frame with the {@link Protocol#COMPACT} protocol.
+     *
+     * @param frame The frame.
+     * @param channelId The id of the channel on the connection or -1 to write the channel name.
+     * @param out The buffer to write to.
+     */
+    public static void encode(Frame frame, int channelId, ByteBuf out) {
+
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+
+        BinaryFrameCodec.encode(frame, out, channelId);
+
+        out.setInt(lengthIndex, out.writerIndex() - lengthIndex - 4);
+    }
+}
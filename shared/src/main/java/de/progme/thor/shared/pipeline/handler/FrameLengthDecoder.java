@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.pipeline.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+
+import java.util.List;
+
+/**
+ * Splits the stream into frames prefixed with their length as 4 byte integer.
+ *
+ * Unlike the length field decoder of netty the maximum frame length can be raised after the channel has been set up,
+ * which the client does once the server has told it the max frame size in the handshake.
+ * Frames which are too large are discarded and reported with a {@link TooLongFrameException}.
+ */
+public class FrameLengthDecoder extends ByteToMessageDecoder {
+
+    private static final int LENGTH_FIELD_SIZE = 4;
+
+    private volatile int maxFrameLength;
+
+    private long bytesToDiscard;
+
+    /**
+     * @param maxFrameLength The maximum length of a frame without the length field.
+     */
+    public FrameLengthDecoder(int maxFrameLength) {
+
+        maxFrameLength(maxFrameLength);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+
+        if (bytesToDiscard > 0) {
+            int discard = (int) Math.min(bytesToDiscard, in.readableBytes());
+            in.skipBytes(discard);
+            bytesToDiscard -= discard;
+            return;
+        }
+
+        if (in.readableBytes() < LENGTH_FIELD_SIZE) {
+            return;
+        }
+
+        long length = in.getUnsignedInt(in.readerIndex());
+
+        if (length > maxFrameLength) {
+            in.skipBytes(LENGTH_FIELD_SIZE);
+            bytesToDiscard = length;
+
+            throw new TooLongFrameException("frame length " + length + " exceeds " + maxFrameLength);
+        }
+
+        if (in.readableBytes() < LENGTH_FIELD_SIZE + length) {
+            return;
+        }
+
+        in.skipBytes(LENGTH_FIELD_SIZE);
+        out.add(in.readRetainedSlice((int) length));
+    }
+
+    public int maxFrameLength() {
+
+        return maxFrameLength;
+    }
+
+    public void maxFrameLength(int maxFrameLength) {
+
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength must be greater than 0");
+        }
+
+        this.maxFrameLength = maxFrameLength;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.pipeline.handler;
+
+import de.progme.thor.shared.net.ChannelIds;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.OpCode;
+import de.progme.thor.shared.net.Protocol;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.json.JSONObject;
+
+/**
+ * Negotiates the protocol for outbound frames of a connection.
+ *
+ * The client requests the binary protocol as soon as the channel is active and switches to it
+ * once the server has acknowledged it. Servers which do not know the handshake simply ignore it,
+ * so the connection stays on JSON. Until then everything is sent as JSON which is always understood.
+ *
+ * Clients which understand channel ids ask for them in the handshake and get the {@link Protocol#COMPACT} protocol
+ * from servers which know it, older servers keep answering with the plain binary protocol.
+ * The ids the server hands out on the connection are stored by this handler as well.
+ *
+ * Clients which want a session send the token of their previous session (or an empty one for a new session)
+ * with the handshake. The server passes the handshake on to its connection which starts or resumes the session.
+ *
+ * The server tells the max frame size it accepts in the acknowledgement. The client raises the limit of its
+ * {@link FrameLengthDecoder} to it, because the server relays frames of that size, and only chunks frames above it.
+ */
+public class HandshakeHandler extends ChannelInboundHandlerAdapter {
+
+    private boolean client;
+
+    private boolean channelIds;
+
+    private String session;
+
+    private int maxFrameSize = -1;
+
+    public HandshakeHandler(boolean client) {
+
+        this(client, false);
+    }
+
+    public HandshakeHandler(boolean client, boolean channelIds) {
+
+        this(client, channelIds, null);
+    }
+
+    /**
+     * @param client If this is the client side of the connection.
+     * @param channelIds If the client asks for channel ids, only used on the client side.
+     * @param session The session token to resume, an empty token for a new session or null for none, only used on the client side.
+     */
+    public HandshakeHandler(boolean client, boolean channelIds, String session) {
+
+        this.client = client;
+        this.channelIds = channelIds;
+        this.session = session;
+    }
+
+    /**
+     * Sets the max frame size this side accepts, which the server sends with its acknowledgement.
+     *
+     * @param maxFrameSize The max frame size.
+     * @return This handler.
+     */
+    public HandshakeHandler maxFrameSize(int maxFrameSize) {
+
+        this.maxFrameSize = maxFrameSize;
+        return this;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+
+        if (client) {
+            Frame handshake = handshake(Protocol.BINARY);
+            if (channelIds) {
+                handshake.json().put("ids", true);
+            }
+            if (session != null) {
+                handshake.json().put("session", session);
+            }
+
+            ctx.writeAndFlush(handshake);
+        }
+
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+
+        if (client && msg instanceof Frame && ((Frame) msg).opCode() == OpCode.OP_CHANNEL_ID) {
+            Frame frame = (Frame) msg;
+            ChannelIds ids = ctx.channel().attr(ChannelIds.ATTRIBUTE).get();
+
+            if (ids != null && frame.channel() != null && frame.hasChannelId()) {
+                ids.put(frame.channel(), frame.channelId());
+            }
+            return;
+        }
+
+        if (!(msg instanceof Frame) || ((Frame) msg).opCode() != OpCode.OP_HANDSHAKE) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        Frame frame = (Frame) msg;
+        Protocol protocol = Protocol.of(frame.json().optInt("pr", Protocol.JSON.getCode()));
+
+        if (!client && protocol == Protocol.BINARY && frame.json().optBoolean("ids", false)) {
+            protocol = Protocol.COMPACT;
+        }
+
+        if (protocol == Protocol.COMPACT) {
+            ctx.channel().attr(ChannelIds.ATTRIBUTE).set(new ChannelIds());
+        }
+
+        if (!client) {
+            Frame acknowledgement = handshake(protocol);
+            if (maxFrameSize > 0) {
+                acknowledgement.json().put("mx", maxFrameSize);
+            }
+
+            // The acknowledgement is still encoded with JSON because the attribute is set afterwards
+            ctx.writeAndFlush(acknowledgement);
+        } else {
+            int remoteMaxFrameSize = frame.json().optInt("mx", -1);
+            if (remoteMaxFrameSize > 0) {
+                FrameLengthDecoder decoder = ctx.pipeline().get(FrameLengthDecoder.class);
+                if (decoder != null && decoder.maxFrameLength() < remoteMaxFrameSize) {
+                    decoder.maxFrameLength(remoteMaxFrameSize);
+                }
+
+                ctx.channel().attr(Frame.MAX_SIZE_ATTRIBUTE).set(remoteMaxFrameSize);
+            }
+        }
+
+        ctx.channel().attr(Protocol.ATTRIBUTE).set(protocol);
+
+        if (!client) {
+            // The connection starts the session with the negotiated protocol
+            ctx.fireChannelRead(frame);
+        }
+    }
+
+    private static Frame handshake(Protocol protocol) {
+
+        return new Frame(OpCode.OP_HANDSHAKE).json(new JSONObject().put("pr", protocol.getCode()));
+    }
+}
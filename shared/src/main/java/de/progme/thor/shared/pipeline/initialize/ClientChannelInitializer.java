@@ -19,16 +19,18 @@
 
 package de.progme.thor.shared.pipeline.initialize;
 
+import de.progme.thor.shared.net.Frame;
 import de.progme.thor.shared.nio.NioSocketClient;
-import de.progme.thor.shared.pipeline.handler.JSONObjectDecoder;
-import de.progme.thor.shared.pipeline.handler.JSONObjectEncoder;
+import de.progme.thor.shared.pipeline.handler.ChunkAggregator;
+import de.progme.thor.shared.pipeline.handler.FrameDecoder;
+import de.progme.thor.shared.pipeline.handler.FrameEncoder;
+import de.progme.thor.shared.pipeline.handler.FrameLengthDecoder;
+import de.progme.thor.shared.pipeline.handler.HandshakeHandler;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelException;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.LengthFieldPrepender;
 
 /**
  * Created by Marvin Erkes on 07.10.2017.
@@ -37,9 +39,16 @@ public class ClientChannelInitializer extends ChannelInitializer<Channel> {
 
     private NioSocketClient nioSocketClient;
 
-    public ClientChannelInitializer(NioSocketClient nioSocketClient) {
+    private String session;
+
+    /**
+     * @param nioSocketClient The client.
+     * @param session The session token to resume or null for a new session.
+     */
+    public ClientChannelInitializer(NioSocketClient nioSocketClient, String session) {
 
         this.nioSocketClient = nioSocketClient;
+        this.session = session;
     }
 
     @Override
@@ -52,10 +61,11 @@ public class ClientChannelInitializer extends ChannelInitializer<Channel> {
         }
         channel.config().setAllocator(PooledByteBufAllocator.DEFAULT);
 
-        channel.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4));
-        channel.pipeline().addLast(new JSONObjectDecoder());
-        channel.pipeline().addLast(new LengthFieldPrepender(4));
-        channel.pipeline().addLast(new JSONObjectEncoder());
+        channel.pipeline().addLast(new FrameLengthDecoder(Frame.DEFAULT_MAX_SIZE));
+        channel.pipeline().addLast(new FrameDecoder());
+        channel.pipeline().addLast(new ChunkAggregator(ChunkAggregator.DEFAULT_MAX_BYTES));
+        channel.pipeline().addLast(new FrameEncoder());
+        channel.pipeline().addLast(new HandshakeHandler(true, true, (session != null) ? session : ""));
         channel.pipeline().addLast(nioSocketClient);
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.benchmark;
+
+import de.progme.thor.shared.net.BinaryFrameCodec;
+import de.progme.thor.shared.net.EncodedFrame;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.OpCode;
+import de.progme.thor.shared.net.Protocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of routing one published message to its subscribers.
+ *
+ * legacyJson is the old path which parses the whole frame into a JSONObject and serializes it again for every subscriber,
+ * the other benchmarks only read the routing header and encode the frame once for all subscribers.
+ *
+ * Run it with the test classpath of this module, all JMH command line options are supported.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastRoutingBenchmark {
+
+    @Param({"128", "4096", "16384"})
+    private int payloadSize;
+
+    @Param({"1", "100"})
+    private int subscribers;
+
+    private ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    private ByteBuf jsonFrame;
+
+    private ByteBuf binaryFrame;
+
+    @Setup
+    public void setup() {
+
+        JSONObject payload = new JSONObject();
+        for (int i = 0; payload.toString().length() < payloadSize; i++) {
+            payload.put("field" + i, new JSONObject().put("name", "value-" + i).put("count", i).put("active", i % 2 == 0));
+        }
+
+        jsonFrame = Unpooled.copiedBuffer(new JSONObject(payload.toString())
+                .put("op", OpCode.OP_BROADCAST.getCode())
+                .put("ch", "benchmark")
+                .toString(), CharsetUtil.UTF_8);
+
+        binaryFrame = Unpooled.buffer();
+        BinaryFrameCodec.encode(new Frame(OpCode.OP_BROADCAST).channel("benchmark").json(payload), binaryFrame);
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        jsonFrame.release();
+        binaryFrame.release();
+    }
+
+    @Benchmark
+    public void legacyJson(Blackhole blackhole) {
+
+        JSONObject jsonObject = new JSONObject(jsonFrame.toString(CharsetUtil.UTF_8));
+        jsonObject.remove("op");
+        blackhole.consume(jsonObject.getString("ch"));
+
+        for (int i = 0; i < subscribers; i++) {
+            ByteBuf byteBuf = ByteBufUtil.encodeString(allocator, CharBuffer.wrap(jsonObject.toString()), CharsetUtil.UTF_8);
+            blackhole.consume(byteBuf);
+            byteBuf.release();
+        }
+    }
+
+    @Benchmark
+    public void headerOnlyJson(Blackhole blackhole) {
+
+        route(jsonFrame.duplicate(), Protocol.JSON, blackhole);
+    }
+
+    @Benchmark
+    public void headerOnlyBinary(Blackhole blackhole) {
+
+        route(binaryFrame.duplicate(), Protocol.BINARY, blackhole);
+    }
+
+    private void route(ByteBuf byteBuf, Protocol protocol, Blackhole blackhole) {
+
+        Frame frame = Protocol.detect(byteBuf).decode(byteBuf);
+        blackhole.consume(frame.channel());
+
+        EncodedFrame encodedFrame = new EncodedFrame(frame, allocator);
+        for (int i = 0; i < subscribers; i++) {
+            ByteBuf duplicate = encodedFrame.retainedBuffer(protocol);
+            blackhole.consume(duplicate);
+            duplicate.release();
+        }
+        encodedFrame.release();
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(BroadcastRoutingBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
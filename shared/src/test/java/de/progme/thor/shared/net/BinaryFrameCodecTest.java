@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.CharsetUtil;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class BinaryFrameCodecTest {
+
+    private static Frame roundTrip(Frame frame, int channelId) {
+
+        ByteBuf byteBuf = Unpooled.buffer();
+
+        try {
+            BinaryFrameCodec.encode(frame, byteBuf, channelId);
+
+            return BinaryFrameCodec.decode(byteBuf);
+        } finally {
+            byteBuf.release();
+        }
+    }
+
+    @Test
+    public void roundTripsAllHeaderFields() {
+
+        Frame frame = new Frame(OpCode.OP_REQUEST)
+                .channel("test")
+                .subscriber("sub")
+                .key("key")
+                .id(42)
+                .offset(1L << 40)
+                .sequence(7)
+                .deliverAt(1500000000000L)
+                .replyTo(99)
+                .json(new JSONObject().put("foo", "bär"));
+
+        Frame decoded = roundTrip(frame, -1);
+
+        assertEquals(OpCode.OP_REQUEST, decoded.opCode());
+        assertEquals("test", decoded.channel());
+        assertEquals("sub", decoded.subscriber());
+        assertEquals("key", decoded.key());
+        assertEquals(42, decoded.id());
+        assertEquals(1L << 40, decoded.offset());
+        assertEquals(7, decoded.sequence());
+        assertEquals(1500000000000L, decoded.deliverAt());
+        assertEquals(99, decoded.replyTo());
+        assertEquals("bär", decoded.json().getString("foo"));
+    }
+
+    @Test
+    public void leavesMissingFieldsUnset() {
+
+        Frame decoded = roundTrip(new Frame(OpCode.OP_BROADCAST).channel("test"), -1);
+
+        assertNull(decoded.subscriber());
+        assertNull(decoded.key());
+        assertFalse(decoded.hasId());
+        assertFalse(decoded.hasOffset());
+        assertFalse(decoded.hasSequence());
+        assertFalse(decoded.hasBody());
+    }
+
+    @Test
+    public void replacesTheChannelOfBroadcastsWithItsId() {
+
+        Frame decoded = roundTrip(new Frame(OpCode.OP_BROADCAST).channel("test").body("{\"a\":1}".getBytes(CharsetUtil.UTF_8)), 5);
+
+        assertNull(decoded.channel());
+        assertEquals(5, decoded.channelId());
+        assertArrayEquals("{\"a\":1}".getBytes(CharsetUtil.UTF_8), decoded.body());
+    }
+
+    @Test
+    public void skipsUnknownFields() {
+
+        ByteBuf byteBuf = Unpooled.buffer();
+        byteBuf.writeByte(BinaryFrameCodec.MAGIC);
+        byteBuf.writeByte(OpCode.OP_BROADCAST.getCode());
+        byteBuf.writeByte('z');
+        byteBuf.writeShort(3);
+        byteBuf.writeBytes(new byte[]{1, 2, 3});
+        byteBuf.writeByte('c');
+        byteBuf.writeShort(4);
+        byteBuf.writeBytes("test".getBytes(CharsetUtil.UTF_8));
+        byteBuf.writeByte(0);
+
+        assertEquals("test", BinaryFrameCodec.decode(byteBuf).channel());
+    }
+
+    @Test(expected = CorruptedFrameException.class)
+    public void rejectsAnInvalidMagic() {
+
+        BinaryFrameCodec.decode(Unpooled.wrappedBuffer(new byte[]{1, 2, 0}));
+    }
+}
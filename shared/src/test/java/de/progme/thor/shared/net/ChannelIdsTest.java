@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ChannelIdsTest {
+
+    @Test
+    public void removedIdIsNeitherUsedNorResolved() {
+
+        ChannelIds channelIds = new ChannelIds();
+        channelIds.put("metrics", 3);
+
+        channelIds.remove("metrics");
+
+        assertEquals(-1, channelIds.id("metrics"));
+        assertNull(channelIds.channel(3));
+        assertEquals(0, channelIds.size());
+    }
+
+    @Test
+    public void retiredIdIsStillResolved() {
+
+        ChannelIds channelIds = new ChannelIds();
+        channelIds.put("metrics", 3);
+
+        channelIds.retire("metrics");
+
+        assertEquals(-1, channelIds.id("metrics"));
+        assertEquals("metrics", channelIds.channel(3));
+    }
+
+    @Test
+    public void onlyTheLastRetiredIdsAreResolved() {
+
+        ChannelIds channelIds = new ChannelIds();
+
+        for (int i = 0; i <= ChannelIds.MAX_RETIRED; i++) {
+            channelIds.put("channel-" + i, i);
+            channelIds.retire("channel-" + i);
+        }
+
+        assertNull(channelIds.channel(0));
+        assertEquals("channel-1", channelIds.channel(1));
+    }
+
+    @Test
+    public void idHandedOutAgainIsKept() {
+
+        ChannelIds channelIds = new ChannelIds();
+        channelIds.put("metrics", 0);
+        channelIds.retire("metrics");
+        channelIds.put("metrics", 0);
+
+        for (int i = 1; i <= ChannelIds.MAX_RETIRED; i++) {
+            channelIds.put("channel-" + i, i);
+            channelIds.retire("channel-" + i);
+        }
+
+        assertEquals(0, channelIds.id("metrics"));
+        assertEquals("metrics", channelIds.channel(0));
+    }
+}
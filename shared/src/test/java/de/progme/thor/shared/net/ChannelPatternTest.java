@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelPatternTest {
+
+    @Test
+    public void detectsPatterns() {
+
+        assertTrue(ChannelPattern.isPattern("metrics.*.cpu"));
+        assertTrue(ChannelPattern.isPattern("metrics.#"));
+        assertTrue(ChannelPattern.isPattern("*"));
+        assertFalse(ChannelPattern.isPattern("metrics.cpu"));
+        // Wildcards only count as whole segments
+        assertFalse(ChannelPattern.isPattern("metrics.c*u"));
+        assertFalse(ChannelPattern.isPattern("issue#1"));
+    }
+
+    @Test
+    public void allowsMultiWildcardOnlyAtTheEnd() {
+
+        assertTrue(ChannelPattern.isValid("metrics.#"));
+        assertTrue(ChannelPattern.isValid("#"));
+        assertTrue(ChannelPattern.isValid("*.*"));
+        assertFalse(ChannelPattern.isValid("metrics.#.cpu"));
+        assertFalse(ChannelPattern.isValid("#.cpu"));
+    }
+
+    @Test
+    public void singleWildcardMatchesExactlyOneSegment() {
+
+        assertTrue(ChannelPattern.matches("metrics.*.cpu", "metrics.a.cpu"));
+        assertFalse(ChannelPattern.matches("metrics.*.cpu", "metrics.cpu"));
+        assertFalse(ChannelPattern.matches("metrics.*.cpu", "metrics.a.b.cpu"));
+        assertFalse(ChannelPattern.matches("metrics.*", "metrics"));
+        assertTrue(ChannelPattern.matches("metrics.*", "metrics."));
+    }
+
+    @Test
+    public void multiWildcardMatchesZeroOrMoreSegments() {
+
+        assertTrue(ChannelPattern.matches("metrics.#", "metrics"));
+        assertTrue(ChannelPattern.matches("metrics.#", "metrics.a"));
+        assertTrue(ChannelPattern.matches("metrics.#", "metrics.a.cpu"));
+        assertTrue(ChannelPattern.matches("#", "anything.at.all"));
+        assertFalse(ChannelPattern.matches("metrics.#", "metricsx.a"));
+        assertFalse(ChannelPattern.matches("metrics.#", "other"));
+    }
+
+    @Test
+    public void plainSegmentsMatchExactly() {
+
+        assertTrue(ChannelPattern.matches("metrics.cpu", "metrics.cpu"));
+        assertFalse(ChannelPattern.matches("metrics.cpu", "metrics.cpu.total"));
+        assertFalse(ChannelPattern.matches("metrics.cpu.total", "metrics.cpu"));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JsonFrameCodecTest {
+
+    private static Frame decode(String json) {
+
+        return JsonFrameCodec.decode(Unpooled.copiedBuffer(json, CharsetUtil.UTF_8));
+    }
+
+    private static String encode(Frame frame) {
+
+        ByteBuf byteBuf = Unpooled.buffer();
+
+        try {
+            JsonFrameCodec.encode(frame, byteBuf);
+
+            return byteBuf.toString(CharsetUtil.UTF_8);
+        } finally {
+            byteBuf.release();
+        }
+    }
+
+    @Test
+    public void splitsTheHeaderFromTheBody() {
+
+        Frame frame = decode("{\"op\":2, \"ch\":\"test\", \"su\":\"sub\", \"foo\":{\"bar\":[1,2]}, \"key\":\"k\"}");
+
+        assertEquals(OpCode.OP_BROADCAST, frame.opCode());
+        assertEquals("test", frame.channel());
+        assertEquals("sub", frame.subscriber());
+        // Only cache frames carry a key
+        assertNull(frame.key());
+
+        JSONObject body = frame.json();
+        assertEquals(2, body.length());
+        assertEquals("k", body.getString("key"));
+        assertEquals(2, body.getJSONObject("foo").getJSONArray("bar").length());
+    }
+
+    @Test
+    public void roundTripsCacheFrames() {
+
+        Frame frame = decode(encode(new Frame(OpCode.OP_CACHE_GET).key("k").id(3)));
+
+        assertEquals(OpCode.OP_CACHE_GET, frame.opCode());
+        assertEquals("k", frame.key());
+        assertEquals(3, frame.id());
+        assertFalse(frame.hasBody());
+    }
+
+    @Test
+    public void roundTripsScheduledAndCorrelatedFrames() {
+
+        Frame scheduled = decode(encode(new Frame(OpCode.OP_SCHEDULE).channel("test").deliverAt(1500000000000L)
+                .json(new JSONObject().put("at", "field"))));
+
+        // The delivery time is written before the body, so the header wins
+        assertEquals(1500000000000L, scheduled.deliverAt());
+
+        Frame reply = decode(encode(new Frame(OpCode.OP_REPLY).id(7).replyTo(1L << 33).json(new JSONObject().put("v", 1))));
+
+        assertEquals(7, reply.id());
+        assertEquals(1L << 33, reply.replyTo());
+        assertEquals(1, reply.json().getInt("v"));
+    }
+
+    @Test
+    public void keepsHeaderNamesAsFieldsOfOtherFrames() {
+
+        Frame frame = decode("{\"op\":2,\"ch\":\"test\",\"id\":1,\"at\":2,\"rt\":3}");
+
+        assertFalse(frame.hasId());
+        assertFalse(frame.hasDeliverAt());
+        assertFalse(frame.hasReplyTo());
+        assertEquals(3, frame.json().length());
+    }
+
+    @Test
+    public void decodesAnEmptyObject() {
+
+        Frame frame = decode("{\"op\":2}");
+
+        assertNull(frame.channel());
+        assertFalse(frame.hasBody());
+    }
+
+    @Test
+    public void roundTripsBatches() {
+
+        List<Frame> frames = JsonFrameCodec.decodeBatch(JsonFrameCodec.encodeBatch(Arrays.asList(
+                new Frame(OpCode.OP_BROADCAST).channel("a").json(new JSONObject().put("n", 1)),
+                new Frame(OpCode.OP_BROADCAST).channel("b").json(new JSONObject().put("n", 2)))));
+
+        assertEquals(2, frames.size());
+        assertEquals("a", frames.get(0).channel());
+        assertEquals(1, frames.get(0).json().getInt("n"));
+        assertEquals("b", frames.get(1).channel());
+        assertEquals(2, frames.get(1).json().getInt("n"));
+    }
+
+    @Test
+    public void readsMembersWithoutParsing() {
+
+        byte[] body = "{\"s\":\"x\",\"n\":42,\"o\":{\"s\":\"y\"}}".getBytes(CharsetUtil.UTF_8);
+
+        Map<String, String> strings = JsonFrameCodec.strings(body, new HashSet<>(Arrays.asList("s", "n")));
+
+        assertEquals(Collections.singletonMap("s", "x"), strings);
+        assertEquals("42", JsonFrameCodec.value(body, "n"));
+        assertEquals("\"x\"", JsonFrameCodec.value(body, "s"));
+        assertNull(JsonFrameCodec.value(body, "missing"));
+    }
+
+    @Test
+    public void projectsMembers() {
+
+        byte[] body = "{\"a\":1,\"b\":[2],\"c\":3}".getBytes(CharsetUtil.UTF_8);
+        JSONObject projected = new JSONObject(new String(JsonFrameCodec.project(body, new HashSet<>(Arrays.asList("a", "b"))), CharsetUtil.UTF_8));
+
+        assertEquals(2, projected.length());
+        assertTrue(projected.has("a"));
+        assertTrue(projected.has("b"));
+    }
+}
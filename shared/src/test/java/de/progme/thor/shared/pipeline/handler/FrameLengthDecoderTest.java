@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017 Marvin Erkes
+ *
+ * This file is part of Thor.
+ *
+ * Thor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.progme.thor.shared.pipeline.handler;
+
+import de.progme.thor.shared.net.ChunkUtil;
+import de.progme.thor.shared.net.Frame;
+import de.progme.thor.shared.net.OpCode;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameLengthDecoderTest {
+
+    private static ByteBuf frame(int length, int fill) {
+
+        ByteBuf byteBuf = Unpooled.buffer(4 + length);
+        byteBuf.writeInt(length);
+        for (int i = 0; i < length; i++) {
+            byteBuf.writeByte(fill);
+        }
+
+        return byteBuf;
+    }
+
+    @Test
+    public void decodesFramesSplitOverReads() {
+
+        EmbeddedChannel channel = new EmbeddedChannel(new FrameLengthDecoder(16));
+        ByteBuf byteBuf = frame(8, 1);
+
+        channel.writeInbound(byteBuf.readRetainedSlice(6));
+        assertNull(channel.readInbound());
+
+        channel.writeInbound(byteBuf);
+        ByteBuf decoded = channel.readInbound();
+        assertEquals(8, decoded.readableBytes());
+        decoded.release();
+
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void discardsTooLongFramesAndContinues() {
+
+        EmbeddedChannel channel = new EmbeddedChannel(new FrameLengthDecoder(16));
+
+        try {
+            channel.writeInbound(frame(32, 1));
+            fail("expected TooLongFrameException");
+        } catch (TooLongFrameException e) {
+            // expected
+        }
+
+        channel.writeInbound(frame(4, 2));
+        ByteBuf decoded = channel.readInbound();
+        assertEquals(4, decoded.readableBytes());
+        assertEquals(2, decoded.getByte(0));
+        decoded.release();
+
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void acceptsLargerFramesOnceRaised() {
+
+        FrameLengthDecoder decoder = new FrameLengthDecoder(16);
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+
+        decoder.maxFrameLength(64);
+        channel.writeInbound(frame(32, 1));
+        ByteBuf decoded = channel.readInbound();
+        assertEquals(32, decoded.readableBytes());
+        decoded.release();
+
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void chunksOnlyAboveTheMaxFrameSize() {
+
+        Frame frame = new Frame(OpCode.OP_BROADCAST).channel("test").body(new byte[256 * 1024]);
+
+        assertFalse(ChunkUtil.needsChunking(frame, Frame.DEFAULT_MAX_SIZE));
+        assertTrue(ChunkUtil.needsChunking(frame, 128 * 1024));
+        assertTrue(ChunkUtil.chunkSize(128 * 1024) * 6 + ChunkUtil.HEADER_RESERVE <= 128 * 1024);
+
+        // Small limits keep most of the frame for the body
+        Frame small = new Frame(OpCode.OP_BROADCAST).channel("test").body(new byte[100]);
+        assertFalse(ChunkUtil.needsChunking(small, 1024));
+        assertTrue(ChunkUtil.chunkSize(1024) * 6 <= 1024);
+    }
+}